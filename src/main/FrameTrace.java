@@ -0,0 +1,152 @@
+package main;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import main.util.Serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * When a frame was captured, and when each node that sent it on received it
+ * and sent it. Carried in the frame's header (see Snapshot) as
+ *
+ *      capture time (long)
+ *      number of hops (byte)
+ *      received, sent (int, int) for each hop
+ *
+ * The capture time is in microseconds on the broadcaster's wall clock. Hop
+ * times are microseconds since the capture time on the clock of the node that
+ * recorded them (see nowMicros()). How long a node held a frame doesn't
+ * depend on the clocks of different nodes agreeing, but the time a frame
+ * spent between nodes is only meaningful if they're synchronized (e.g., with
+ * NTP).
+ *
+ * Immutable.
+ */
+public class FrameTrace {
+    // Nodes further from the broadcaster than this aren't recorded.
+    public final static int MAX_HOPS = 32;
+
+    // The wall clock when we started, and the monotonic clock at the same
+    // moment, so that our times never jump (see nowMicros()).
+    private final static long START_MICROS = System.currentTimeMillis() * 1000;
+    private final static long START_NANOS = System.nanoTime();
+
+    private final long captureMicros;
+
+    // Received and sent times of each hop, in order.
+    private final int[] hops;
+
+    private FrameTrace(long captureMicros, int[] hops) {
+        this.captureMicros = captureMicros;
+        this.hops = hops;
+    }
+
+    /**
+     * The current wall clock time in microseconds, as measured by the
+     * monotonic clock since we started.
+     */
+    public static long nowMicros() {
+        return START_MICROS + (System.nanoTime() - START_NANOS) / 1000;
+    }
+
+    public static FrameTrace capturedAt(long captureMicros) {
+        return new FrameTrace(captureMicros, new int[0]);
+    }
+
+    public static FrameTrace capturedNow() {
+        return capturedAt(nowMicros());
+    }
+
+    public long getCaptureMicros() {
+        return captureMicros;
+    }
+
+    public int getNumHops() {
+        return hops.length / 2;
+    }
+
+    // Since the capture time.
+    public int getReceivedMicros(int hop) {
+        return hops[2 * hop];
+    }
+
+    // Since the capture time.
+    public int getSentMicros(int hop) {
+        return hops[2 * hop + 1];
+    }
+
+    // The time (see nowMicros()) as an offset from the capture time, clamped
+    // to what fits in a hop.
+    public int sinceCapture(long micros) {
+        return Ints.saturatedCast(micros - captureMicros);
+    }
+
+    /**
+     * Adds a hop. Hops past MAX_HOPS are dropped.
+     *
+     * @param receivedMicros When the node received the frame (see
+     *      nowMicros()).
+     * @param sentMicros When it sent it on.
+     */
+    public FrameTrace withHop(long receivedMicros, long sentMicros) {
+        if (getNumHops() == MAX_HOPS)
+            return this;
+
+        int[] result = Arrays.copyOf(hops, hops.length + 2);
+        result[hops.length] = sinceCapture(receivedMicros);
+        result[hops.length + 1] = sinceCapture(sentMicros);
+        return new FrameTrace(captureMicros, result);
+    }
+
+    public static FrameTrace read(InputStream stream) throws IOException {
+        long captureMicros = Serialization.readLong(stream);
+        int numHops = Serialization.read(stream, 1)[0];
+        if (numHops < 0 || numHops > MAX_HOPS)
+            throw new IOException("Illegal number of hops " + numHops);
+
+        int[] hops = new int[2 * numHops];
+        for (int i = 0; i < hops.length; i++)
+            hops[i] = Serialization.readInt(stream);
+        return new FrameTrace(captureMicros, hops);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(Longs.toByteArray(captureMicros), 0, Long.BYTES);
+        stream.write(getNumHops());
+        for (int time : hops)
+            stream.write(Ints.toByteArray(time), 0, Integer.BYTES);
+        return stream.toByteArray();
+    }
+
+    public int getLength() {
+        return Long.BYTES + 1 + hops.length * Integer.BYTES;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("<captured=" + captureMicros);
+        for (int hop = 0; hop < getNumHops(); hop++)
+            builder.append(String.format(", hop %s=%s-%sus",
+                    hop, getReceivedMicros(hop), getSentMicros(hop)));
+        return builder.append(">").toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+
+        FrameTrace rhs = (FrameTrace)obj;
+        return captureMicros == rhs.captureMicros && Arrays.equals(hops, rhs.hops);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(captureMicros) + Arrays.hashCode(hops);
+    }
+}
@@ -0,0 +1,123 @@
+package main;
+
+import main.util.Histogram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Breaks down where the latency of the frames a client outputs went, from
+ * their traces (see FrameTrace), and keeps a histogram of each stage, in
+ * microseconds:
+ *
+ *      ENCODE: the broadcaster, from capture until it sent the frame
+ *      NETWORK: between a node sending the frame and the next receiving it
+ *      RELAY: a relay, from receiving the frame until sending it on
+ *      TRANSFER: us, from the start of the frame arriving until the end
+ *      DECODE: decoding the image
+ *      DISPLAY: from reading the frame until it was shown, decoding included
+ *      TOTAL: from capture until the frame was shown
+ *
+ * There's a NETWORK and a RELAY for each hop. The last three are only known
+ * once the frame is shown (see onDisplay()).
+ *
+ * Threadsafe.
+ */
+public class LatencyStats {
+    public final static String ENCODE = "encode";
+    public final static String NETWORK = "network";
+    public final static String RELAY = "relay";
+    public final static String TRANSFER = "transfer";
+    public final static String DECODE = "decode";
+    public final static String DISPLAY = "display";
+    public final static String TOTAL = "total";
+
+    private final static List<String> STAGES = Collections.unmodifiableList(Arrays.asList(
+            ENCODE, NETWORK, RELAY, TRANSFER, DECODE, DISPLAY, TOTAL));
+
+    /**
+     * How long one frame spent in one stage.
+     */
+    public static class Stage {
+        public final String name;
+        public final long micros;
+
+        private Stage(String name, long micros) {
+            this.name = name;
+            this.micros = micros;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + micros + "us";
+        }
+    }
+
+    private final Map<String, Histogram> histograms;
+
+    public LatencyStats() {
+        this.histograms = new LinkedHashMap<>();
+        for (String stage : STAGES)
+            histograms.put(stage, new Histogram());
+    }
+
+    /**
+     * The stages the snapshot went through until we read it, in order. Empty
+     * for snapshots created locally.
+     */
+    public static List<Stage> getBreakdown(Snapshot snapshot) {
+        FrameTrace trace = snapshot.getTrace();
+        List<Stage> result = new ArrayList<>();
+        if (trace.getNumHops() == 0)
+            return result;
+
+        result.add(new Stage(ENCODE, trace.getSentMicros(0)));
+        for (int hop = 1; hop < trace.getNumHops(); hop++) {
+            result.add(new Stage(NETWORK,
+                    trace.getReceivedMicros(hop) - trace.getSentMicros(hop - 1)));
+            result.add(new Stage(RELAY,
+                    trace.getSentMicros(hop) - trace.getReceivedMicros(hop)));
+        }
+
+        int last = trace.getNumHops() - 1;
+        result.add(new Stage(NETWORK,
+                trace.sinceCapture(snapshot.getReceivedMicros()) - trace.getSentMicros(last)));
+        result.add(new Stage(TRANSFER,
+                snapshot.getReadMicros() - snapshot.getReceivedMicros()));
+        return result;
+    }
+
+    // Should be called once the snapshot has been read.
+    public void onOutput(Snapshot snapshot) {
+        for (Stage stage : getBreakdown(snapshot))
+            histograms.get(stage.name).add(stage.micros);
+    }
+
+    // Should be called once the snapshot is shown.
+    public void onDisplay(Snapshot snapshot) {
+        if (snapshot.getTrace().getNumHops() == 0)
+            return;
+
+        long now = FrameTrace.nowMicros();
+        if (snapshot.getDecodeMicros() >= 0)
+            histograms.get(DECODE).add(snapshot.getDecodeMicros());
+        histograms.get(DISPLAY).add(now - snapshot.getReadMicros());
+        histograms.get(TOTAL).add(now - snapshot.getTrace().getCaptureMicros());
+    }
+
+    public Histogram getHistogram(String stage) {
+        return histograms.get(stage);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            builder.append(String.format("%-8s %s\n", entry.getKey(), entry.getValue()));
+        return builder.toString();
+    }
+}
@@ -1,102 +1,577 @@
 package main;
 
 import com.google.common.primitives.Longs;
-import com.sun.xml.internal.messaging.saaj.util.ByteOutputStream;
+import main.encoding.FrameBuffer;
+import main.encoding.FrameCodec;
+import main.encoding.FrameCodecs;
+import main.encoding.ImageComparison;
+import main.encoding.ScaledKeyframe;
+import main.encoding.StripedEncoding;
+import main.encoding.TileCache;
+import main.encoding.TileDelta;
+import main.encoding.YuvPlanes;
 import main.util.Serialization;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Represents an image captured from the screen. Snapshots are ordered by their
  * frame indexes.
+ *
+ * A snapshot read off the network keeps the encoded frame it arrived with, so
+ * that relays can forward those exact bytes to their children instead of
+ * decoding and re-encoding the image at every hop. The image itself is only
+ * decoded when someone calls getImage().
+ *
+ * Every encoded frame records the id of the FrameCodec its images were
+ * encoded with, so senders can pick (and change) codecs freely.
+ *
+ * A broadcaster may capture each frame at several resolutions (simulcast).
+ * Each resolution is a layer with its own stream of frame indexes and delta
+ * frames; snapshots of the same capture share a frame index.
+ *
+ * Every frame carries a FrameTrace of when it was captured and when each
+ * node on its way received and sent it, from which clients break its latency
+ * down (see LatencyStats). Snapshots created locally are captured when
+ * they're created.
  */
 public class Snapshot {
     // Note that writing includes this byte, but reading does not.
     public final static byte SNAPSHOT_PREFIX = 0x50;
 
+    // Frame types, written after the codec id, layer and frame index and
+    // followed by the trace. A keyframe carries the whole image; a striped
+    // keyframe carries it as stripes that can be decoded in parallel (see
+    // StripedEncoding); a delta frame carries the tiles that changed since an
+    // earlier frame on the same layer (see TileDelta); a scaled keyframe
+    // carries the image at a lower resolution, for receivers that can't keep
+    // up (see ScaledKeyframe).
+    //
+    // A preview is a tiny scaled keyframe sent ahead of a frame, so that
+    // receivers have something to show before the whole frame arrives. The
+    // frame that follows it on the same layer, with the same index, replaces
+    // it. Previews are never the base of a delta frame.
+    public final static byte KEYFRAME = 0;
+    public final static byte DELTA_FRAME = 1;
+    public final static byte STRIPED_KEYFRAME = 2;
+    public final static byte SCALED_KEYFRAME = 3;
+    public final static byte PREVIEW = 4;
+
+    // Layers are numbered from 0, which is the layer nodes receive unless
+    // they ask for others. Sets of layers are passed around as bitmasks.
+    public final static int MAX_LAYERS = Long.SIZE;
+    public final static int DEFAULT_LAYER = 0;
+
+    // The most frames a chain of undecoded delta frames (and the frame it
+    // starts at) can hold. A relay that never asks for its images would
+    // otherwise keep every frame since the last keyframe alive, and whoever
+    // first decoded one would recurse through all of them.
+    private final static int MAX_UNDECODED_CHAIN = 8;
+
     private final long frameIndex;
-    private final BufferedImage image;
+    private final int layer;
 
     // Use lossy=false for testing, lossy=true for better performance.
     private final boolean lossy;
 
-    private Snapshot(long frameIndex, BufferedImage image, boolean lossy) {
+    // The encoded frame this snapshot was read with, or null if it was
+    // created locally.
+    private final byte codecId;
+    private final byte frameType;
+    private final byte[] payload;
+
+    // For delta frames, the snapshot the payload applies to. Released once
+    // we've decoded so that a chain of deltas doesn't keep every earlier
+    // frame alive. Guarded by this.
+    private Snapshot base;
+
+    // How many undecoded frames our chain of bases held when we were
+    // created, including us. Frames decoded since only make it shorter.
+    private final int chainLength;
+
+    // For received frames, the index of the keyframe our chain of delta
+    // frames started at. The sender's tile cache is only in sync with ours
+    // if its cache epoch matches (see TileDelta).
+    private final long cacheEpoch;
+
+    // For delta frames, the tile cache for the stream after decoding this
+    // frame. Handed over to the next delta frame when it's decoded. Guarded
+    // by this.
+    private TileCache tileCache;
+
+    // Null until decoded when created from an encoded frame. Reads outside
+    // the lock are safe because the field is only ever set once, from null
+    // to the decoded image.
+    private volatile BufferedImage image;
+
+    // The image as YUV 4:2:0, for codecs that take planes. Null until
+    // getPlanes() is first called; set once, like image.
+    private volatile YuvPlanes planes;
+
+    private final FrameTrace trace;
+
+    // When (see FrameTrace.nowMicros()) we started and finished reading the
+    // frame. The capture time for snapshots created locally.
+    private final long receivedMicros;
+    private final long readMicros;
+
+    // How long decoding the image took, or -1 if we haven't.
+    private volatile long decodeMicros;
+
+    private Snapshot(long frameIndex, int layer, BufferedImage image, boolean lossy) {
+        checkArgument(layer >= 0 && layer < MAX_LAYERS, "Illegal layer %s", layer);
         this.frameIndex = frameIndex;
+        this.layer = layer;
         this.image = image;
         this.lossy = lossy;
+        this.codecId = 0;
+        this.frameType = KEYFRAME;
+        this.payload = null;
+        this.base = null;
+        this.chainLength = 0;
+        this.cacheEpoch = frameIndex;
+        this.tileCache = null;
+        this.trace = FrameTrace.capturedNow();
+        this.receivedMicros = trace.getCaptureMicros();
+        this.readMicros = receivedMicros;
+        this.decodeMicros = -1;
+    }
+
+    private Snapshot(long frameIndex,
+                     int layer,
+                     boolean lossy,
+                     byte codecId,
+                     byte frameType,
+                     byte[] payload,
+                     /* nullable */ Snapshot base,
+                     FrameTrace trace,
+                     long receivedMicros) {
+        this.frameIndex = frameIndex;
+        this.layer = layer;
+        this.image = null;
+        this.lossy = lossy;
+        this.codecId = codecId;
+        this.frameType = frameType;
+        this.payload = payload;
+        this.base = base;
+        this.chainLength = base == null || base.isDecoded() ? 1 : base.chainLength + 1;
+        this.cacheEpoch = base == null ? frameIndex : base.cacheEpoch;
+        this.tileCache = null;
+        this.trace = trace;
+        this.receivedMicros = receivedMicros;
+        this.readMicros = FrameTrace.nowMicros();
+        this.decodeMicros = -1;
     }
 
     public static Snapshot lossySnapshot(long frameIndex, BufferedImage image) {
-        return new Snapshot(frameIndex, image, true);
+        return lossySnapshot(frameIndex, DEFAULT_LAYER, image);
     }
 
-    public static Snapshot losslessSnapshot(long frameIndex, BufferedImage image) {
-        return new Snapshot(frameIndex, image, false);
+    public static Snapshot lossySnapshot(long frameIndex, int layer, BufferedImage image) {
+        return new Snapshot(frameIndex, layer, image, true);
     }
 
-    private static String getEncoding(boolean lossy) {
-        return lossy ? "JPG" : "PNG";
+    public static Snapshot losslessSnapshot(long frameIndex, BufferedImage image) {
+        return losslessSnapshot(frameIndex, DEFAULT_LAYER, image);
     }
 
-    private String getEncoding() {
-        return getEncoding(lossy);
+    public static Snapshot losslessSnapshot(long frameIndex, int layer, BufferedImage image) {
+        return new Snapshot(frameIndex, layer, image, false);
     }
 
     public long getFrameIndex() {
         return frameIndex;
     }
 
+    public int getLayer() {
+        return layer;
+    }
+
+    public static long layerMask(int layer) {
+        return 1L << layer;
+    }
+
+    public FrameTrace getTrace() {
+        return trace;
+    }
+
+    public long getReceivedMicros() {
+        return receivedMicros;
+    }
+
+    public long getReadMicros() {
+        return readMicros;
+    }
+
+    public long getDecodeMicros() {
+        return decodeMicros;
+    }
+
+    /**
+     * Decodes the image on the first call and returns the same image
+     * afterwards. Safe to call from multiple threads; only one of them will
+     * decode. Snapshots that nobody asks for (e.g. on relays, or frames the
+     * display skipped) are only decoded to keep chains of delta frames short.
+     */
     public BufferedImage getImage() {
-        return image;
+        BufferedImage result = image;
+        if (result != null)
+            return result;
+
+        synchronized (this) {
+            if (image == null) {
+                long start = System.nanoTime();
+                image = decode();
+                decodeMicros = (System.nanoTime() - start) / 1000;
+                base = null;
+            }
+            return image;
+        }
+    }
+
+    /**
+     * The image converted into YUV 4:2:0 planes, which is done the first time
+     * this is called. Encoders only ask for them when they write a keyframe
+     * with a codec that takes planes, so most frames are never converted.
+     */
+    public YuvPlanes getPlanes() {
+        YuvPlanes result = planes;
+        if (result != null)
+            return result;
+
+        BufferedImage image = getImage();
+        synchronized (this) {
+            if (planes == null)
+                planes = YuvPlanes.fromImage(image);
+            return planes;
+        }
+    }
+
+    // Should only be called while this is locked. Locks the base snapshot,
+    // which is always older than us, so there's no lock-ordering cycle.
+    private BufferedImage decode() {
+        try {
+            FrameCodec codec = FrameCodecs.get(codecId);
+            if (codec == null)
+                throw new IOException("Unknown codec " + codecId);
+
+            if (frameType == DELTA_FRAME)
+                return decodeDelta(codec);
+            if (frameType == STRIPED_KEYFRAME)
+                return StripedEncoding.decode(payload, codec);
+            if (frameType == SCALED_KEYFRAME || frameType == PREVIEW)
+                return ScaledKeyframe.decode(payload, codec);
+            return codec.decode(new ByteArrayInputStream(payload));
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Unable to decode snapshot " + frameIndex, e);
+        }
+    }
+
+    // Should only be called while this is locked.
+    private BufferedImage decodeDelta(FrameCodec codec) throws IOException {
+        BufferedImage baseImage = base.getImage();
+
+        int cacheCapacity = TileDelta.getCacheCapacity(payload);
+        TileCache cache = base.takeTileCache();
+        if (cache == null || cache.getCapacity() != cacheCapacity)
+            cache = new TileCache(cacheCapacity);
+
+        BufferedImage result = TileDelta.decode(payload, baseImage, codec, cache);
+        tileCache = cache;
+        return result;
+    }
+
+    private synchronized TileCache takeTileCache() {
+        TileCache cache = tileCache;
+        tileCache = null;
+        return cache;
+    }
+
+    public boolean isDecoded() {
+        return image != null;
+    }
+
+    // Whether this snapshot holds the encoded frame it was read with.
+    public boolean isEncoded() {
+        return payload != null;
+    }
+
+    public boolean isDeltaFrame() {
+        return payload != null && frameType == DELTA_FRAME;
+    }
+
+    public boolean isPreview() {
+        return payload != null && frameType == PREVIEW;
     }
 
     public Snapshot createNext(BufferedImage newImage) {
-        return new Snapshot(frameIndex + 1, newImage, lossy);
+        return new Snapshot(frameIndex + 1, layer, newImage, lossy);
     }
 
-    private ByteOutputStream imageToByteOutputStream() throws IOException {
-        ByteOutputStream outputStream = new ByteOutputStream();
-        ImageIO.write(image, getEncoding(), outputStream);
-        return outputStream;
+    public boolean isLossy() {
+        return lossy;
+    }
+
+    /**
+     * Writes the rest of the payload of a frame into the buffer.
+     */
+    public interface PayloadWriter {
+        public void write(FrameBuffer buffer) throws IOException;
     }
 
     // ImageIO is a little obnoxious in that it doesn't necessarily read all
-    // the bytes it wrote, so we have to write the length of the image and then
-    // clean up the buffer after reading.
-    public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        outputStream.write(SNAPSHOT_PREFIX);
-        outputStream.write(Longs.toByteArray(frameIndex));
+    // the bytes it wrote, so we have to write the length of the payload and
+    // then clean up the buffer after reading.
+    //
+    // The frame is built in a pooled FrameBuffer: the header goes in first
+    // with a placeholder length, which is patched once the payload has been
+    // written behind it.
+    //
+    // The codec id goes right after the prefix so that a receiver can tell
+    // what it's looking at before reading anything else, followed by the
+    // layer so it can find the base of a delta frame. The trace is written as
+    // it is; senders add their hop when they send the frame (see
+    // Header.withHop()).
+    private byte[] toBytes(byte codecId, byte frameType, PayloadWriter payloadWriter)
+            throws IOException {
+        try (FrameBuffer buffer = FrameBuffer.acquire()) {
+            buffer.write(SNAPSHOT_PREFIX);
+            buffer.write(codecId);
+            buffer.write(layer);
+            buffer.writeLong(frameIndex);
+            buffer.write(frameType);
+            buffer.write(trace.toBytes());
 
-        ByteOutputStream imageOutput = imageToByteOutputStream();
-        Serialization.writeLong(outputStream, imageOutput.size());
-        imageOutput.writeTo(outputStream);
+            long lengthPosition = buffer.getStreamPosition();
+            buffer.writeLong(0);
+            payloadWriter.write(buffer);
+            buffer.writeLongAt(
+                    lengthPosition,
+                    buffer.length() - lengthPosition - Long.BYTES);
 
-        return outputStream.toByteArray();
+            return buffer.toByteArray();
+        }
     }
 
-    private static BufferedImage readImage(InputStream stream, long imageSize)
+    /**
+     * @param codec The codec payloadWriter encodes images with.
+     */
+    public byte[] toBytes(FrameCodec codec, byte frameType, PayloadWriter payloadWriter)
             throws IOException {
-        return ImageIO.read(new ByteArrayInputStream(
-                Serialization.read(stream, (int) imageSize)));
+        return toBytes(codec.getId(), frameType, payloadWriter);
+    }
+
+    // Re-frames the payload this snapshot was read with.
+    private byte[] toReceivedBytes() throws IOException {
+        return toBytes(codecId, frameType, buffer -> buffer.write(payload));
+    }
+
+    /**
+     * @return The encoded frame this snapshot was read with if there is one
+     *      (which may be a delta frame), otherwise the image as a keyframe.
+     */
+    public byte[] toBytes() throws IOException {
+        if (payload != null)
+            return toReceivedBytes();
+        return toKeyframeBytes();
+    }
+
+    /**
+     * @return This snapshot as a keyframe, which a receiver can decode without
+     *      having seen any earlier frames.
+     */
+    public byte[] toKeyframeBytes() throws IOException {
+        return toKeyframeBytes(FrameCodecs.defaultCodec(lossy));
+    }
+
+    /**
+     * @param codec Used if the image has to be encoded. Keyframes we received
+     *      are forwarded as they are, whatever their codec.
+     */
+    public byte[] toKeyframeBytes(FrameCodec codec) throws IOException {
+        if (payload != null && frameType != DELTA_FRAME)
+            return toReceivedBytes();
+        return toBytes(codec, KEYFRAME, buffer -> {
+            if (codec.acceptsPlanes())
+                codec.encode(getPlanes(), buffer);
+            else
+                codec.encode(getImage(), buffer);
+        });
     }
 
-    // See comment above toBytes
     public static Snapshot fromInputStream(InputStream stream, boolean lossy)
             throws IOException {
-        long index = Serialization.readLong(stream);
-        long imageSize = Serialization.readLong(stream);
-        BufferedImage image = readImage(stream, imageSize);
+        return fromInputStream(stream, lossy, (Snapshot) null);
+    }
+
+    /**
+     * See comment above toBytes. The image is not decoded until
+     * getImage() is called, so frames encoded with a codec we don't know
+     * can still be read (and forwarded); only getImage() fails.
+     *
+     * @param previous The last snapshot read from the same stream, used as the
+     *      base for delta frames.
+     * @return The snapshot, or null if it was a delta frame whose base frame
+     *      is not previous, or that refers to tiles cached before our chain
+     *      of frames started. The bytes are consumed either way.
+     */
+    public static Snapshot fromInputStream(InputStream stream,
+                                           boolean lossy,
+                                           /* nullable */ Snapshot previous)
+            throws IOException {
+        return fromInputStream(stream, lossy, layer -> previous);
+    }
+
+    /**
+     * @param previousForLayer Returns the last snapshot read from the same
+     *      stream on the given layer (or null), used as the base for delta
+     *      frames.
+     */
+    public static Snapshot fromInputStream(InputStream stream,
+                                           boolean lossy,
+                                           IntFunction<Snapshot> previousForLayer)
+            throws IOException {
+        Header header = Header.read(stream);
+        byte[] payload = Serialization.read(stream, header.payloadLength);
+        return fromPayload(header, payload, lossy, previousForLayer);
+    }
+
+    /**
+     * The fields written ahead of a frame's payload (see toBytes).
+     */
+    public static class Header {
+        public final byte codecId;
+        public final int layer;
+        public final long frameIndex;
+        public final byte frameType;
+        public final FrameTrace trace;
+        public final int payloadLength;
+
+        private Header(byte codecId,
+                       int layer,
+                       long frameIndex,
+                       byte frameType,
+                       FrameTrace trace,
+                       int payloadLength) {
+            this.codecId = codecId;
+            this.layer = layer;
+            this.frameIndex = frameIndex;
+            this.frameType = frameType;
+            this.trace = trace;
+            this.payloadLength = payloadLength;
+        }
+
+        // Reads the header of a frame whose prefix has already been read.
+        public static Header read(InputStream stream) throws IOException {
+            byte codecId = Serialization.read(stream, 1)[0];
+            int layer = Serialization.read(stream, 1)[0];
+            long index = Serialization.readLong(stream);
+            byte frameType = Serialization.read(stream, 1)[0];
+            FrameTrace trace = FrameTrace.read(stream);
+            long payloadLength = Serialization.readLong(stream);
+
+            if (layer < 0 || layer >= MAX_LAYERS)
+                throw new IOException("Illegal layer " + layer);
+            if (payloadLength < 0 || payloadLength > Integer.MAX_VALUE)
+                throw new IOException("Illegal payload length " + payloadLength);
+            return new Header(codecId, layer, index, frameType, trace, (int)payloadLength);
+        }
+
+        /**
+         * Adds the hop of a node sending the frame on to the trace.
+         *
+         * @param receivedMicros When the node received the frame (see
+         *      FrameTrace.nowMicros()).
+         * @param sentMicros When it sent it.
+         */
+        public Header withHop(long receivedMicros, long sentMicros) {
+            return new Header(codecId, layer, frameIndex, frameType,
+                    trace.withHop(receivedMicros, sentMicros), payloadLength);
+        }
+
+        // The prefix and header, as they were read.
+        public byte[] toBytes() {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            stream.write(SNAPSHOT_PREFIX);
+            stream.write(codecId);
+            stream.write(layer);
+            stream.write(Longs.toByteArray(frameIndex), 0, Long.BYTES);
+            stream.write(frameType);
+            stream.write(trace.toBytes(), 0, trace.getLength());
+            stream.write(Longs.toByteArray(payloadLength), 0, Long.BYTES);
+            return stream.toByteArray();
+        }
+
+        // The length of toBytes().
+        public int getLength() {
+            return 3 + Long.BYTES + 1 + trace.getLength() + Long.BYTES;
+        }
+    }
+
+    /**
+     * Creates the snapshot for a frame whose header and payload have been
+     * read separately (e.g., by a relay that forwarded the payload as it
+     * arrived). See fromInputStream.
+     */
+    public static Snapshot fromPayload(Header header,
+                                       byte[] payload,
+                                       boolean lossy,
+                                       IntFunction<Snapshot> previousForLayer)
+            throws IOException {
+        return fromPayload(header, payload, lossy, previousForLayer, FrameTrace.nowMicros());
+    }
 
-        return new Snapshot(index, image, lossy);
+    /**
+     * @param receivedMicros When we started reading the frame (see
+     *      FrameTrace.nowMicros()).
+     */
+    public static Snapshot fromPayload(Header header,
+                                       byte[] payload,
+                                       boolean lossy,
+                                       IntFunction<Snapshot> previousForLayer,
+                                       long receivedMicros)
+            throws IOException {
+        byte frameType = header.frameType;
+        if (frameType == KEYFRAME ||
+                frameType == STRIPED_KEYFRAME ||
+                frameType == SCALED_KEYFRAME ||
+                frameType == PREVIEW)
+            return new Snapshot(
+                    header.frameIndex, header.layer, lossy,
+                    header.codecId, frameType, payload, null,
+                    header.trace, receivedMicros);
+        else if (frameType == DELTA_FRAME) {
+            Snapshot previous = previousForLayer.apply(header.layer);
+            if (previous == null ||
+                    previous.getLayer() != header.layer ||
+                    previous.getFrameIndex() != TileDelta.getBaseFrameIndex(payload) ||
+                    !TileDelta.canUseCache(payload, previous.cacheEpoch))
+                return null;
+            // Decoding the previous frame releases the chain behind it.
+            if (previous.chainLength >= MAX_UNDECODED_CHAIN)
+                previous.getImage();
+            return new Snapshot(
+                    header.frameIndex, header.layer, lossy,
+                    header.codecId, frameType, payload, previous,
+                    header.trace, receivedMicros);
+        }
+        throw new IOException("Unrecognized frame type " + frameType);
     }
 
+    // Doesn't decode the image if it hasn't been decoded yet.
     @Override
     public String toString() {
-        return String.format("<frame=%s, width=%s, height=%s>",
-                frameIndex, image.getWidth(), image.getHeight());
+        BufferedImage image = this.image;
+        if (image == null)
+            return String.format("<frame=%s, layer=%s, encoded bytes=%s>",
+                    frameIndex, layer, payload.length);
+        return String.format("<frame=%s, layer=%s, width=%s, height=%s>",
+                frameIndex, layer, image.getWidth(), image.getHeight());
     }
 
     @Override
@@ -106,6 +581,7 @@ public class Snapshot {
 
         Snapshot rhs = (Snapshot)obj;
         return getFrameIndex() == rhs.getFrameIndex() &&
+                getLayer() == rhs.getLayer() &&
                 imagesEqual(getImage(), rhs.getImage());
     }
 
@@ -115,17 +591,6 @@ public class Snapshot {
         if (lhs == null)
             return true;
 
-        int width = lhs.getWidth(), height = lhs.getHeight();
-
-        if (width != rhs.getWidth() ||
-                height != rhs.getHeight())
-            return false;
-
-        for (int y = 0; y < height; y++)
-            for (int x = 0; x < width; x++)
-                if (lhs.getRGB(x, y) != rhs.getRGB(x, y))
-                    return false;
-
-        return true;
+        return ImageComparison.equal(lhs, rhs);
     }
 }
@@ -1,7 +1,8 @@
 package main.deliverable;
 
 import main.Snapshot;
-import main.network.connections.socket.SocketConnectionFactory;
+import main.encoding.EncodingOptions;
+import main.network.connections.socket.NioSocketConnectionFactory;
 import main.network.connections.socket.SocketInformation;
 import main.network.protocols.NetworkProtocol;
 import main.network.protocols.tree.TreeNetworkProtocol;
@@ -10,6 +11,8 @@ import main.util.Util;
 
 import java.awt.*;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -20,6 +23,28 @@ public class Broadcaster {
     private final static int PORT = 5567;
     private final static long FREQUENCY = 20;
 
+    // The layers each frame is captured at. Clients display the native
+    // layer unless they pick another when they start (see Client).
+    public final static int NATIVE_LAYER = 0;
+    public final static int HD_LAYER = 1;
+    public final static int THUMBNAIL_LAYER = 2;
+    private final static int NUM_LAYERS = 3;
+    private final static int HD_HEIGHT = 720;
+    private final static int THUMBNAIL_HEIGHT = 180;
+
+    // Send a full frame every two seconds and only changed tiles otherwise,
+    // sending tiles seen since the last full frame as cache references.
+    // Full frames are encoded on all cores and preceded by a preview.
+    // Children that can't keep up are sent scaled down frames.
+    private final static EncodingOptions ENCODING_OPTIONS =
+            new EncodingOptions.Builder()
+                    .setKeyframeInterval(2 * (int)FREQUENCY)
+                    .setStripes(Runtime.getRuntime().availableProcessors())
+                    .setTileCacheSize(1024)
+                    .setDownscaleSlowReceivers(true)
+                    .setPreviews(true)
+                    .build();
+
     private final ScreenGrabber grabber;
     private final NetworkProtocol networkBroadcaster;
 
@@ -37,8 +62,9 @@ public class Broadcaster {
         this.queueHandler = new QueueHandler<>(
                 grabberOutput,
                 (snapshot) -> {
-                    slideshowInput.add(snapshot);
-                    if (grabberOutput.size() > 10) {
+                    if (snapshot.getLayer() == NATIVE_LAYER)
+                        slideshowInput.add(snapshot);
+                    if (grabberOutput.size() > 10 * NUM_LAYERS) {
                         grabberOutput.poll();
                         networkBroadcaster.insertSnapshot(snapshot);
                     } else {
@@ -59,6 +85,24 @@ public class Broadcaster {
         queueHandler.stop();
         imageDisplay.close();
         networkBroadcaster.stop();
+
+        if (networkBroadcaster instanceof TreeNetworkProtocol)
+            System.out.println(((TreeNetworkProtocol<?>)networkBroadcaster).getTileCache());
+    }
+
+    private static Dimension scaleToHeight(Dimension screen, int height) {
+        if (screen.height <= height)
+            return screen;
+        return new Dimension(screen.width * height / screen.height, height);
+    }
+
+    // Indexed by layer.
+    private static List<Dimension> layerDimensions() {
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        return Arrays.asList(
+                screen,
+                scaleToHeight(screen, HD_HEIGHT),
+                scaleToHeight(screen, THUMBNAIL_HEIGHT));
     }
 
     public static void main(String[] args) throws AWTException, IOException {
@@ -71,10 +115,11 @@ public class Broadcaster {
 
         // using tree protocol
         NetworkProtocol netBroadcaster = TreeNetworkProtocol.losslessClient(
-                SocketConnectionFactory.fromSocketInfo(socketInfo), socketInfo);
+                NioSocketConnectionFactory.fromSocketInfo(socketInfo), socketInfo, ENCODING_OPTIONS);
 
         ConcurrentLinkedQueue<Snapshot> snapshots = new ConcurrentLinkedQueue<>();
-        ScreenGrabber grabber = ScreenGrabber.fromQueueFrequencyDimension(snapshots, FREQUENCY, new Dimension(600, 300));
+        ScreenGrabber grabber = ScreenGrabber.fromQueueFrequencyLayers(snapshots, FREQUENCY, layerDimensions());
+        grabber.setSkipUnchangedFrames(true);
         Broadcaster broadcaster = new Broadcaster(grabber, snapshots, netBroadcaster);
 
         broadcaster.start();
@@ -1,7 +1,8 @@
 package main.deliverable;
 
 import main.Snapshot;
-import main.network.connections.socket.SocketConnectionFactory;
+import main.encoding.EncodingOptions;
+import main.network.connections.socket.NioSocketConnectionFactory;
 import main.network.connections.socket.SocketInformation;
 import main.network.protocols.NetworkProtocol;
 import main.network.protocols.tree.TreeNetworkProtocol;
@@ -19,6 +20,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class Client {
     private final static boolean LOCAL_MACHINE_ONLY = false;
 
+    // Children that can't keep up with what we relay are sent scaled down
+    // frames.
+    private final static EncodingOptions RELAY_OPTIONS =
+            new EncodingOptions.Builder()
+                    .setDownscaleSlowReceivers(true)
+                    .build();
+
     private final NetworkProtocol networkClient;
     private final ConcurrentLinkedQueue<Snapshot> slideshowInput;
     private ImageDisplay imageDisplay;
@@ -44,7 +52,8 @@ public class Client {
         imageDisplay = new ImageDisplay(
                 "Client at " + me.toString(),
                 slideshowInput,
-                networkClient.getParentKeyString());
+                networkClient.getParentKeyString(),
+                networkClient.getLatencyStats());
         networkClient.start();
         (new Thread(() -> {
             while (true) {
@@ -80,7 +89,7 @@ public class Client {
         SocketInformation broadcasterSocketInfo = getBroadcasterSocketInfo(bParts[0], Integer.parseInt(bParts[1]));
         System.out.println(String.format("Connecting from me %s to parent %s", info, bInfo));
 
-        SocketConnectionFactory socketConnectionFactory = SocketConnectionFactory.fromSocketInfo(info);
+        NioSocketConnectionFactory socketConnectionFactory = NioSocketConnectionFactory.fromSocketInfo(info);
 
         // using basic protocol
 //        NetworkProtocol networkClient = BasicNetworkProtocolClient.lossyClient(
@@ -89,7 +98,12 @@ public class Client {
 
         // using tree protocol
         NetworkProtocol networkClient = TreeNetworkProtocol.losslessClient(
-                socketConnectionFactory, broadcasterSocketInfo);
+                socketConnectionFactory, broadcasterSocketInfo, RELAY_OPTIONS);
+
+        // Optionally the layer to display, e.g. Broadcaster.THUMBNAIL_LAYER on
+        // a slow link.
+        if (args.length > 0)
+            ((TreeNetworkProtocol<?>)networkClient).setLayer(Integer.parseInt(args[0]));
 
         Client client = new Client(networkClient);
         client.start(info);
@@ -100,9 +114,12 @@ public class Client {
         String input;
 
         while ((input=scanner.nextLine())!=null) {
-            // looking for e.g. "kill 127.0.0.1:5567"
+            // looking for e.g. "kill 127.0.0.1:5567", or "stats" for where
+            // the latency of the frames we've shown went
             try {
-                if (input.startsWith("kill")) {
+                if (input.equals("stats"))
+                    System.out.print(networkClient.getLatencyStats());
+                else if (input.startsWith("kill")) {
                     System.out.println(networkClient.getParentKeyString());
                     String dInfo = input.substring(("kill ").length());
                     String[] dParts = parseKeyString(dInfo);
@@ -1,12 +1,15 @@
 package main.deliverable;
+import main.LatencyStats;
 import main.Snapshot;
 import main.util.QueueHandler;
+import main.util.Util;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
+import java.io.UncheckedIOException;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -19,6 +22,7 @@ public class ImageDisplay extends JFrame {
     private final static int HEIGHT = 300;
 
     private final QueueHandler<Snapshot> queueHandler;
+    private final /* nullable */ LatencyStats latencyStats;
 
     private static BufferedImage getStartingImage() {
         return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
@@ -36,7 +40,19 @@ public class ImageDisplay extends JFrame {
             String title,
             ConcurrentLinkedQueue<Snapshot> images,
             String source) {
+        this(title, images, source, null);
+    }
+
+    /**
+     * @param latencyStats Told about every snapshot we show.
+     */
+    public ImageDisplay(
+            String title,
+            ConcurrentLinkedQueue<Snapshot> images,
+            String source,
+            /* nullable */ LatencyStats latencyStats) {
         setTitle(title);
+        this.latencyStats = latencyStats;
         this.width = WIDTH;
         this.height = HEIGHT;
         this.parentAddress = source;
@@ -46,10 +62,27 @@ public class ImageDisplay extends JFrame {
 
         queueHandler = new QueueHandler<>(
                 images,
-                (snapshot) -> setImage(snapshot.getImage()));
+                (snapshot) -> showSnapshot(images, snapshot));
         queueHandler.start();
     }
 
+    // Skips the snapshot if a newer one is already waiting, so that we never
+    // spend time decoding frames that would immediately be replaced. A
+    // preview is shown as soon as it arrives (unless its frame arrived right
+    // behind it) and is replaced by the frame.
+    private void showSnapshot(ConcurrentLinkedQueue<Snapshot> images, Snapshot snapshot) {
+        if (!images.isEmpty())
+            return;
+
+        try {
+            setImage(snapshot.getImage());
+            if (latencyStats != null)
+                latencyStats.onDisplay(snapshot);
+        } catch (UncheckedIOException e) {
+            Util.printException("Error decoding " + snapshot, e);
+        }
+    }
+
     /**
      * Creates our graphics-handling component.
      */
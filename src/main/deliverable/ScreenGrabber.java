@@ -1,36 +1,54 @@
 package main.deliverable;
 
 import main.Snapshot;
+import main.encoding.FrameFingerprint;
 import main.util.Util;
 import org.imgscalr.Scalr;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Takes screenshots at a specific frequency and outputs them to a
  * ConcurrentLinkedQueue<BufferedImage> at a specific resolution.
+ *
+ * Given several resolutions, every screenshot is output once per resolution,
+ * as snapshots on consecutive layers (see Snapshot) with the same frame index.
  */
 public class ScreenGrabber {
     private final Robot myRobot;
     private final Rectangle screenRectangle;
     private final ConcurrentLinkedQueue<Snapshot> buffer;
     private final AtomicBoolean isCapturing;
-    private Snapshot mySnapshot;
+    private long nextFrameIndex;
     private final long delayMillis; // in millis
-    private final Dimension dimension;
+    private final List<Dimension> layers;
+
+    // If set, captures identical to the previous one aren't output at all;
+    // the network protocols keep connections alive while nothing is sent.
+    private volatile boolean skipUnchangedFrames;
+    private long previousFingerprint;
 
     private ScreenGrabber(Robot robot,
                           ConcurrentLinkedQueue<Snapshot> buffer,
-                          long frequency, Dimension dimension) {
+                          long frequency, List<Dimension> layers) {
+        checkArgument(!layers.isEmpty() && layers.size() <= Snapshot.MAX_LAYERS,
+                "Illegal number of layers %s", layers.size());
         this.myRobot = robot;
-        this.dimension = dimension;
+        this.layers = new ArrayList<>(layers);
         this.screenRectangle = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
         this.buffer = buffer;
         this.isCapturing = new AtomicBoolean();
         this.delayMillis = 1000 / frequency;
+        this.nextFrameIndex = 0;
+        this.skipUnchangedFrames = false;
     }
 
     /**
@@ -52,7 +70,17 @@ public class ScreenGrabber {
                                                             long frequency,
                                                             Dimension dimension)
             throws AWTException {
-        return new ScreenGrabber(new Robot(), buffer, frequency, dimension);
+        return fromQueueFrequencyLayers(buffer, frequency, Collections.singletonList(dimension));
+    }
+
+    /**
+     * @param layers The resolution of each layer, starting with layer 0.
+     */
+    public static ScreenGrabber fromQueueFrequencyLayers(ConcurrentLinkedQueue<Snapshot> buffer,
+                                                         long frequency,
+                                                         List<Dimension> layers)
+            throws AWTException {
+        return new ScreenGrabber(new Robot(), buffer, frequency, layers);
     }
 
     /**
@@ -68,10 +96,25 @@ public class ScreenGrabber {
     public static ScreenGrabber fromQueueAndFrequency(ConcurrentLinkedQueue<Snapshot> buffer,
                                                       long frequency, Dimension dimension)
             throws AWTException {
-        return new ScreenGrabber(new Robot(), buffer, frequency, dimension);
+        return fromQueueFrequencyDimension(buffer, frequency, dimension);
     }
 
 
+    public void setSkipUnchangedFrames(boolean skipUnchangedFrames) {
+        this.skipUnchangedFrames = skipUnchangedFrames;
+    }
+
+    // Returns whether the image is the same as the last one we output.
+    private boolean isUnchanged(BufferedImage img) {
+        if (!skipUnchangedFrames)
+            return false;
+
+        long fingerprint = FrameFingerprint.of(img);
+        boolean unchanged = this.nextFrameIndex > 0 && fingerprint == previousFingerprint;
+        previousFingerprint = fingerprint;
+        return unchanged;
+    }
+
     public void startCapture() {
         this.isCapturing.set(true);
         new Thread(this::capture).start(); // lambda function that is coerced to be a Runnable
@@ -81,12 +124,18 @@ public class ScreenGrabber {
         this.isCapturing.set(false);
     }
 
-    private BufferedImage resize(BufferedImage img) {
+    private BufferedImage resize(BufferedImage img, Dimension dimension) {
+        if (img.getWidth() == dimension.width && img.getHeight() == dimension.height)
+            return img;
         return Scalr.resize(img,
                 Scalr.Method.SPEED,
                 Scalr.Mode.FIT_EXACT,
-                (int) this.dimension.getWidth(),
-                (int) this.dimension.getHeight());
+                (int) dimension.getWidth(),
+                (int) dimension.getHeight());
+    }
+
+    private void output(Snapshot snapshot) {
+        this.buffer.add(snapshot);
     }
 
     public void capture() {
@@ -94,13 +143,16 @@ public class ScreenGrabber {
             long startNano = System.nanoTime();
             BufferedImage img = this.myRobot.createScreenCapture(this.screenRectangle);
             if(img != null) {
-                img = resize(img);
-                if (this.mySnapshot == null)
-                    this.mySnapshot = Snapshot.lossySnapshot(0, img);
-                else
-                    this.mySnapshot = this.mySnapshot.createNext(img);
-
-                this.buffer.add(this.mySnapshot);
+                // Only the first layer is compared; the others are scaled
+                // from the same capture.
+                BufferedImage first = resize(img, this.layers.get(0));
+                if (!isUnchanged(first)) {
+                    output(Snapshot.lossySnapshot(this.nextFrameIndex, 0, first));
+                    for (int layer = 1; layer < this.layers.size(); layer++)
+                        output(Snapshot.lossySnapshot(
+                                this.nextFrameIndex, layer, resize(img, this.layers.get(layer))));
+                    this.nextFrameIndex++;
+                }
             }
 
             long endNano = System.nanoTime();
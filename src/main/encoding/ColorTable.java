@@ -0,0 +1,61 @@
+package main.encoding;
+
+import java.util.Arrays;
+
+/**
+ * The distinct colors of some pixels, numbered in the order they were added,
+ * up to a limit. Used to count the colors of tiles and to build their
+ * palettes.
+ *
+ * Not threadsafe; meant to be reused (see clear()) for tile after tile.
+ */
+class ColorTable {
+    private final int limit;
+
+    // Open addressing over a table at most a quarter full. slots holds
+    // index + 1 of the color in colors, or 0 if empty.
+    private final int[] slots;
+    private final int mask;
+    private final int[] colors;
+    private int size;
+
+    ColorTable(int limit) {
+        this.limit = limit;
+        this.slots = new int[Integer.highestOneBit(Math.max(limit, 1)) * 4];
+        this.mask = slots.length - 1;
+        this.colors = new int[limit];
+        this.size = 0;
+    }
+
+    /**
+     * @param rgb Without alpha.
+     * @return The color's index, or -1 if it's new and the table is full.
+     */
+    int add(int rgb) {
+        int slot = (rgb * 0x9e3779b1) >>> 7 & mask;
+        while (slots[slot] != 0) {
+            if (colors[slots[slot] - 1] == rgb)
+                return slots[slot] - 1;
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == limit)
+            return -1;
+        colors[size] = rgb;
+        slots[slot] = ++size;
+        return size - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getColor(int index) {
+        return colors[index];
+    }
+
+    void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+}
@@ -0,0 +1,74 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An instruction to copy a rectangle of the previous frame to another
+ * position, e.g. because the content was scrolled. Encoded as six ints:
+ * source x, source y, width, height, destination x, destination y.
+ */
+public class CopyRect {
+    public final int srcX;
+    public final int srcY;
+    public final int width;
+    public final int height;
+    public final int dstX;
+    public final int dstY;
+
+    public CopyRect(int srcX, int srcY, int width, int height, int dstX, int dstY) {
+        this.srcX = srcX;
+        this.srcY = srcY;
+        this.width = width;
+        this.height = height;
+        this.dstX = dstX;
+        this.dstY = dstY;
+    }
+
+    private boolean fits(BufferedImage image) {
+        Rectangle bounds = new Rectangle(image.getWidth(), image.getHeight());
+        return width > 0 && height > 0 &&
+                bounds.contains(new Rectangle(srcX, srcY, width, height)) &&
+                bounds.contains(new Rectangle(dstX, dstY, width, height));
+    }
+
+    // The source and destination may overlap.
+    public void apply(BufferedImage image) throws IOException {
+        if (!fits(image))
+            throw new IOException(String.format("%s doesn't fit a %sx%s image",
+                    this, image.getWidth(), image.getHeight()));
+
+        int[] pixels = image.getRGB(srcX, srcY, width, height, null, 0, width);
+        image.setRGB(dstX, dstY, width, height, pixels, 0, width);
+    }
+
+    public void write(ImageOutputStream output) throws IOException {
+        output.writeInt(srcX);
+        output.writeInt(srcY);
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(dstX);
+        output.writeInt(dstY);
+    }
+
+    public static CopyRect read(InputStream stream) throws IOException {
+        return new CopyRect(
+                Serialization.readInt(stream),
+                Serialization.readInt(stream),
+                Serialization.readInt(stream),
+                Serialization.readInt(stream),
+                Serialization.readInt(stream),
+                Serialization.readInt(stream));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<copy %sx%s from (%s, %s) to (%s, %s)>",
+                width, height, srcX, srcY, dstX, dstY);
+    }
+}
@@ -0,0 +1,207 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The default lossless codec: filters the raw RGB pixels and deflates them at
+ * the fastest level. PNG does the same thing in principle, but ImageIO's PNG
+ * writer goes through several layers of per-pixel abstraction and compresses
+ * much harder, which makes it several times slower on screen-sized frames for
+ * little gain on screen content.
+ *
+ * Each row is filtered against either the row above it (UP) or the pixel to
+ * its left (SUB), whichever leaves more pixels unchanged; screen content is
+ * mostly flat areas and repeated lines, which then compress to almost
+ * nothing. (Changes relative to the previous frame are handled by delta frames
+ * instead, so that every image this codec writes can be decoded on its own.)
+ *
+ * Images are read through PixelRows, so TYPE_INT_RGB images (which is what
+ * the screen grabber produces) are read in place, and decoding writes
+ * straight into the DataBufferInt of the result, rather than pixel by pixel
+ * through getRGB()/setRGB().
+ *
+ * The encoding is:
+ *
+ *      width (int)
+ *      height (int)
+ *      deflated rows, top to bottom:
+ *          filter (byte)
+ *          3 bytes (R, G, B) per pixel, each the difference from the same
+ *              channel of the reference pixel modulo 256
+ */
+public class DeflateCodec implements FrameCodec {
+    public final static DeflateCodec INSTANCE = new DeflateCodec();
+
+    private final static byte FILTER_SUB = 0;
+    private final static byte FILTER_UP = 1;
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    // Deflaters hold native memory, so keep one per thread rather than
+    // creating (and finalizing) one per frame.
+    private final static ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final static ThreadLocal<Inflater> INFLATERS =
+            ThreadLocal.withInitial(Inflater::new);
+
+    private DeflateCodec() {}
+
+    @Override
+    public byte getId() {
+        return FrameCodecs.DEFLATE_ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    // Adapts the ImageOutputStream for DeflaterOutputStream.
+    private static OutputStream asOutputStream(ImageOutputStream output) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+            }
+        };
+    }
+
+    // Picks the filter that leaves more pixels equal to their reference.
+    private static byte chooseFilter(int[] row, int offset,
+                                     /* nullable */ int[] above, int aboveOffset,
+                                     int width) {
+        if (above == null)
+            return FILTER_SUB;
+
+        int sameAsLeft = 0, sameAsAbove = 0;
+        for (int x = 0; x < width; x++) {
+            int pixel = row[offset + x] & 0xffffff;
+            if (x > 0 && pixel == (row[offset + x - 1] & 0xffffff))
+                sameAsLeft++;
+            if (pixel == (above[aboveOffset + x] & 0xffffff))
+                sameAsAbove++;
+        }
+        return sameAsAbove > sameAsLeft ? FILTER_UP : FILTER_SUB;
+    }
+
+    // Writes pixel - reference channel by channel, modulo 256.
+    private static void putDifference(byte[] out, int index, int pixel, int reference) {
+        out[index] = (byte)((pixel >> 16) - (reference >> 16));
+        out[index + 1] = (byte)((pixel >> 8) - (reference >> 8));
+        out[index + 2] = (byte)(pixel - reference);
+    }
+
+    // Inverse of putDifference.
+    private static int addDifference(byte[] in, int index, int reference) {
+        return ((reference >> 16) + in[index]) << 16 & 0xff0000 |
+                ((reference >> 8) + in[index + 1]) << 8 & 0xff00 |
+                (reference + in[index + 2]) & 0xff;
+    }
+
+    @Override
+    public void encode(BufferedImage image, ImageOutputStream output) throws IOException {
+        int width = image.getWidth(), height = image.getHeight();
+        output.writeInt(width);
+        output.writeInt(height);
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        DeflaterOutputStream stream = new DeflaterOutputStream(
+                asOutputStream(output), deflater, BUFFER_SIZE);
+
+        PixelRows pixels = new PixelRows(image);
+        byte[] filtered = new byte[1 + 3 * width];
+        // Scratch rows for images that aren't read in place; the previous
+        // row has to stay valid while we read the next one.
+        int[] scratch = new int[width], previousScratch = new int[width];
+        int[] above = null;
+        int aboveOffset = 0;
+
+        for (int y = 0; y < height; y++) {
+            int[] row = pixels.getRow(y, scratch);
+            int offset = pixels.getRowStart(y);
+            byte filter = chooseFilter(row, offset, above, aboveOffset, width);
+
+            filtered[0] = filter;
+            for (int x = 0; x < width; x++) {
+                int reference;
+                if (filter == FILTER_UP)
+                    reference = above[aboveOffset + x];
+                else
+                    reference = x > 0 ? row[offset + x - 1] : 0;
+                putDifference(filtered, 1 + 3 * x, row[offset + x], reference);
+            }
+            stream.write(filtered);
+
+            above = row;
+            aboveOffset = offset;
+            if (!pixels.isDirect()) {
+                int[] swap = previousScratch;
+                previousScratch = scratch;
+                scratch = swap;
+            }
+        }
+
+        // Not close(): that would close the output, and we reuse the deflater.
+        stream.finish();
+    }
+
+    // Decodes straight into the backing array of a new TYPE_INT_RGB image.
+    @Override
+    public BufferedImage decode(InputStream stream) throws IOException {
+        int width = Serialization.readInt(stream);
+        int height = Serialization.readInt(stream);
+        if (width <= 0 || height <= 0 || (long)width * height > Integer.MAX_VALUE / 3)
+            throw new IOException(String.format("Illegal image size %sx%s", width, height));
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        InputStream pixelStream = new InflaterInputStream(stream, inflater, BUFFER_SIZE);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        byte[] filtered = new byte[1 + 3 * width];
+
+        for (int y = 0; y < height; y++) {
+            if (Serialization.read(pixelStream, filtered, filtered.length) < filtered.length)
+                throw new IOException("Truncated deflated image");
+
+            int offset = y * width;
+            byte filter = filtered[0];
+            if (filter == FILTER_UP && y > 0) {
+                for (int x = 0; x < width; x++)
+                    pixels[offset + x] = addDifference(
+                            filtered, 1 + 3 * x, pixels[offset - width + x]);
+            } else if (filter == FILTER_SUB) {
+                int previous = 0;
+                for (int x = 0; x < width; x++)
+                    previous = pixels[offset + x] =
+                            addDifference(filtered, 1 + 3 * x, previous);
+            } else
+                throw new IOException("Illegal row filter " + filter + " in row " + y);
+        }
+
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,229 @@
+package main.encoding;
+
+import main.Snapshot;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes the stream of snapshots sent to a node's children, sending only the
+ * tiles that changed since the previous snapshot and a full keyframe every
+ * keyframeInterval frames.
+ *
+ * There is one encoder per outgoing stream, since each delta is relative to
+ * the previous frame sent on it. Receivers that don't have the base frame
+ * drop deltas until the next keyframe (see TileDelta.decode).
+ *
+ * Content that moved since the previous snapshot (e.g., a scrolled document)
+ * is sent as a copy of the previous frame's pixels plus the tiles that still
+ * differ (see MoveDetector).
+ *
+ * With a tile cache, changed tiles that were sent earlier since the last
+ * keyframe are sent as references instead (see TileCache).
+ */
+public class DeltaEncoder {
+    // Looking for moves costs a hash of every row of the changed region, so
+    // don't bother for small changes, which can't gain much.
+    private final static int MIN_TILES_FOR_MOVES = 4;
+
+    // Used for scaled keyframes: half the resolution at a low JPEG quality is
+    // roughly a tenth of the bytes of a full lossless frame of screen content.
+    private final static double SLOW_RECEIVER_SCALE = 0.5;
+    private final static FrameCodec SLOW_RECEIVER_CODEC =
+            ImageEncoder.jpeg(0.4f, ImageEncoder.ChromaSubsampling.YUV420);
+
+    // Previews only need to give an idea of the frame until it arrives.
+    private final static double PREVIEW_SCALE = 0.125;
+    private final static FrameCodec PREVIEW_CODEC =
+            ImageEncoder.jpeg(0.3f, ImageEncoder.ChromaSubsampling.YUV420);
+
+    private final EncodingOptions options;
+    // JPEG, or HybridCodec with JPEG for the lossy tiles.
+    private final FrameCodec lossyCodec;
+
+    // Overrides the choice between DeflateCodec and lossyCodec if set. Can
+    // be changed at any time since every frame records its codec.
+    private volatile FrameCodec codec;
+
+    private Snapshot previous;
+    private int framesSinceKeyframe;
+
+    // Cleared whenever we send a keyframe on the stream; cacheEpoch is that
+    // keyframe's index.
+    private final TileCache tileCache;
+    private long cacheEpoch;
+
+    public DeltaEncoder(EncodingOptions options) {
+        this.options = options;
+        ImageEncoder jpegEncoder = ImageEncoder.jpeg(options.jpegQuality, options.chromaSubsampling);
+        this.lossyCodec = options.losslessText
+                ? new HybridCodec(HybridCodec.DEFAULT_TILE_SIZE, jpegEncoder)
+                : jpegEncoder;
+        this.codec = options.codec;
+        this.previous = null;
+        this.framesSinceKeyframe = 0;
+        this.tileCache = new TileCache(options.tileCacheSize);
+        this.cacheEpoch = -1;
+    }
+
+    // For reporting hits and misses.
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Switches the codec used for the following frames. Null goes back to
+     * choosing based on whether the snapshot is lossy.
+     */
+    public void setCodec(/* nullable */ FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    private FrameCodec getCodec(Snapshot snapshot) {
+        FrameCodec codec = this.codec;
+        if (codec != null)
+            return codec;
+        return snapshot.isLossy() ? lossyCodec : DeflateCodec.INSTANCE;
+    }
+
+    private boolean shouldSendKeyframe(Snapshot snapshot) {
+        return !options.deltaEnabled() ||
+                previous == null ||
+                framesSinceKeyframe + 1 >= options.keyframeInterval ||
+                snapshot.getFrameIndex() <= previous.getFrameIndex() ||
+                !TileGrid.forImage(previous.getImage(), options.tileSize)
+                        .matches(snapshot.getImage());
+    }
+
+    /**
+     * Whether encode() will (at least) consider sending the snapshot as a
+     * delta frame. It may still fall back to a keyframe.
+     */
+    public synchronized boolean mayEncodeDelta(Snapshot snapshot) {
+        return !shouldSendKeyframe(snapshot);
+    }
+
+    public synchronized byte[] encode(Snapshot snapshot) throws IOException {
+        byte[] bytes = null;
+        try {
+            if (!shouldSendKeyframe(snapshot))
+                bytes = encodeDelta(snapshot);
+        } catch (IOException|RuntimeException e) {
+            // The cache may have been updated for a frame nobody will
+            // receive, so start over with a keyframe.
+            previous = null;
+            throw e;
+        }
+
+        if (bytes == null) {
+            bytes = encodeKeyframe(snapshot);
+            framesSinceKeyframe = 0;
+            tileCache.clear();
+            cacheEpoch = snapshot.getFrameIndex();
+        } else
+            framesSinceKeyframe++;
+
+        previous = snapshot;
+        return bytes;
+    }
+
+    // Returns null if a keyframe should be sent instead.
+    private byte[] encodeDelta(Snapshot snapshot) throws IOException {
+        BufferedImage image = snapshot.getImage();
+        TileGrid grid = TileGrid.forImage(image, options.tileSize);
+        List<Integer> changed = TileDelta.findChangedTiles(
+                grid, previous.getImage(), image);
+
+        if (options.moveDetection && changed.size() >= MIN_TILES_FOR_MOVES) {
+            CopyRect move = MoveDetector.detect(
+                    previous.getImage(), image, TileDelta.bounds(grid, changed));
+            if (move != null) {
+                List<CopyRect> moves = Collections.singletonList(move);
+                List<Integer> changedAfterMove = TileDelta.findChangedTiles(
+                        grid, TileDelta.applyMoves(previous.getImage(), moves), image);
+                if (changedAfterMove.size() < changed.size())
+                    return encodeDelta(snapshot, grid, moves, changedAfterMove);
+            }
+        }
+
+        return encodeDelta(snapshot, grid, Collections.emptyList(), changed);
+    }
+
+    private byte[] encodeDelta(Snapshot snapshot,
+                               TileGrid grid,
+                               List<CopyRect> moves,
+                               List<Integer> changed) throws IOException {
+        BufferedImage image = snapshot.getImage();
+        long[] hashes = tileCache.isEnabled()
+                ? TileDelta.hashTiles(grid, image, changed)
+                : new long[changed.size()];
+        if (!TileDelta.worthSending(grid, TileDelta.countUncachedTiles(hashes, tileCache)))
+            return null;
+
+        long baseFrameIndex = previous.getFrameIndex();
+        FrameCodec codec = getCodec(snapshot);
+        return snapshot.toBytes(
+                codec,
+                Snapshot.DELTA_FRAME,
+                buffer -> TileDelta.write(
+                        buffer, grid, image, moves, changed, hashes, baseFrameIndex,
+                        tileCache, cacheEpoch, codec));
+    }
+
+    /**
+     * Encodes the snapshot so that it can be decoded without any earlier
+     * frames. Doesn't affect the state of the stream.
+     */
+    public byte[] encodeKeyframe(Snapshot snapshot) throws IOException {
+        FrameCodec codec = getCodec(snapshot);
+        if (options.stripes == 1 || (snapshot.isEncoded() && !snapshot.isDeltaFrame()))
+            return snapshot.toKeyframeBytes(codec);
+        return snapshot.toBytes(
+                codec,
+                Snapshot.STRIPED_KEYFRAME,
+                buffer -> {
+                    if (codec.acceptsPlanes())
+                        StripedEncoding.write(buffer, snapshot.getPlanes(), codec, options.stripes);
+                    else
+                        StripedEncoding.write(buffer, snapshot.getImage(), codec, options.stripes);
+                });
+    }
+
+    /**
+     * Encodes the snapshot as a scaled down, low quality keyframe for
+     * receivers that can't keep up with the stream. Doesn't affect the state
+     * of the stream.
+     */
+    public byte[] encodeScaledKeyframe(Snapshot snapshot) throws IOException {
+        return snapshot.toBytes(
+                SLOW_RECEIVER_CODEC,
+                Snapshot.SCALED_KEYFRAME,
+                buffer -> ScaledKeyframe.write(
+                        buffer, snapshot.getImage(), SLOW_RECEIVER_CODEC, SLOW_RECEIVER_SCALE));
+    }
+
+    /**
+     * Encodes a tiny, low quality version of the snapshot to send ahead of
+     * it. Doesn't affect the state of the stream.
+     */
+    public byte[] encodePreview(Snapshot snapshot) throws IOException {
+        return snapshot.toBytes(
+                PREVIEW_CODEC,
+                Snapshot.PREVIEW,
+                buffer -> ScaledKeyframe.write(
+                        buffer, snapshot.getImage(), PREVIEW_CODEC, PREVIEW_SCALE));
+    }
+
+    /**
+     * Records a snapshot that wasn't sent to anyone (e.g., because there were
+     * no connections) so that the next delta is relative to it. New
+     * connections are sent the most recent snapshot as a keyframe, so this
+     * keeps them in sync with the stream.
+     */
+    public synchronized void skip(Snapshot snapshot) {
+        framesSinceKeyframe++;
+        previous = snapshot;
+    }
+}
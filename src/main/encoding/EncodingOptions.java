@@ -0,0 +1,224 @@
+package main.encoding;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Immutable set of knobs controlling how a node encodes the snapshots it
+ * sends to its children.
+ *
+ * The defaults reproduce the original behavior: every frame is sent as a
+ * full image.
+ */
+public class EncodingOptions {
+    public final static EncodingOptions DEFAULT = new Builder().build();
+
+    /**
+     * What a child's send queue drops when a frame is added while it's full
+     * (see SendQueue). The child is sent a keyframe after a drop.
+     */
+    public enum QueuePolicy {
+        // The oldest queued frame.
+        DROP_OLDEST,
+
+        // Every queued frame, so only the latest is sent.
+        LATEST_FRAME,
+
+        // The oldest queued frame, until maxDroppedFrames have been dropped
+        // since the child was last sent one; then the child is disconnected.
+        DISCONNECT
+    }
+
+    public static class Builder {
+        private int tileSize;
+        private int keyframeInterval;
+        private int stripes;
+        private float jpegQuality;
+        private ImageEncoder.ChromaSubsampling chromaSubsampling;
+        private boolean losslessText;
+        private FrameCodec codec;
+        private int tileCacheSize;
+        private boolean moveDetection;
+        private boolean downscaleSlowReceivers;
+        private boolean previews;
+        private int sendQueueFrames;
+        private QueuePolicy queuePolicy;
+        private int maxDroppedFrames;
+
+        public Builder() {
+            tileSize = 64;
+            keyframeInterval = 1;
+            stripes = 1;
+            jpegQuality = ImageEncoder.DEFAULT_JPEG_QUALITY;
+            chromaSubsampling = ImageEncoder.ChromaSubsampling.YUV420;
+            losslessText = false;
+            codec = null;
+            tileCacheSize = 0;
+            moveDetection = true;
+            downscaleSlowReceivers = false;
+            previews = false;
+            sendQueueFrames = 8;
+            queuePolicy = QueuePolicy.DROP_OLDEST;
+            maxDroppedFrames = 30;
+        }
+
+        // Width and height (in pixels) of the tiles compared between frames.
+        public Builder setTileSize(int tileSize) {
+            checkArgument(tileSize > 0, "Illegal tile size %s", tileSize);
+            this.tileSize = tileSize;
+            return this;
+        }
+
+        // A full keyframe is sent at least once every keyframeInterval
+        // frames. An interval of 1 disables delta frames.
+        public Builder setKeyframeInterval(int keyframeInterval) {
+            checkArgument(keyframeInterval > 0,
+                    "Illegal keyframe interval %s", keyframeInterval);
+            this.keyframeInterval = keyframeInterval;
+            return this;
+        }
+
+        // Full frames are split into this many horizontal stripes that are
+        // encoded (and decoded) in parallel. 1 encodes the frame as a single
+        // image.
+        public Builder setStripes(int stripes) {
+            checkArgument(stripes > 0, "Illegal number of stripes %s", stripes);
+            this.stripes = stripes;
+            return this;
+        }
+
+        // Only used for lossy snapshots. Between 0 (smallest) and 1 (best).
+        public Builder setJpegQuality(float jpegQuality) {
+            checkArgument(jpegQuality >= 0 && jpegQuality <= 1,
+                    "Illegal JPEG quality %s", jpegQuality);
+            this.jpegQuality = jpegQuality;
+            return this;
+        }
+
+        // Only used for lossy snapshots.
+        public Builder setChromaSubsampling(ImageEncoder.ChromaSubsampling chromaSubsampling) {
+            this.chromaSubsampling = chromaSubsampling;
+            return this;
+        }
+
+        // Whether lossy snapshots keep tiles that look like text or UI
+        // lossless (see HybridCodec), encoding only the rest with JPEG.
+        public Builder setLosslessText(boolean losslessText) {
+            this.losslessText = losslessText;
+            return this;
+        }
+
+        // The codec images are encoded with. Null (the default) uses
+        // DeflateCodec for lossless snapshots and JPEG with the settings above for lossy ones.
+        public Builder setCodec(/* nullable */ FrameCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        // Number of tiles kept in the cache of recently sent tiles (see
+        // TileCache). Receivers keep a cache of the same size. 0 disables the
+        // cache. Only used with delta frames.
+        public Builder setTileCacheSize(int tileCacheSize) {
+            checkArgument(tileCacheSize >= 0, "Illegal tile cache size %s", tileCacheSize);
+            this.tileCacheSize = tileCacheSize;
+            return this;
+        }
+
+        // Whether to look for content that moved (e.g., scrolled) between
+        // frames and send it as a copy of the previous frame's pixels (see
+        // MoveDetector). Only used with delta frames.
+        public Builder setMoveDetection(boolean moveDetection) {
+            this.moveDetection = moveDetection;
+            return this;
+        }
+
+        // Whether receivers that fall behind the stream (see
+        // ThroughputMonitor) are sent scaled down, low quality keyframes
+        // instead of the frames everyone else gets, until they catch up.
+        public Builder setDownscaleSlowReceivers(boolean downscaleSlowReceivers) {
+            this.downscaleSlowReceivers = downscaleSlowReceivers;
+            return this;
+        }
+
+        // Whether keyframes we encode are preceded by a tiny preview of the
+        // frame, which receivers can show while the rest of the frame is
+        // still on its way.
+        public Builder setPreviews(boolean previews) {
+            this.previews = previews;
+            return this;
+        }
+
+        // How many frames may be waiting to be sent to each child, and what
+        // to drop when there are more.
+        public Builder setSendQueue(int sendQueueFrames, QueuePolicy queuePolicy) {
+            checkArgument(sendQueueFrames > 0, "Illegal send queue size %s", sendQueueFrames);
+            this.sendQueueFrames = sendQueueFrames;
+            this.queuePolicy = queuePolicy;
+            return this;
+        }
+
+        // Only used with QueuePolicy.DISCONNECT.
+        public Builder setMaxDroppedFrames(int maxDroppedFrames) {
+            checkArgument(maxDroppedFrames >= 0,
+                    "Illegal number of dropped frames %s", maxDroppedFrames);
+            this.maxDroppedFrames = maxDroppedFrames;
+            return this;
+        }
+
+        public EncodingOptions build() {
+            return new EncodingOptions(
+                    tileSize, keyframeInterval, stripes,
+                    jpegQuality, chromaSubsampling, losslessText, codec, tileCacheSize,
+                    moveDetection, downscaleSlowReceivers, previews,
+                    sendQueueFrames, queuePolicy, maxDroppedFrames);
+        }
+    }
+
+    public final int tileSize;
+    public final int keyframeInterval;
+    public final int stripes;
+    public final float jpegQuality;
+    public final ImageEncoder.ChromaSubsampling chromaSubsampling;
+    public final boolean losslessText;
+    public final /* nullable */ FrameCodec codec;
+    public final int tileCacheSize;
+    public final boolean moveDetection;
+    public final boolean downscaleSlowReceivers;
+    public final boolean previews;
+    public final int sendQueueFrames;
+    public final QueuePolicy queuePolicy;
+    public final int maxDroppedFrames;
+
+    private EncodingOptions(int tileSize,
+                            int keyframeInterval,
+                            int stripes,
+                            float jpegQuality,
+                            ImageEncoder.ChromaSubsampling chromaSubsampling,
+                            boolean losslessText,
+                            FrameCodec codec,
+                            int tileCacheSize,
+                            boolean moveDetection,
+                            boolean downscaleSlowReceivers,
+                            boolean previews,
+                            int sendQueueFrames,
+                            QueuePolicy queuePolicy,
+                            int maxDroppedFrames) {
+        this.tileSize = tileSize;
+        this.keyframeInterval = keyframeInterval;
+        this.stripes = stripes;
+        this.jpegQuality = jpegQuality;
+        this.chromaSubsampling = chromaSubsampling;
+        this.losslessText = losslessText;
+        this.codec = codec;
+        this.tileCacheSize = tileCacheSize;
+        this.moveDetection = moveDetection;
+        this.downscaleSlowReceivers = downscaleSlowReceivers;
+        this.previews = previews;
+        this.sendQueueFrames = sendQueueFrames;
+        this.queuePolicy = queuePolicy;
+        this.maxDroppedFrames = maxDroppedFrames;
+    }
+
+    public boolean deltaEnabled() {
+        return keyframeInterval > 1;
+    }
+}
@@ -0,0 +1,130 @@
+package main.encoding;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable in-memory ImageOutputStream that frames are serialized into.
+ *
+ * ImageWriters write straight into the buffer (they may seek backwards, e.g.
+ * to patch PNG chunk lengths), so an encoded frame is built in place: header,
+ * payload fields and image bytes, with the payload length patched in at the
+ * end. The only copy is the final toByteArray().
+ *
+ * Buffers are pooled per thread, since encoding happens on a handful of
+ * long-lived threads and reusing the backing array avoids reallocating a
+ * frame-sized array for every frame. Use acquire() in a try-with-resources
+ * block; close() returns the buffer to the pool.
+ */
+public class FrameBuffer extends ImageOutputStreamImpl {
+    private final static int INITIAL_CAPACITY = 64 * 1024;
+
+    private final static ThreadLocal<FrameBuffer> POOL =
+            ThreadLocal.withInitial(FrameBuffer::new);
+
+    private byte[] buffer;
+    private int length;
+    private boolean inUse;
+
+    private FrameBuffer() {
+        this.buffer = new byte[INITIAL_CAPACITY];
+        this.length = 0;
+        this.inUse = false;
+    }
+
+    /**
+     * @return An empty buffer. This is the calling thread's pooled buffer
+     *      unless that one is already in use further up the stack.
+     */
+    public static FrameBuffer acquire() {
+        FrameBuffer frameBuffer = POOL.get();
+        if (frameBuffer.inUse)
+            frameBuffer = new FrameBuffer();
+
+        frameBuffer.inUse = true;
+        frameBuffer.length = 0;
+        frameBuffer.streamPos = 0;
+        frameBuffer.flushedPos = 0;
+        frameBuffer.bitOffset = 0;
+        return frameBuffer;
+    }
+
+    private void ensureCapacity(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE - 8)
+            throw new IOException("Frame too large: " + capacity + " bytes");
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, (int)Math.max(capacity, 2L * buffer.length));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        ensureCapacity(streamPos + 1);
+        buffer[(int)streamPos++] = (byte)b;
+        length = Math.max(length, (int)streamPos);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        ensureCapacity(streamPos + len);
+        System.arraycopy(b, off, buffer, (int)streamPos, len);
+        streamPos += len;
+        length = Math.max(length, (int)streamPos);
+    }
+
+    @Override
+    public int read() throws IOException {
+        bitOffset = 0;
+        if (streamPos >= length)
+            return -1;
+        return buffer[(int)streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        bitOffset = 0;
+        if (streamPos >= length)
+            return -1;
+
+        len = Math.min(len, length - (int)streamPos);
+        System.arraycopy(buffer, (int)streamPos, b, off, len);
+        streamPos += len;
+        return len;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    // Everything stays in memory, and we need to be able to seek back to
+    // patch lengths after an ImageWriter flushes, so flushing is a no-op.
+    @Override
+    public void flushBefore(long pos) {
+    }
+
+    // Overwrites a long written earlier without moving the stream position.
+    public void writeLongAt(long position, long value) throws IOException {
+        long end = getStreamPosition();
+        seek(position);
+        writeLong(value);
+        seek(end);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        stream.write(buffer, 0, length);
+    }
+
+    // Returns the buffer to the pool rather than closing it for good.
+    @Override
+    public void close() {
+        inUse = false;
+    }
+}
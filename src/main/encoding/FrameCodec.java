@@ -0,0 +1,57 @@
+package main.encoding;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns images into bytes and back. Every encoded frame records the id of the
+ * codec its images were encoded with (see Snapshot), so receivers look the
+ * codec up in FrameCodecs rather than having to know it out of band.
+ *
+ * Codecs are used for whole frames as well as for the images inside delta
+ * and striped frames. Implementations must be threadsafe.
+ */
+public interface FrameCodec {
+    /**
+     * @return The id written on the wire. Must be unique among registered
+     *      codecs.
+     */
+    public byte getId();
+
+    public String getName();
+
+    /**
+     * Writes the encoded image at the stream's current position.
+     */
+    public void encode(BufferedImage image, ImageOutputStream output) throws IOException;
+
+    public default byte[] encode(BufferedImage image) throws IOException {
+        try (FrameBuffer buffer = FrameBuffer.acquire()) {
+            encode(image, buffer);
+            return buffer.toByteArray();
+        }
+    }
+
+    /**
+     * Whether encode(YuvPlanes, ...) takes the planes as they are rather than
+     * converting them back into an image.
+     */
+    public default boolean acceptsPlanes() {
+        return false;
+    }
+
+    /**
+     * Writes the encoded planes at the stream's current position. Decoding
+     * gives back an image, as for encode(BufferedImage, ...).
+     */
+    public default void encode(YuvPlanes planes, ImageOutputStream output) throws IOException {
+        encode(planes.toImage(), output);
+    }
+
+    /**
+     * Reads an image written by encode(). May consume the rest of the stream.
+     */
+    public BufferedImage decode(InputStream stream) throws IOException;
+}
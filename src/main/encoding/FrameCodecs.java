@@ -0,0 +1,51 @@
+package main.encoding;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Registry of the codecs this node can decode, by wire id.
+ *
+ * Nodes that receive a frame with a codec they don't know can still forward
+ * it to their children (relays never decode); only decoding it locally
+ * fails.
+ */
+public class FrameCodecs {
+    public final static byte PNG_ID = 0;
+    public final static byte JPEG_ID = 1;
+    public final static byte DEFLATE_ID = 2;
+    public final static byte HYBRID_ID = 3;
+    public final static byte PALETTE_ID = 4;
+
+    private final static ConcurrentHashMap<Byte, FrameCodec> codecs =
+            new ConcurrentHashMap<>();
+
+    static {
+        register(ImageEncoder.PNG);
+        register(ImageEncoder.JPEG);
+        register(DeflateCodec.INSTANCE);
+        register(HybridCodec.INSTANCE);
+        register(PaletteCodec.INSTANCE);
+    }
+
+    private FrameCodecs() {}
+
+    public static void register(FrameCodec codec) {
+        FrameCodec existing = codecs.putIfAbsent(codec.getId(), codec);
+        checkArgument(existing == null || existing.getName().equals(codec.getName()),
+                "Codec id %s is already used by %s", codec.getId(), existing);
+    }
+
+    // The codec used when no options are given.
+    public static FrameCodec defaultCodec(boolean lossy) {
+        return lossy ? ImageEncoder.JPEG : DeflateCodec.INSTANCE;
+    }
+
+    /**
+     * @return The codec with the given id, or null if we don't know it.
+     */
+    public static FrameCodec get(byte id) {
+        return codecs.get(id);
+    }
+}
@@ -0,0 +1,59 @@
+package main.encoding;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A 64-bit hash of a whole frame, used to recognize captures identical to
+ * the previous one without comparing them pixel by pixel.
+ *
+ * Every row is hashed (a sampled hash could miss a small change, e.g. a
+ * blinking cursor, and leave it off the screen indefinitely), but the rows
+ * are split into bands hashed in parallel and read through PixelRows.
+ */
+public class FrameFingerprint {
+    // Bands smaller than this aren't worth a task.
+    private final static int MIN_BAND_PIXELS = 64 * 1024;
+
+    private final static ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    private FrameFingerprint() {}
+
+    // FNV-1a over whole pixels.
+    private static long hashPixels(long hash, int[] pixels, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++)
+            hash = (hash ^ (pixels[i] & 0xffffff)) * 0x100000001b3L;
+        return hash;
+    }
+
+    private static long hashBand(PixelRows pixels, int y0, int y1) {
+        int width = pixels.getWidth();
+        int[] scratch = new int[width];
+        long hash = 0xcbf29ce484222325L;
+        for (int y = y0; y < y1; y++)
+            hash = hashPixels(hash, pixels.getRow(y, scratch), pixels.getRowStart(y), width);
+        return hash;
+    }
+
+    public static long of(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        int bandHeight = Math.max(1, MIN_BAND_PIXELS / Math.max(width, 1));
+        bandHeight = Math.max(bandHeight,
+                (height + POOL.getParallelism() - 1) / POOL.getParallelism());
+
+        PixelRows pixels = new PixelRows(image);
+        List<ForkJoinTask<Long>> tasks = new ArrayList<>();
+        for (int y = 0; y < height; y += bandHeight) {
+            int y0 = y, y1 = Math.min(y + bandHeight, height);
+            tasks.add(POOL.submit(() -> hashBand(pixels, y0, y1)));
+        }
+
+        long hash = ((long)width << 32) | height;
+        for (ForkJoinTask<Long> task : tasks)
+            hash = hash * 31 + task.join();
+        return hash;
+    }
+}
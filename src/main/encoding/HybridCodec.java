@@ -0,0 +1,174 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Encodes each tile of an image either losslessly or lossily, as decided by
+ * TileClassifier, so that text and UI stay sharp while photos and video are
+ * sent at the size of a lossy frame.
+ *
+ * The lossless tiles are encoded with DeflateCodec as the whole image with
+ * the lossy tiles blacked out (which costs almost nothing and keeps rows
+ * intact for its filters). The lossy tiles are packed into an atlas (see
+ * TileDelta) encoded with JPEG. Tiles are a multiple of JPEG's 16x16 blocks,
+ * so lossy tiles don't bleed into each other in the atlas.
+ *
+ * The encoding is:
+ *
+ *      width (int)
+ *      height (int)
+ *      tile size (int)
+ *      whether each tile is lossless, a bit per tile in raster order, packed
+ *          into bytes from the most significant bit
+ *      length of the lossless image (int; 0 if every tile is lossy)
+ *      lossless image
+ *      lossy atlas (remaining bytes; omitted if every tile is lossless)
+ *
+ * Decoding doesn't depend on the settings, so all instances share a codec id.
+ */
+public class HybridCodec implements FrameCodec {
+    public final static int DEFAULT_TILE_SIZE = 32;
+
+    private final static int TILE_ALIGNMENT = 16;
+
+    public final static HybridCodec INSTANCE =
+            new HybridCodec(DEFAULT_TILE_SIZE, ImageEncoder.JPEG);
+
+    private final int tileSize;
+    private final ImageEncoder lossyCodec;
+
+    /**
+     * @param lossyCodec The JPEG encoder for the lossy tiles.
+     */
+    public HybridCodec(int tileSize, ImageEncoder lossyCodec) {
+        checkArgument(tileSize > 0 && tileSize % TILE_ALIGNMENT == 0,
+                "Illegal tile size %s", tileSize);
+        checkArgument(lossyCodec.getId() == FrameCodecs.JPEG_ID,
+                "Lossy tiles must be JPEG, not %s", lossyCodec);
+        this.tileSize = tileSize;
+        this.lossyCodec = lossyCodec;
+    }
+
+    @Override
+    public byte getId() {
+        return FrameCodecs.HYBRID_ID;
+    }
+
+    @Override
+    public String getName() {
+        return "hybrid";
+    }
+
+    // A TYPE_INT_RGB copy of the image with the given tiles blacked out.
+    private static BufferedImage withoutTiles(BufferedImage image,
+                                              TileGrid grid,
+                                              List<Integer> tiles) {
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        result.setRGB(0, 0, width, height,
+                image.getRGB(0, 0, width, height, null, 0, width), 0, width);
+
+        Graphics2D graphics = result.createGraphics();
+        graphics.setColor(Color.BLACK);
+        for (int index : tiles) {
+            Rectangle tile = grid.getTile(index);
+            graphics.fillRect(tile.x, tile.y, tile.width, tile.height);
+        }
+        graphics.dispose();
+        return result;
+    }
+
+    @Override
+    public void encode(BufferedImage image, ImageOutputStream output) throws IOException {
+        TileGrid grid = TileGrid.forImage(image, tileSize);
+        boolean[] lossless = TileClassifier.classify(new PixelRows(image), grid);
+
+        List<Integer> lossyTiles = new ArrayList<>();
+        byte[] bits = new byte[(lossless.length + 7) / 8];
+        for (int i = 0; i < lossless.length; i++) {
+            if (lossless[i])
+                bits[i / 8] |= 0x80 >>> (i % 8);
+            else
+                lossyTiles.add(i);
+        }
+
+        output.writeInt(image.getWidth());
+        output.writeInt(image.getHeight());
+        output.writeInt(tileSize);
+        output.write(bits);
+
+        if (lossyTiles.size() == lossless.length)
+            output.writeInt(0);
+        else {
+            byte[] losslessBytes = DeflateCodec.INSTANCE.encode(lossyTiles.isEmpty()
+                    ? image
+                    : withoutTiles(image, grid, lossyTiles));
+            output.writeInt(losslessBytes.length);
+            output.write(losslessBytes);
+        }
+
+        if (!lossyTiles.isEmpty())
+            lossyCodec.encode(TileDelta.createAtlas(grid, image, lossyTiles), output);
+    }
+
+    @Override
+    public BufferedImage decode(InputStream stream) throws IOException {
+        int width = Serialization.readInt(stream);
+        int height = Serialization.readInt(stream);
+        int tileSize = Serialization.readInt(stream);
+        if (width <= 0 || height <= 0 || tileSize <= 0)
+            throw new IOException(String.format(
+                    "Illegal hybrid image: %sx%s in tiles of %s", width, height, tileSize));
+
+        TileGrid grid = new TileGrid(width, height, tileSize);
+        byte[] bits = Serialization.read(stream, (grid.numTiles() + 7) / 8);
+        List<Integer> lossyTiles = new ArrayList<>();
+        for (int i = 0; i < grid.numTiles(); i++)
+            if ((bits[i / 8] & (0x80 >>> (i % 8))) == 0)
+                lossyTiles.add(i);
+
+        int losslessLength = Serialization.readInt(stream);
+        BufferedImage image;
+        if (losslessLength > 0) {
+            image = DeflateCodec.INSTANCE.decode(
+                    new ByteArrayInputStream(Serialization.read(stream, losslessLength)));
+            if (image.getWidth() != width || image.getHeight() != height)
+                throw new IOException(String.format(
+                        "Lossless image is %sx%s instead of %sx%s",
+                        image.getWidth(), image.getHeight(), width, height));
+        } else
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        if (lossyTiles.isEmpty())
+            return image;
+
+        BufferedImage atlas = ImageEncoder.JPEG.decode(stream);
+        int columns = TileDelta.atlasColumns(lossyTiles.size());
+        int[] pixels = new int[tileSize * tileSize];
+        for (int i = 0; i < lossyTiles.size(); i++) {
+            Rectangle tile = grid.getTile(lossyTiles.get(i));
+            atlas.getRGB(
+                    (i % columns) * tileSize,
+                    (i / columns) * tileSize,
+                    tile.width, tile.height, pixels, 0, tile.width);
+            image.setRGB(tile.x, tile.y, tile.width, tile.height, pixels, 0, tile.width);
+        }
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,212 @@
+package main.encoding;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compares images pixel by pixel on their rasters (see PixelRows) rather than
+ * through getRGB(x, y). Pixels are compared as getRGB() would return them,
+ * so images of different types with the same colors are equal.
+ *
+ * Large images are compared in bands of rows on the common ForkJoinPool.
+ */
+public class ImageComparison {
+    // Below this, splitting the work costs more than it saves.
+    private final static int MIN_PARALLEL_PIXELS = 512 * 512;
+    private final static int MIN_BAND_PIXELS = 64 * 1024;
+
+    private final static ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    private ImageComparison() {}
+
+    // Both images' rows, for one thread.
+    private static class Comparer {
+        private final PixelRows lhs;
+        private final PixelRows rhs;
+        // OR-ed into pixels of images without alpha, whose alpha byte may be
+        // undefined (see PixelRows) but reads as opaque through getRGB().
+        private final int lhsAlpha;
+        private final int rhsAlpha;
+        private final int[] lhsScratch;
+        private final int[] rhsScratch;
+
+        private Comparer(PixelRows lhs, PixelRows rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.lhsAlpha = lhs.hasAlpha() ? 0 : 0xff000000;
+            this.rhsAlpha = rhs.hasAlpha() ? 0 : 0xff000000;
+            this.lhsScratch = new int[lhs.getWidth()];
+            this.rhsScratch = new int[rhs.getWidth()];
+        }
+
+        private boolean rowsEqual(int y) {
+            int[] l = lhs.getRow(y, lhsScratch), r = rhs.getRow(y, rhsScratch);
+            int lStart = lhs.getRowStart(y), rStart = rhs.getRowStart(y);
+            for (int x = 0, width = lhs.getWidth(); x < width; x++)
+                if ((l[lStart + x] | lhsAlpha) != (r[rStart + x] | rhsAlpha))
+                    return false;
+            return true;
+        }
+
+        // Stores the first and last changed column of row y in changed[2y]
+        // and changed[2y + 1], or -1 if the row is unchanged.
+        private void findChangedColumns(int y, int[] changed) {
+            int[] l = lhs.getRow(y, lhsScratch), r = rhs.getRow(y, rhsScratch);
+            int lStart = lhs.getRowStart(y), rStart = rhs.getRowStart(y);
+            int width = lhs.getWidth(), first = 0, last = width - 1;
+
+            while (first < width &&
+                    (l[lStart + first] | lhsAlpha) == (r[rStart + first] | rhsAlpha))
+                first++;
+            if (first == width) {
+                changed[2 * y] = changed[2 * y + 1] = -1;
+                return;
+            }
+            while ((l[lStart + last] | lhsAlpha) == (r[rStart + last] | rhsAlpha))
+                last--;
+
+            changed[2 * y] = first;
+            changed[2 * y + 1] = last;
+        }
+
+        // Marks the tiles row y differs in, skipping those already marked.
+        private void findChangedTiles(int y, TileGrid grid, boolean[] changed) {
+            int[] l = lhs.getRow(y, lhsScratch), r = rhs.getRow(y, rhsScratch);
+            int lStart = lhs.getRowStart(y), rStart = rhs.getRowStart(y);
+            int firstTile = (y / grid.tileSize) * grid.columns;
+
+            for (int column = 0; column < grid.columns; column++) {
+                if (changed[firstTile + column])
+                    continue;
+
+                int x0 = column * grid.tileSize, x1 = Math.min(x0 + grid.tileSize, grid.width);
+                for (int x = x0; x < x1; x++) {
+                    if ((l[lStart + x] | lhsAlpha) != (r[rStart + x] | rhsAlpha)) {
+                        changed[firstTile + column] = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private interface BandTask {
+        void run(Comparer comparer, int y0, int y1);
+    }
+
+    // Runs the task over all rows, in parallel bands if the images are large.
+    private static void forEachBand(BufferedImage lhs, BufferedImage rhs, BandTask task) {
+        PixelRows lhsRows = new PixelRows(lhs), rhsRows = new PixelRows(rhs);
+        int width = lhs.getWidth(), height = lhs.getHeight();
+
+        if ((long)width * height < MIN_PARALLEL_PIXELS) {
+            task.run(new Comparer(lhsRows, rhsRows), 0, height);
+            return;
+        }
+
+        int bandHeight = Math.max(MIN_BAND_PIXELS / width,
+                (height + POOL.getParallelism() - 1) / POOL.getParallelism());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int y = 0; y < height; y += bandHeight) {
+            int y0 = y, y1 = Math.min(y + bandHeight, height);
+            tasks.add(POOL.submit(
+                    () -> task.run(new Comparer(lhsRows, rhsRows), y0, y1)));
+        }
+        for (ForkJoinTask<?> band : tasks)
+            band.join();
+    }
+
+    private static boolean sameSize(BufferedImage lhs, BufferedImage rhs) {
+        return lhs.getWidth() == rhs.getWidth() && lhs.getHeight() == rhs.getHeight();
+    }
+
+    /**
+     * @return Whether the images have the same dimensions and pixels. Stops
+     *      at the first difference.
+     */
+    public static boolean equal(BufferedImage lhs, BufferedImage rhs) {
+        if (!sameSize(lhs, rhs))
+            return false;
+
+        AtomicBoolean differ = new AtomicBoolean(false);
+        forEachBand(lhs, rhs, (comparer, y0, y1) -> {
+            for (int y = y0; y < y1 && !differ.get(); y++)
+                if (!comparer.rowsEqual(y))
+                    differ.set(true);
+        });
+        return !differ.get();
+    }
+
+    /**
+     * @return The indexes of the grid's tiles that differ between the images,
+     *      in order.
+     */
+    public static List<Integer> findChangedTiles(TileGrid grid,
+                                                 BufferedImage previous,
+                                                 BufferedImage current) {
+        checkArgument(sameSize(previous, current) && grid.matches(current),
+                "Can't compare a %sx%s image to a %sx%s one in a %sx%s grid",
+                previous.getWidth(), previous.getHeight(),
+                current.getWidth(), current.getHeight(),
+                grid.width, grid.height);
+
+        // Bands can share a row of tiles, but only ever set them.
+        boolean[] changed = new boolean[grid.numTiles()];
+        forEachBand(previous, current, (comparer, y0, y1) -> {
+            for (int y = y0; y < y1; y++)
+                comparer.findChangedTiles(y, grid, changed);
+        });
+
+        List<Integer> tiles = new ArrayList<>();
+        for (int i = 0; i < changed.length; i++)
+            if (changed[i])
+                tiles.add(i);
+        return tiles;
+    }
+
+    /**
+     * Finds the parts of the image that changed, as one bounding box per run
+     * of consecutive changed rows.
+     *
+     * @return The boxes from top to bottom; empty if the images are equal.
+     */
+    public static List<Rectangle> findChangedRegions(BufferedImage previous,
+                                                     BufferedImage current) {
+        checkArgument(sameSize(previous, current),
+                "Can't compare a %sx%s image to a %sx%s one",
+                previous.getWidth(), previous.getHeight(),
+                current.getWidth(), current.getHeight());
+
+        int height = current.getHeight();
+        int[] changed = new int[2 * height];
+        forEachBand(previous, current, (comparer, y0, y1) -> {
+            for (int y = y0; y < y1; y++)
+                comparer.findChangedColumns(y, changed);
+        });
+
+        List<Rectangle> regions = new ArrayList<>();
+        Rectangle region = null;
+        for (int y = 0; y < height; y++) {
+            int first = changed[2 * y], last = changed[2 * y + 1];
+            if (first < 0) {
+                region = null;
+                continue;
+            }
+
+            Rectangle row = new Rectangle(first, y, last - first + 1, 1);
+            if (region == null) {
+                region = row;
+                regions.add(region);
+            } else
+                region.add(row);
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,235 @@
+package main.encoding;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The PNG and JPEG codecs: encodes images with fixed settings and decodes
+ * them with ImageIO.
+ *
+ * ImageIO.write() looks up a writer, builds its parameters and creates a
+ * (by default file-backed) cache stream on every call. This class instead
+ * keeps one ImageWriter, ImageWriteParam and metadata per thread (writers
+ * aren't threadsafe) and writes straight into the caller's stream, typically a
+ * FrameBuffer.
+ *
+ * JPEG with 4:2:0 chroma subsampling converts images into YuvPlanes itself
+ * (with integer math, across cores) and hands ImageIO the YCbCr samples, so
+ * that the writer doesn't do its own color conversion. ImageIO only takes
+ * full resolution rasters, so the chroma is repeated over each 2x2 block and
+ * the writer subsamples it again (see YuvPlanes.toInterleavedRaster()).
+ *
+ * Instances are immutable and threadsafe.
+ */
+public class ImageEncoder implements FrameCodec {
+    /**
+     * Resolution of the chroma channels relative to luma for JPEG.
+     */
+    public enum ChromaSubsampling {
+        YUV444(1, 1),  // full color resolution; best for text
+        YUV422(2, 1),
+        YUV420(2, 2);  // JPEG's default
+
+        private final int horizontal;
+        private final int vertical;
+
+        ChromaSubsampling(int horizontal, int vertical) {
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+    }
+
+    private final static String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private final static ImageTypeSpecifier RGB_TYPE =
+            ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB);
+
+    public final static float DEFAULT_JPEG_QUALITY = 0.75f;
+
+    public final static ImageEncoder PNG =
+            new ImageEncoder(FrameCodecs.PNG_ID, "png", 0, null);
+    public final static ImageEncoder JPEG =
+            jpeg(DEFAULT_JPEG_QUALITY, ChromaSubsampling.YUV420);
+
+    // The ImageIO state for one thread.
+    private class Writer {
+        private final ImageWriter writer;
+        private final ImageWriteParam param;
+
+        // Metadata depends on the image type, which is almost always the
+        // same from frame to frame.
+        private ImageTypeSpecifier metadataType;
+        private IIOMetadata metadata;
+        private IIOMetadata planesMetadata;
+
+        private Writer() {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+            if (!writers.hasNext())
+                throw new IllegalStateException("No ImageWriter for " + format);
+
+            this.writer = writers.next();
+            this.param = writer.getDefaultWriteParam();
+            if (isJpeg()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+        }
+
+        private IIOMetadata getMetadata(BufferedImage image) throws IOException {
+            if (!isJpeg())
+                return null;
+
+            ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(image);
+            if (!type.equals(metadataType)) {
+                metadata = createJpegMetadata(writer, param, type, subsampling);
+                metadataType = type;
+            }
+            return metadata;
+        }
+
+        // Rasters carry no color model; a JPEG writer given the metadata of
+        // an RGB image treats three band rasters as YCbCr and writes them as
+        // they are.
+        private IIOMetadata getPlanesMetadata() throws IOException {
+            if (planesMetadata == null)
+                planesMetadata = createJpegMetadata(writer, param, RGB_TYPE, subsampling);
+            return planesMetadata;
+        }
+
+        private void write(IIOImage image, ImageOutputStream output) throws IOException {
+            writer.setOutput(output);
+            try {
+                writer.write(null, image, param);
+            } finally {
+                writer.setOutput(null);
+            }
+        }
+
+        private void write(BufferedImage image, ImageOutputStream output)
+                throws IOException {
+            write(new IIOImage(image, null, getMetadata(image)), output);
+        }
+
+        private void write(YuvPlanes planes, ImageOutputStream output) throws IOException {
+            write(new IIOImage(planes.toInterleavedRaster(), null, getPlanesMetadata()), output);
+        }
+    }
+
+    private final byte id;
+    private final String format;
+    private final float quality;
+    private final ChromaSubsampling subsampling;
+    private final ThreadLocal<Writer> writers;
+
+    private ImageEncoder(byte id,
+                         String format,
+                         float quality,
+                         ChromaSubsampling subsampling) {
+        this.id = id;
+        this.format = format;
+        this.quality = quality;
+        this.subsampling = subsampling;
+        this.writers = ThreadLocal.withInitial(Writer::new);
+    }
+
+    /**
+     * All JPEG encoders share the same codec id, since decoding doesn't
+     * depend on the settings.
+     *
+     * @param quality Between 0 (smallest) and 1 (best quality).
+     */
+    public static ImageEncoder jpeg(float quality, ChromaSubsampling subsampling) {
+        checkArgument(quality >= 0 && quality <= 1, "Illegal JPEG quality %s", quality);
+        return new ImageEncoder(FrameCodecs.JPEG_ID, "jpeg", quality, subsampling);
+    }
+
+    @Override
+    public byte getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return format;
+    }
+
+    private boolean isJpeg() {
+        return format.equals("jpeg");
+    }
+
+    private static IIOMetadata createJpegMetadata(ImageWriter writer,
+                                                  ImageWriteParam param,
+                                                  ImageTypeSpecifier type,
+                                                  ChromaSubsampling subsampling)
+            throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(type, param);
+        if (subsampling == ChromaSubsampling.YUV420)
+            return metadata;  // already the default
+
+        // The sampling factors live on the frame header's component specs.
+        // The first component is luma; chroma components stay at 1x1.
+        IIOMetadataNode tree = (IIOMetadataNode)metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = tree.getElementsByTagName("componentSpec");
+        if (components.getLength() > 1) {
+            Element luma = (Element)components.item(0);
+            luma.setAttribute("HsamplingFactor", Integer.toString(subsampling.horizontal));
+            luma.setAttribute("VsamplingFactor", Integer.toString(subsampling.vertical));
+            metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+        }
+        return metadata;
+    }
+
+    // JPEG with 4:2:0 chroma throws away the same chroma resolution the
+    // planes do, so it can encode them without converting back.
+    @Override
+    public boolean acceptsPlanes() {
+        return isJpeg() && subsampling == ChromaSubsampling.YUV420;
+    }
+
+    @Override
+    public void encode(BufferedImage image, ImageOutputStream output) throws IOException {
+        if (acceptsPlanes())
+            encode(YuvPlanes.fromImage(image), output);
+        else
+            writers.get().write(image, output);
+    }
+
+    @Override
+    public void encode(YuvPlanes planes, ImageOutputStream output) throws IOException {
+        if (acceptsPlanes())
+            writers.get().write(planes, output);
+        else
+            writers.get().write(planes.toImage(), output);
+    }
+
+    // Reads through a memory cache; ImageIO.read(InputStream) would otherwise
+    // cache the stream in a temporary file.
+    @Override
+    public BufferedImage decode(InputStream stream) throws IOException {
+        BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(stream));
+        if (image == null)
+            throw new IOException("Unable to decode " + format + " image");
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return format;
+    }
+}
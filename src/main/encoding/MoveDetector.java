@@ -0,0 +1,128 @@
+package main.encoding;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects content that moved vertically or horizontally between two frames,
+ * like a scrolled document, so that it can be sent as a CopyRect plus the
+ * newly exposed strip instead of as nearly every tile.
+ *
+ * Every row (for vertical moves; columns for horizontal ones) of the changed
+ * region is hashed in both frames. Rows of the current frame vote for the
+ * offsets at which the previous frame had the same row, and the longest run
+ * of rows that match at the winning offset becomes the copy.
+ */
+public class MoveDetector {
+    // Moves shorter than this many rows (or columns) aren't worth a copy.
+    private final static int MIN_RUN = 16;
+
+    // Rows that occur this often (e.g., blank ones) say nothing about where
+    // content moved, so they don't vote.
+    private final static int MAX_OCCURRENCES = 4;
+
+    private MoveDetector() {}
+
+    // Hashes each row (or column) of the region.
+    private static long[] hashLines(BufferedImage image, Rectangle region, boolean rows) {
+        int count = rows ? region.height : region.width;
+        long[] hashes = new long[count];
+        int[] scratch = new int[Math.max(region.width, region.height)];
+
+        for (int i = 0; i < count; i++) {
+            Rectangle line = rows
+                    ? new Rectangle(region.x, region.y + i, region.width, 1)
+                    : new Rectangle(region.x + i, region.y, 1, region.height);
+            hashes[i] = TileCache.hash(image, line, scratch);
+        }
+        return hashes;
+    }
+
+    // Returns the offset (previous line - current line) most lines agree on,
+    // or 0 if there isn't one.
+    private static int findOffset(long[] previous, long[] current) {
+        Map<Long, List<Integer>> previousLines = new HashMap<>();
+        for (int i = 0; i < previous.length; i++)
+            previousLines.computeIfAbsent(previous[i], hash -> new ArrayList<>()).add(i);
+
+        Map<Integer, Integer> votes = new HashMap<>();
+        for (int i = 0; i < current.length; i++) {
+            List<Integer> matches = previousLines.get(current[i]);
+            if (matches == null || matches.size() > MAX_OCCURRENCES)
+                continue;
+            for (int match : matches)
+                if (match != i)
+                    votes.merge(match - i, 1, Integer::sum);
+        }
+
+        int best = 0, bestVotes = MIN_RUN - 1;
+        for (Map.Entry<Integer, Integer> entry : votes.entrySet())
+            if (entry.getValue() > bestVotes) {
+                best = entry.getKey();
+                bestVotes = entry.getValue();
+            }
+        return best;
+    }
+
+    // Returns {start, length} of the longest run of current lines that equal
+    // the previous lines at the offset.
+    private static int[] longestRun(long[] previous, long[] current, int offset) {
+        int bestStart = 0, bestLength = 0;
+        for (int i = 0, run = 0; i < current.length; i++) {
+            int j = i + offset;
+            if (j >= 0 && j < previous.length && previous[j] == current[i]) {
+                run++;
+                if (run > bestLength) {
+                    bestLength = run;
+                    bestStart = i - run + 1;
+                }
+            } else
+                run = 0;
+        }
+        return new int[] { bestStart, bestLength };
+    }
+
+    private static CopyRect detect(BufferedImage previous,
+                                   BufferedImage current,
+                                   Rectangle region,
+                                   boolean vertical) {
+        long[] previousLines = hashLines(previous, region, vertical);
+        long[] currentLines = hashLines(current, region, vertical);
+
+        int offset = findOffset(previousLines, currentLines);
+        if (offset == 0)
+            return null;
+
+        int[] run = longestRun(previousLines, currentLines, offset);
+        if (run[1] < MIN_RUN)
+            return null;
+
+        if (vertical)
+            return new CopyRect(
+                    region.x, region.y + run[0] + offset, region.width, run[1],
+                    region.x, region.y + run[0]);
+        return new CopyRect(
+                region.x + run[0] + offset, region.y, run[1], region.height,
+                region.x + run[0], region.y);
+    }
+
+    /**
+     * @param region The part of the frames that changed. Both frames must
+     *      have the same dimensions.
+     * @return A copy that turns previous into something closer to current, or
+     *      null if nothing in the region moved.
+     */
+    public static CopyRect detect(BufferedImage previous,
+                                  BufferedImage current,
+                                  Rectangle region) {
+        // Vertical scrolling is by far the most common.
+        CopyRect move = detect(previous, current, region, true);
+        if (move == null)
+            move = detect(previous, current, region, false);
+        return move;
+    }
+}
@@ -0,0 +1,410 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A lossless codec for screen content with few colors (terminals, IDEs,
+ * slides): each tile with at most MAX_COLORS colors is sent as its palette
+ * plus an index per pixel, packed into as few bits as the palette needs, or
+ * as runs of indexes if that's smaller (e.g., for mostly flat tiles). Tiles
+ * with more colors are packed into an atlas (see TileDelta) encoded with
+ * DeflateCodec.
+ *
+ * Indexes are a byte per pixel at most, rather than DeflateCodec's three
+ * filtered bytes, so even deflating them at the default level is cheap; on
+ * text the result is smaller than PNG and more than an order of magnitude
+ * faster.
+ *
+ * The encoding is:
+ *
+ *      width (int)
+ *      height (int)
+ *      tile size (int)
+ *      length of the tiles (int)
+ *      length of the deflated tiles (int)
+ *      deflated, for each tile in raster order:
+ *          kind (byte): PACKED, RUNS or DEFLATED
+ *          unless DEFLATED:
+ *              number of colors - 1 (byte)
+ *              3 bytes (R, G, B) per color
+ *          if PACKED, for each row of the tile: the indexes, 0, 1, 2, 4 or 8
+ *              bits each (the fewest that fit the palette) from the most
+ *              significant bit, padded to a byte
+ *          if RUNS, runs of indexes in raster order until the tile is full:
+ *              index (byte)
+ *              length - 1 (varint: 7 bits per byte, least significant first,
+ *                  high bit set on all but the last)
+ *      atlas of the DEFLATED tiles (remaining bytes; omitted if there are
+ *          none)
+ *
+ * Decoding doesn't depend on the settings, so all instances share a codec id.
+ */
+public class PaletteCodec implements FrameCodec {
+    // Larger tiles need fewer palettes but have more colors.
+    public final static int DEFAULT_TILE_SIZE = 64;
+    public final static int MAX_COLORS = 256;
+
+    // Bound what a corrupt header can make the decoder allocate, along with
+    // the most bytes the tiles of an image that size can take.
+    private final static int MAX_TILE_SIZE = 1024;
+    private final static int MAX_PIXELS = 1 << 25;  // an 8K screen fits
+
+    private final static byte PACKED = 0;
+    private final static byte RUNS = 1;
+    private final static byte DEFLATED = 2;
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    public final static PaletteCodec INSTANCE = new PaletteCodec(DEFAULT_TILE_SIZE);
+
+    // Native memory, like DeflateCodec's. The indexes are small enough that
+    // the default level costs little more than the fastest.
+    private final static ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+    private final static ThreadLocal<Inflater> INFLATERS =
+            ThreadLocal.withInitial(Inflater::new);
+
+    private final int tileSize;
+
+    public PaletteCodec(int tileSize) {
+        checkArgument(tileSize > 0 && tileSize <= MAX_TILE_SIZE, "Illegal tile size %s", tileSize);
+        this.tileSize = tileSize;
+    }
+
+    @Override
+    public byte getId() {
+        return FrameCodecs.PALETTE_ID;
+    }
+
+    @Override
+    public String getName() {
+        return "palette";
+    }
+
+    private static int bitsPerIndex(int numColors) {
+        if (numColors <= 1)
+            return 0;
+        if (numColors <= 2)
+            return 1;
+        if (numColors <= 4)
+            return 2;
+        return numColors <= 16 ? 4 : 8;
+    }
+
+    private static int rowBytes(int width, int bits) {
+        return (width * bits + 7) / 8;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+            length++;
+        return length;
+    }
+
+    // The reusable state for encoding one image.
+    private static class TileEncoder {
+        private final PixelRows pixels;
+        private final ColorTable colors;
+        private final int[] scratch;
+        private final byte[] indexes;
+        // The tile as written: at most the header and a byte per pixel.
+        private final byte[] buffer;
+        private int length;
+
+        private TileEncoder(BufferedImage image, int tileSize) {
+            this.pixels = new PixelRows(image);
+            this.colors = new ColorTable(MAX_COLORS);
+            this.scratch = new int[image.getWidth()];
+            this.indexes = new byte[tileSize * tileSize];
+            this.buffer = new byte[2 + 3 * MAX_COLORS + tileSize * tileSize];
+        }
+
+        // Fills in indexes, or returns false if the tile has too many colors.
+        private boolean index(Rectangle tile) {
+            colors.clear();
+            int i = 0;
+            for (int y = tile.y; y < tile.y + tile.height; y++) {
+                int[] row = pixels.getRow(y, scratch);
+                int start = pixels.getRowStart(y) + tile.x;
+                for (int x = start; x < start + tile.width; x++) {
+                    int index = colors.add(row[x] & 0xffffff);
+                    if (index < 0)
+                        return false;
+                    indexes[i++] = (byte)index;
+                }
+            }
+            return true;
+        }
+
+        private int runsLength(int numPixels) {
+            int result = 0;
+            for (int i = 0; i < numPixels; ) {
+                int end = i + 1;
+                while (end < numPixels && indexes[end] == indexes[i])
+                    end++;
+                result += 1 + varintLength(end - i - 1);
+                i = end;
+            }
+            return result;
+        }
+
+        private void writeRuns(int numPixels) {
+            for (int i = 0; i < numPixels; ) {
+                int end = i + 1;
+                while (end < numPixels && indexes[end] == indexes[i])
+                    end++;
+                buffer[length++] = indexes[i];
+                for (int value = end - i - 1; ; value >>>= 7) {
+                    if (value < 0x80) {
+                        buffer[length++] = (byte)value;
+                        break;
+                    }
+                    buffer[length++] = (byte)(value & 0x7f | 0x80);
+                }
+                i = end;
+            }
+        }
+
+        private void writePacked(Rectangle tile, int bits) {
+            if (bits == 0)
+                return;
+
+            for (int y = 0, i = 0; y < tile.height; y++) {
+                int current = 0, used = 0;
+                for (int x = 0; x < tile.width; x++, i++) {
+                    current = current << bits | (indexes[i] & 0xff);
+                    used += bits;
+                    if (used == 8) {
+                        buffer[length++] = (byte)current;
+                        current = used = 0;
+                    }
+                }
+                if (used > 0)
+                    buffer[length++] = (byte)(current << (8 - used));
+            }
+        }
+
+        // Returns false, having written nothing, if the tile has too many
+        // colors.
+        private boolean write(Rectangle tile) {
+            if (!index(tile))
+                return false;
+
+            int numPixels = tile.width * tile.height;
+            int bits = bitsPerIndex(colors.size());
+            boolean runs = runsLength(numPixels) < tile.height * rowBytes(tile.width, bits);
+
+            length = 0;
+            buffer[length++] = runs ? RUNS : PACKED;
+            buffer[length++] = (byte)(colors.size() - 1);
+            for (int i = 0; i < colors.size(); i++) {
+                int rgb = colors.getColor(i);
+                buffer[length++] = (byte)(rgb >> 16);
+                buffer[length++] = (byte)(rgb >> 8);
+                buffer[length++] = (byte)rgb;
+            }
+
+            if (runs)
+                writeRuns(numPixels);
+            else
+                writePacked(tile, bits);
+            return true;
+        }
+    }
+
+    @Override
+    public void encode(BufferedImage image, ImageOutputStream output) throws IOException {
+        TileGrid grid = TileGrid.forImage(image, tileSize);
+        TileEncoder encoder = new TileEncoder(image, tileSize);
+        List<Integer> deflated = new ArrayList<>();
+
+        ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+        for (int i = 0; i < grid.numTiles(); i++) {
+            if (encoder.write(grid.getTile(i)))
+                tiles.write(encoder.buffer, 0, encoder.length);
+            else {
+                tiles.write(DEFLATED);
+                deflated.add(i);
+            }
+        }
+        byte[] compressed = deflate(tiles.toByteArray());
+
+        output.writeInt(image.getWidth());
+        output.writeInt(image.getHeight());
+        output.writeInt(tileSize);
+        output.writeInt(tiles.size());
+        output.writeInt(compressed.length);
+        output.write(compressed);
+
+        if (!deflated.isEmpty())
+            DeflateCodec.INSTANCE.encode(TileDelta.createAtlas(grid, image, deflated), output);
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished())
+            result.write(buffer, 0, deflater.deflate(buffer));
+        return result.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] bytes, int length) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(bytes);
+
+        byte[] result = new byte[length];
+        try {
+            for (int offset = 0; offset < length; ) {
+                int inflated = inflater.inflate(result, offset, length - offset);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new EOFException("Palette tiles ended early");
+                offset += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt palette tiles", e);
+        }
+        return result;
+    }
+
+    private static int readByte(InputStream stream) throws IOException {
+        int result = stream.read();
+        if (result < 0)
+            throw new EOFException("Palette image ended early");
+        return result;
+    }
+
+    private static int readVarint(InputStream stream) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            int b = readByte(stream);
+            result |= (b & 0x7f) << shift;
+            if (b < 0x80)
+                return result;
+        }
+        throw new IOException("Illegal run length");
+    }
+
+    // Writes the tile's pixels into the image's array.
+    private static void decodeTile(InputStream stream,
+                                   byte kind,
+                                   Rectangle tile,
+                                   int[] pixels,
+                                   int stride) throws IOException {
+        int numColors = readByte(stream) + 1;
+        byte[] rgb = Serialization.read(stream, 3 * numColors);
+        int[] palette = new int[numColors];
+        for (int i = 0; i < numColors; i++)
+            palette[i] = (rgb[3 * i] & 0xff) << 16 | (rgb[3 * i + 1] & 0xff) << 8 | (rgb[3 * i + 2] & 0xff);
+
+        if (kind == RUNS) {
+            int numPixels = tile.width * tile.height;
+            for (int i = 0; i < numPixels; ) {
+                int index = readByte(stream), end = i + readVarint(stream) + 1;
+                if (index >= numColors || end > numPixels)
+                    throw new IOException("Illegal run of index " + index);
+                for (; i < end; i++)
+                    pixels[(tile.y + i / tile.width) * stride + tile.x + i % tile.width] = palette[index];
+            }
+            return;
+        }
+
+        int bits = bitsPerIndex(numColors), mask = (1 << bits) - 1;
+        byte[] packed = Serialization.read(stream, tile.height * rowBytes(tile.width, bits));
+        for (int y = 0, offset = 0; y < tile.height; y++, offset += rowBytes(tile.width, bits)) {
+            int row = (tile.y + y) * stride + tile.x;
+            for (int x = 0; x < tile.width; x++) {
+                int index = 0;
+                if (bits > 0) {
+                    int bit = x * bits;
+                    index = (packed[offset + bit / 8] & 0xff) >> (8 - bits - bit % 8) & mask;
+                }
+                if (index >= numColors)
+                    throw new IOException("Illegal index " + index);
+                pixels[row + x] = palette[index];
+            }
+        }
+    }
+
+    @Override
+    public BufferedImage decode(InputStream stream) throws IOException {
+        int width = Serialization.readInt(stream);
+        int height = Serialization.readInt(stream);
+        int tileSize = Serialization.readInt(stream);
+        if (width <= 0 || height <= 0 || (long)width * height > MAX_PIXELS ||
+                tileSize <= 0 || tileSize > MAX_TILE_SIZE)
+            throw new IOException(String.format(
+                    "Illegal palette image: %sx%s in tiles of %s", width, height, tileSize));
+        TileGrid grid = new TileGrid(width, height, tileSize);
+
+        // Each tile is at most its kind, palette and a byte per pixel; deflate
+        // adds a few bytes per block of what it can't compress.
+        long maxLength = (long)grid.numTiles() * (2 + 3 * MAX_COLORS) + (long)width * height;
+        int length = Serialization.readInt(stream);
+        int compressedLength = Serialization.readInt(stream);
+        if (length < 0 || length > maxLength ||
+                compressedLength < 0 || compressedLength > maxLength + maxLength / 1024 + 64)
+            throw new IOException(String.format(
+                    "Illegal palette tiles: %s bytes deflated to %s", length, compressedLength));
+        InputStream tiles = new ByteArrayInputStream(
+                inflate(Serialization.read(stream, compressedLength), length));
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        List<Integer> deflated = new ArrayList<>();
+
+        for (int i = 0; i < grid.numTiles(); i++) {
+            byte kind = (byte)readByte(tiles);
+            if (kind == DEFLATED)
+                deflated.add(i);
+            else if (kind == PACKED || kind == RUNS)
+                decodeTile(tiles, kind, grid.getTile(i), pixels, width);
+            else
+                throw new IOException("Illegal tile kind " + kind);
+        }
+
+        if (deflated.isEmpty())
+            return image;
+
+        BufferedImage atlas = DeflateCodec.INSTANCE.decode(stream);
+        int columns = TileDelta.atlasColumns(deflated.size());
+        int[] tilePixels = new int[tileSize * tileSize];
+        for (int i = 0; i < deflated.size(); i++) {
+            Rectangle tile = grid.getTile(deflated.get(i));
+            atlas.getRGB(
+                    (i % columns) * tileSize,
+                    (i / columns) * tileSize,
+                    tile.width, tile.height, tilePixels, 0, tile.width);
+            image.setRGB(tile.x, tile.y, tile.width, tile.height, tilePixels, 0, tile.width);
+        }
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,131 @@
+package main.encoding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Row-by-row access to an image's pixels as ints in the format getRGB()
+ * returns (0xAARRGGBB), without getRGB()'s per-pixel color model lookups
+ * where the layout is known:
+ *
+ *  - TYPE_INT_RGB and TYPE_INT_ARGB rows are read in place from the
+ *    backing array (including subimages). For TYPE_INT_RGB, the alpha byte
+ *    is undefined; use hasAlpha() to know whether to ignore it.
+ *  - TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR rows are converted from the backing
+ *    byte array into a scratch row.
+ *  - Everything else goes through getRGB() into a scratch row.
+ *
+ * Instances don't hold any per-call state, so one can be shared by threads
+ * reading different rows, each with its own scratch row.
+ */
+public class PixelRows {
+    private enum Layout { INT, BYTE, OTHER }
+
+    private final BufferedImage image;
+    private final int width;
+    private final boolean hasAlpha;
+    private final Layout layout;
+
+    private final int[] ints;
+    private final byte[] bytes;
+    // Index in the backing array of the first pixel of row 0, and the
+    // distance between rows and between pixels (for byte layouts).
+    private final int origin;
+    private final int stride;
+    private final int pixelStride;
+    // Byte offsets of the red, green, blue and (if present) alpha samples.
+    private final int[] bandOffsets;
+
+    public PixelRows(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.hasAlpha = image.getColorModel().hasAlpha();
+
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        int translateX = raster.getSampleModelTranslateX(),
+                translateY = raster.getSampleModelTranslateY();
+
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) &&
+                raster.getDataBuffer() instanceof DataBufferInt &&
+                raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+            this.layout = Layout.INT;
+            this.ints = buffer.getData();
+            this.bytes = null;
+            this.stride = ((SinglePixelPackedSampleModel)raster.getSampleModel())
+                    .getScanlineStride();
+            this.pixelStride = 1;
+            this.origin = buffer.getOffset() - translateY * stride - translateX;
+            this.bandOffsets = null;
+        } else if ((type == BufferedImage.TYPE_3BYTE_BGR ||
+                        type == BufferedImage.TYPE_4BYTE_ABGR) &&
+                raster.getDataBuffer() instanceof DataBufferByte &&
+                raster.getSampleModel() instanceof ComponentSampleModel) {
+            DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+            ComponentSampleModel model = (ComponentSampleModel)raster.getSampleModel();
+            this.layout = Layout.BYTE;
+            this.ints = null;
+            this.bytes = buffer.getData();
+            this.stride = model.getScanlineStride();
+            this.pixelStride = model.getPixelStride();
+            this.origin = buffer.getOffset() -
+                    translateY * stride - translateX * pixelStride;
+            this.bandOffsets = model.getBandOffsets();
+        } else {
+            this.layout = Layout.OTHER;
+            this.ints = null;
+            this.bytes = null;
+            this.stride = 0;
+            this.pixelStride = 0;
+            this.origin = 0;
+            this.bandOffsets = null;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    // Whether getRow() returns the image's own array.
+    public boolean isDirect() {
+        return layout == Layout.INT;
+    }
+
+    /**
+     * @param scratch At least getWidth() ints. Filled in unless isDirect().
+     * @return The array holding row y, starting at getRowStart(y). Must not
+     *      be modified.
+     */
+    public int[] getRow(int y, int[] scratch) {
+        switch (layout) {
+            case INT:
+                return ints;
+            case BYTE:
+                int index = origin + y * stride;
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+                int a = hasAlpha ? bandOffsets[3] : -1;
+                for (int x = 0; x < width; x++, index += pixelStride)
+                    scratch[x] = (a < 0 ? 0xff000000 : (bytes[index + a] & 0xff) << 24) |
+                            (bytes[index + r] & 0xff) << 16 |
+                            (bytes[index + g] & 0xff) << 8 |
+                            (bytes[index + b] & 0xff);
+                return scratch;
+            default:
+                image.getRGB(0, y, width, 1, scratch, 0, width);
+                return scratch;
+        }
+    }
+
+    public int getRowStart(int y) {
+        return isDirect() ? origin + y * stride : 0;
+    }
+}
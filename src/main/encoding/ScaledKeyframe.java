@@ -0,0 +1,70 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Encodes a full frame at a fraction of its resolution, for receivers that
+ * can't keep up with the full-size frames. The original size is recorded and
+ * decoding scales the image back up, so the frame can stand in for the
+ * original anywhere (e.g., on a display sized for the stream).
+ *
+ * The payload is:
+ *
+ *      width (int)
+ *      height (int)
+ *      scaled image
+ */
+public class ScaledKeyframe {
+    private ScaledKeyframe() {}
+
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        graphics.setRenderingHint(
+                RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return result;
+    }
+
+    /**
+     * @param scale Between 0 (exclusive) and 1, applied to both dimensions.
+     */
+    public static void write(ImageOutputStream output,
+                             BufferedImage image,
+                             FrameCodec codec,
+                             double scale) throws IOException {
+        checkArgument(scale > 0 && scale <= 1, "Illegal scale %s", scale);
+
+        int width = image.getWidth(), height = image.getHeight();
+        output.writeInt(width);
+        output.writeInt(height);
+        codec.encode(
+                resize(image,
+                        Math.max(1, (int)Math.round(width * scale)),
+                        Math.max(1, (int)Math.round(height * scale))),
+                output);
+    }
+
+    public static BufferedImage decode(byte[] payload, FrameCodec codec)
+            throws IOException {
+        InputStream stream = new ByteArrayInputStream(payload);
+        int width = Serialization.readInt(stream);
+        int height = Serialization.readInt(stream);
+        if (width <= 0 || height <= 0)
+            throw new IOException(String.format(
+                    "Illegal scaled frame: %sx%s", width, height));
+
+        return resize(codec.decode(stream), width, height);
+    }
+}
@@ -0,0 +1,160 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes a full frame as horizontal stripes, each an independently decodable
+ * image, so that both encoding and decoding can run on all cores instead of a
+ * single ImageIO call on the sending/reading thread.
+ *
+ * The payload is:
+ *
+ *      width (int)
+ *      height (int)
+ *      stripe height (int)
+ *      number of stripes (int)
+ *      for each stripe, top to bottom:
+ *          length (int)
+ *          stripe image
+ */
+public class StripedEncoding {
+    // JPEG works on 16x16 blocks (with chroma subsampling), so keeping stripe
+    // boundaries on multiples of 16 avoids seams between stripes.
+    private final static int STRIPE_ALIGNMENT = 16;
+
+    private final static ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    private StripedEncoding() {}
+
+    private static int stripeHeight(int height, int numStripes) {
+        int stripeHeight = (height + numStripes - 1) / numStripes;
+        stripeHeight = (stripeHeight + STRIPE_ALIGNMENT - 1) / STRIPE_ALIGNMENT * STRIPE_ALIGNMENT;
+        return Math.max(stripeHeight, 1);
+    }
+
+    private static <T> List<T> joinAll(List<ForkJoinTask<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (ForkJoinTask<T> task : tasks)
+                results.add(task.get());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while coding stripes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Error coding stripe", e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Writes the striped payload for the image. Each stripe is encoded on a
+     * pool thread (with that thread's codec state and buffer) and then
+     * copied into the output in order.
+     */
+    public static void write(ImageOutputStream output,
+                             BufferedImage image,
+                             FrameCodec codec,
+                             int numStripes) throws IOException {
+        int width = image.getWidth(), height = image.getHeight();
+        int stripeHeight = stripeHeight(height, numStripes);
+
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>();
+        for (int y = 0; y < height; y += stripeHeight) {
+            BufferedImage stripe = image.getSubimage(
+                    0, y, width, Math.min(stripeHeight, height - y));
+            tasks.add(POOL.submit(() -> codec.encode(stripe)));
+        }
+        write(output, width, height, stripeHeight, tasks);
+    }
+
+    /**
+     * Writes the striped payload for an image already converted into planes,
+     * for codecs that take them (see FrameCodec.acceptsPlanes()). Decodes
+     * like any other striped payload.
+     */
+    public static void write(ImageOutputStream output,
+                             YuvPlanes planes,
+                             FrameCodec codec,
+                             int numStripes) throws IOException {
+        int width = planes.width, height = planes.height;
+        int stripeHeight = stripeHeight(height, numStripes);
+
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>();
+        for (int y = 0; y < height; y += stripeHeight) {
+            int y0 = y, y1 = Math.min(y + stripeHeight, height);
+            tasks.add(POOL.submit(() -> {
+                try (FrameBuffer buffer = FrameBuffer.acquire()) {
+                    codec.encode(planes.getRows(y0, y1), buffer);
+                    return buffer.toByteArray();
+                }
+            }));
+        }
+        write(output, width, height, stripeHeight, tasks);
+    }
+
+    private static void write(ImageOutputStream output,
+                              int width,
+                              int height,
+                              int stripeHeight,
+                              List<ForkJoinTask<byte[]>> tasks) throws IOException {
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(stripeHeight);
+        output.writeInt(tasks.size());
+        for (byte[] stripe : joinAll(tasks)) {
+            output.writeInt(stripe.length);
+            output.write(stripe);
+        }
+    }
+
+    // Each task writes a disjoint set of rows of the result.
+    private static Void decodeStripe(byte[] stripe,
+                                     FrameCodec codec,
+                                     BufferedImage result,
+                                     int y) throws IOException {
+        BufferedImage image = codec.decode(new ByteArrayInputStream(stripe));
+        int width = Math.min(image.getWidth(), result.getWidth()),
+                height = Math.min(image.getHeight(), result.getHeight() - y);
+        result.setRGB(0, y, width, height,
+                image.getRGB(0, 0, width, height, null, 0, width), 0, width);
+        return null;
+    }
+
+    public static BufferedImage decode(byte[] payload, FrameCodec codec)
+            throws IOException {
+        InputStream stream = new ByteArrayInputStream(payload);
+        int width = Serialization.readInt(stream);
+        int height = Serialization.readInt(stream);
+        int stripeHeight = Serialization.readInt(stream);
+        int numStripes = Serialization.readInt(stream);
+        if (width <= 0 || height <= 0 || stripeHeight <= 0 ||
+                numStripes != (height + stripeHeight - 1) / stripeHeight)
+            throw new IOException(String.format(
+                    "Illegal striped frame: %sx%s, %s stripes of height %s",
+                    width, height, numStripes, stripeHeight));
+
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < numStripes; i++) {
+            byte[] stripe = Serialization.read(stream, Serialization.readInt(stream));
+            int y = i * stripeHeight;
+            tasks.add(POOL.submit(() -> decodeStripe(stripe, codec, result, y)));
+        }
+        joinAll(tasks);
+
+        return result;
+    }
+}
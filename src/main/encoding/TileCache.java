@@ -0,0 +1,146 @@
+package main.encoding;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * LRU cache of tiles keyed by a hash of their content, so that content that
+ * comes back (switching between windows, scrolling back, ...) can be sent
+ * as a reference instead of pixels.
+ *
+ * The sender and every receiver of a stream keep a cache of the same
+ * capacity and apply the same operations in the same order (see
+ * TileDelta), so they always agree on what's cached without any extra
+ * messages. The sender only needs the hashes; receivers also keep the
+ * pixels.
+ *
+ * Not threadsafe, except for the counters.
+ */
+public class TileCache {
+    private final int capacity;
+    private final LinkedHashMap<Long, int[]> tiles;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * @param capacity Maximum number of tiles. 0 disables the cache.
+     */
+    public TileCache(int capacity) {
+        checkArgument(capacity >= 0, "Illegal tile cache capacity %s", capacity);
+        this.capacity = capacity;
+        // Access order, so iteration starts at the least recently used tile.
+        this.tiles = new LinkedHashMap<Long, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                return size() > TileCache.this.capacity;
+            }
+        };
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    // Doesn't count as a use of the tile.
+    public boolean contains(long hash) {
+        return tiles.containsKey(hash);
+    }
+
+    /**
+     * Marks the tile as most recently used, and counts a hit or a miss.
+     *
+     * @return Whether the tile is cached.
+     */
+    public boolean use(long hash) {
+        if (!tiles.containsKey(hash)) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        tiles.get(hash);
+        hits.incrementAndGet();
+        return true;
+    }
+
+    // Returns the tile's pixels (null on senders). Call use() first.
+    public int[] getPixels(long hash) {
+        return tiles.get(hash);
+    }
+
+    // Adds a tile that isn't cached yet, evicting the least recently used
+    // tile if the cache is full.
+    public void put(long hash, /* nullable */ int[] pixels) {
+        if (isEnabled())
+            tiles.put(hash, pixels);
+    }
+
+    public void clear() {
+        tiles.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Hashes the tile's pixels and dimensions (but not its position).
+     *
+     * Tiles are hashed a row at a time: startHash(), then hashPixels() for
+     * each of the tile's rows from top to bottom, then finishHash(). This
+     * lets TileDelta.hashTiles() hash many tiles in one pass over the image.
+     *
+     * @param row Scratch space of at least tile.width ints.
+     */
+    public static long hash(BufferedImage image, Rectangle tile, int[] row) {
+        long hash = startHash(tile);
+        for (int y = tile.y; y < tile.y + tile.height; y++) {
+            image.getRGB(tile.x, y, tile.width, 1, row, 0, tile.width);
+            hash = hashPixels(hash, row, 0, tile.width);
+        }
+        return finishHash(hash);
+    }
+
+    // FNV-1a over whole pixels, finished with MurmurHash3's 64-bit mixer.
+    static long startHash(Rectangle tile) {
+        return 0xcbf29ce484222325L ^ ((long)tile.width << 32 | tile.height);
+    }
+
+    // Ignores the alpha byte, which isn't defined for every image type (see
+    // PixelRows).
+    static long hashPixels(long hash, int[] pixels, int offset, int length) {
+        for (int x = offset; x < offset + length; x++)
+            hash = (hash ^ (pixels[x] & 0xffffff)) * 0x100000001b3L;
+        return hash;
+    }
+
+    static long finishHash(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<tile cache: %s/%s tiles, hits=%s, misses=%s>",
+                tiles.size(), capacity, getHits(), getMisses());
+    }
+}
@@ -0,0 +1,87 @@
+package main.encoding;
+
+import java.awt.*;
+
+/**
+ * Decides whether a tile of screen content should be encoded losslessly
+ * (text, UI chrome, diagrams) or lossily (photos, video).
+ *
+ * Synthetic content is drawn with few colors, and most of its pixels repeat
+ * the one to their left (flat backgrounds, lines); lossy codecs blur its hard
+ * edges while lossless ones compress it well. Natural images have many
+ * colors and little exact repetition, which lossless codecs can't compress
+ * but lossy ones encode with little visible loss.
+ *
+ * Threadsafe.
+ */
+public class TileClassifier {
+    // Tiles with at most this many colors are always lossless. Antialiased
+    // text on a plain background stays well under it.
+    public final static int MAX_LOSSLESS_COLORS = 64;
+
+    // Tiles where at least this fraction of pixels repeat their left
+    // neighbor are lossless however many colors they have (e.g., text over a
+    // gradient).
+    private final static double MIN_LOSSLESS_REPEATS = 0.5;
+
+    private TileClassifier() {}
+
+    /**
+     * Counts the distinct colors (ignoring alpha) in the tile, stopping once
+     * there are more than limit.
+     *
+     * @return The number of colors, or limit + 1 if there are more.
+     */
+    public static int countColors(PixelRows pixels, Rectangle tile, int limit) {
+        ColorTable colors = new ColorTable(limit);
+        int[] scratch = new int[pixels.getWidth()];
+
+        for (int y = tile.y; y < tile.y + tile.height; y++) {
+            int[] row = pixels.getRow(y, scratch);
+            int start = pixels.getRowStart(y) + tile.x;
+            int previous = -1;
+            for (int i = start; i < start + tile.width; i++) {
+                int rgb = row[i] & 0xffffff;
+                if (rgb == previous)
+                    continue;
+                previous = rgb;
+                if (colors.add(rgb) < 0)
+                    return limit + 1;
+            }
+        }
+        return colors.size();
+    }
+
+    // The fraction of the tile's pixels (other than the first of each row)
+    // equal to their left neighbor.
+    private static double repeatFraction(PixelRows pixels, Rectangle tile) {
+        if (tile.width < 2)
+            return 1;
+
+        int[] scratch = new int[pixels.getWidth()];
+        int repeats = 0;
+        for (int y = tile.y; y < tile.y + tile.height; y++) {
+            int[] row = pixels.getRow(y, scratch);
+            int start = pixels.getRowStart(y) + tile.x;
+            for (int i = start + 1; i < start + tile.width; i++)
+                if (((row[i] ^ row[i - 1]) & 0xffffff) == 0)
+                    repeats++;
+        }
+        return (double)repeats / ((tile.width - 1) * tile.height);
+    }
+
+    public static boolean isLossless(PixelRows pixels, Rectangle tile) {
+        return countColors(pixels, tile, MAX_LOSSLESS_COLORS) <= MAX_LOSSLESS_COLORS ||
+                repeatFraction(pixels, tile) >= MIN_LOSSLESS_REPEATS;
+    }
+
+    /**
+     * @return Whether each of the grid's tiles should be lossless, by index.
+     */
+    public static boolean[] classify(PixelRows pixels, TileGrid grid) {
+        boolean[] lossless = new boolean[grid.numTiles()];
+        for (int i = 0; i < lossless.length; i++)
+            lossless[i] = isLossless(pixels, grid.getTile(i));
+        return lossless;
+    }
+}
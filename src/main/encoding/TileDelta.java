@@ -0,0 +1,360 @@
+package main.encoding;
+
+import main.util.Serialization;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Encodes and applies the payload of a delta frame: the tiles that changed
+ * since a base frame.
+ *
+ * Rather than encoding each changed tile as its own image (which would pay the
+ * PNG/JPG header and setup cost once per tile), the changed tiles are packed
+ * into a single atlas image that is encoded once.
+ *
+ * Content that moved (e.g., was scrolled) is sent as CopyRects that are
+ * applied to the base frame before the tiles, so that only the tiles that
+ * still differ afterwards (e.g., the newly exposed strip) are sent.
+ *
+ * With a TileCache, changed tiles whose content is already cached are sent as
+ * references to the cache instead of being put in the atlas. The cache is
+ * cleared at every keyframe the sender sends on the stream (the cache epoch
+ * is that keyframe's index), so a receiver can only use references if its
+ * chain of frames started at that keyframe. Senders send receivers that
+ * joined mid-way (or were sent some other keyframe since) keyframes instead
+ * of frames with references until the next keyframe on the stream.
+ *
+ * The payload is:
+ *
+ *      base frame index (long)
+ *      tile size (int)
+ *      cache epoch (long)
+ *      cache capacity (int; 0 if there is no cache)
+ *      number of copy rects (int)
+ *      each copy rect, in the order they're applied (see CopyRect)
+ *      number of changed tiles (int)
+ *      number of those sent as cache references (int)
+ *      for each changed tile:
+ *          index (int)
+ *          if there is a cache: hash (long), whether it's a reference (byte)
+ *      atlas image of the tiles that aren't references (remaining bytes;
+ *          omitted if there are none)
+ */
+public class TileDelta {
+    private TileDelta() {}
+
+    // Returns the indexes of the tiles that differ between the two images.
+    // The images must have the same dimensions.
+    public static List<Integer> findChangedTiles(TileGrid grid,
+                                                 BufferedImage previous,
+                                                 BufferedImage current) {
+        return ImageComparison.findChangedTiles(grid, previous, current);
+    }
+
+    // Atlases are as square as possible, tiles in raster order.
+    static int atlasColumns(int numTiles) {
+        return (int)Math.ceil(Math.sqrt(numTiles));
+    }
+
+    static BufferedImage createAtlas(TileGrid grid,
+                                     BufferedImage image,
+                                     List<Integer> tiles) {
+        int columns = atlasColumns(tiles.size());
+        int rows = (tiles.size() + columns - 1) / columns;
+        BufferedImage atlas = new BufferedImage(
+                columns * grid.tileSize,
+                rows * grid.tileSize,
+                BufferedImage.TYPE_INT_RGB);
+
+        int[] pixels = new int[grid.tileSize * grid.tileSize];
+        for (int i = 0; i < tiles.size(); i++) {
+            Rectangle tile = grid.getTile(tiles.get(i));
+            image.getRGB(tile.x, tile.y, tile.width, tile.height, pixels, 0, tile.width);
+            atlas.setRGB(
+                    (i % columns) * grid.tileSize,
+                    (i / columns) * grid.tileSize,
+                    tile.width, tile.height, pixels, 0, tile.width);
+        }
+
+        return atlas;
+    }
+
+    // The smallest rectangle containing all of the tiles.
+    public static Rectangle bounds(TileGrid grid, List<Integer> tiles) {
+        Rectangle bounds = null;
+        for (int index : tiles) {
+            Rectangle tile = grid.getTile(index);
+            bounds = bounds == null ? tile : bounds.union(tile);
+        }
+        return bounds;
+    }
+
+    // Returns a copy of the base frame with the moves applied.
+    public static BufferedImage applyMoves(BufferedImage base, List<CopyRect> moves)
+            throws IOException {
+        BufferedImage image = copy(base);
+        for (CopyRect move : moves)
+            move.apply(image);
+        return image;
+    }
+
+    // Returns the content hash of each of the tiles (see TileCache.hash()).
+    // The image is read a row at a time, each row once for all the tiles it
+    // crosses.
+    public static long[] hashTiles(TileGrid grid, BufferedImage image, List<Integer> tiles) {
+        long[] hashes = new long[tiles.size()];
+        Rectangle[] rects = new Rectangle[tiles.size()];
+        for (int i = 0; i < tiles.size(); i++) {
+            rects[i] = grid.getTile(tiles.get(i));
+            hashes[i] = TileCache.startHash(rects[i]);
+        }
+
+        // The tiles crossing each row of tiles.
+        List<List<Integer>> tileRows = new ArrayList<>();
+        for (int i = 0; i < grid.rows; i++)
+            tileRows.add(new ArrayList<>());
+        for (int i = 0; i < tiles.size(); i++)
+            tileRows.get(tiles.get(i) / grid.columns).add(i);
+
+        PixelRows rows = new PixelRows(image);
+        int[] scratch = new int[rows.getWidth()];
+        for (int y = 0; y < grid.height; y++) {
+            List<Integer> crossing = tileRows.get(y / grid.tileSize);
+            if (crossing.isEmpty())
+                continue;
+
+            int[] row = rows.getRow(y, scratch);
+            int start = rows.getRowStart(y);
+            for (int i : crossing)
+                hashes[i] = TileCache.hashPixels(
+                        hashes[i], row, start + rects[i].x, rects[i].width);
+        }
+
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = TileCache.finishHash(hashes[i]);
+        return hashes;
+    }
+
+    // The number of tiles that will have to be sent as pixels. Doesn't
+    // modify the cache, so this is an estimate: tiles may be evicted while
+    // the frame is written.
+    public static int countUncachedTiles(long[] hashes, TileCache cache) {
+        if (!cache.isEnabled())
+            return hashes.length;
+
+        Set<Long> seen = new HashSet<>();
+        int uncached = 0;
+        for (long hash : hashes)
+            if (!cache.contains(hash) && seen.add(hash))
+                uncached++;
+        return uncached;
+    }
+
+    // Past this point, a keyframe is about as cheap as the delta.
+    public static boolean worthSending(TileGrid grid, int tilesToSend) {
+        return tilesToSend * 2 <= grid.numTiles();
+    }
+
+    /**
+     * Writes the delta payload taking the base frame to current, and updates
+     * the cache the same way receivers will when they decode it.
+     *
+     * @param moves Applied to the base frame before the tiles.
+     * @param changed The tiles that differ from the base frame after the
+     *      moves (see findChangedTiles).
+     * @param hashes The hashes of the changed tiles (see hashTiles). Unused
+     *      if the cache is disabled.
+     * @param cacheEpoch The index of the last keyframe sent on the stream,
+     *      when the cache was last cleared.
+     */
+    public static void write(ImageOutputStream output,
+                             TileGrid grid,
+                             BufferedImage current,
+                             List<CopyRect> moves,
+                             List<Integer> changed,
+                             long[] hashes,
+                             long baseFrameIndex,
+                             TileCache cache,
+                             long cacheEpoch,
+                             FrameCodec codec) throws IOException {
+        boolean[] fromCache = new boolean[changed.size()];
+        List<Integer> atlasTiles = new ArrayList<>();
+        int references = 0;
+        for (int i = 0; i < changed.size(); i++) {
+            if (cache.isEnabled() && cache.use(hashes[i])) {
+                fromCache[i] = true;
+                references++;
+            } else {
+                cache.put(hashes[i], null);
+                atlasTiles.add(changed.get(i));
+            }
+        }
+
+        output.writeLong(baseFrameIndex);
+        output.writeInt(grid.tileSize);
+        output.writeLong(cacheEpoch);
+        output.writeInt(cache.getCapacity());
+        output.writeInt(moves.size());
+        for (CopyRect move : moves)
+            move.write(output);
+        output.writeInt(changed.size());
+        output.writeInt(references);
+        for (int i = 0; i < changed.size(); i++) {
+            output.writeInt(changed.get(i));
+            if (cache.isEnabled()) {
+                output.writeLong(hashes[i]);
+                output.writeBoolean(fromCache[i]);
+            }
+        }
+
+        if (!atlasTiles.isEmpty())
+            codec.encode(createAtlas(grid, current, atlasTiles), output);
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        copy.setRGB(0, 0, width, height,
+                image.getRGB(0, 0, width, height, null, 0, width), 0, width);
+        return copy;
+    }
+
+    // The fields at the start of the payload.
+    private static class Header {
+        private final long baseFrameIndex;
+        private final int tileSize;
+        private final long cacheEpoch;
+        private final int cacheCapacity;
+        private final List<CopyRect> moves;
+        private final int numTiles;
+        private final int references;
+
+        private Header(InputStream stream) throws IOException {
+            this.baseFrameIndex = Serialization.readLong(stream);
+            this.tileSize = Serialization.readInt(stream);
+            this.cacheEpoch = Serialization.readLong(stream);
+            this.cacheCapacity = Serialization.readInt(stream);
+
+            int numMoves = Serialization.readInt(stream);
+            if (numMoves < 0)
+                throw new IOException("Illegal number of copy rects " + numMoves);
+            this.moves = new ArrayList<>();
+            for (int i = 0; i < numMoves; i++)
+                moves.add(CopyRect.read(stream));
+
+            this.numTiles = Serialization.readInt(stream);
+            this.references = Serialization.readInt(stream);
+        }
+    }
+
+    public static long getBaseFrameIndex(byte[] payload) throws IOException {
+        return new Header(new ByteArrayInputStream(payload)).baseFrameIndex;
+    }
+
+    public static int getCacheCapacity(byte[] payload) throws IOException {
+        return new Header(new ByteArrayInputStream(payload)).cacheCapacity;
+    }
+
+    /**
+     * @param cacheEpoch The index of the keyframe the receiver's chain of
+     *      frames started at.
+     * @return Whether the receiver's cache matches the sender's, or the
+     *      frame doesn't refer to it.
+     */
+    public static boolean canUseCache(byte[] payload, long cacheEpoch) throws IOException {
+        Header header = new Header(new ByteArrayInputStream(payload));
+        return header.references == 0 || header.cacheEpoch == cacheEpoch;
+    }
+
+    /**
+     * Whether the frame refers to the sender's cache, which only receivers
+     * whose chain of frames started at the cache epoch can use.
+     *
+     * @param offset Where the payload starts in bytes, which may end after
+     *      the payload's fields (e.g., the first chunk of a frame).
+     */
+    public static boolean hasCacheReferences(byte[] bytes, int offset) throws IOException {
+        InputStream stream = new ByteArrayInputStream(bytes, offset, bytes.length - offset);
+        return new Header(stream).references != 0;
+    }
+
+    /**
+     * Rebuilds a frame by applying the payload to its base frame. Callers
+     * should check getBaseFrameIndex() and canUseCache() first: a receiver
+     * that joined the stream mid-way or dropped a frame doesn't have the
+     * base and must wait for the next keyframe.
+     *
+     * @param cache The receiver's cache for the stream, which is updated as
+     *      the sender's was. Must have the capacity given in the payload.
+     */
+    public static BufferedImage decode(byte[] payload,
+                                       BufferedImage base,
+                                       FrameCodec codec,
+                                       TileCache cache) throws IOException {
+        InputStream stream = new ByteArrayInputStream(payload);
+        Header header = new Header(stream);
+        int tileSize = header.tileSize, numTiles = header.numTiles;
+        if (tileSize <= 0 || numTiles < 0 || header.references < 0 ||
+                header.references > numTiles)
+            throw new IOException(String.format(
+                    "Illegal delta frame: %s tiles (%s references) of size %s",
+                    numTiles, header.references, tileSize));
+
+        boolean useCache = header.cacheCapacity > 0;
+        int[] tiles = new int[numTiles];
+        long[] hashes = new long[numTiles];
+        boolean[] fromCache = new boolean[numTiles];
+        for (int i = 0; i < numTiles; i++) {
+            tiles[i] = Serialization.readInt(stream);
+            if (useCache) {
+                hashes[i] = Serialization.readLong(stream);
+                fromCache[i] = Serialization.read(stream, 1)[0] != 0;
+            }
+        }
+
+        BufferedImage image = applyMoves(base, header.moves);
+        if (numTiles == 0)
+            return image;
+
+        TileGrid grid = TileGrid.forImage(image, tileSize);
+        int atlasTiles = numTiles - header.references;
+        BufferedImage atlas = atlasTiles > 0 ? codec.decode(stream) : null;
+        int columns = atlasColumns(atlasTiles);
+
+        for (int i = 0, atlasIndex = 0; i < numTiles; i++) {
+            if (tiles[i] < 0 || tiles[i] >= grid.numTiles())
+                throw new IOException("Illegal tile index " + tiles[i]);
+
+            Rectangle tile = grid.getTile(tiles[i]);
+            int[] pixels;
+            if (fromCache[i]) {
+                if (!cache.use(hashes[i]))
+                    throw new IOException("Tile " + tiles[i] + " is missing from the cache");
+                pixels = cache.getPixels(hashes[i]);
+                if (pixels.length != tile.width * tile.height)
+                    throw new IOException("Cached tile doesn't fit tile " + tiles[i]);
+            } else {
+                pixels = new int[tile.width * tile.height];
+                atlas.getRGB(
+                        (atlasIndex % columns) * tileSize,
+                        (atlasIndex / columns) * tileSize,
+                        tile.width, tile.height, pixels, 0, tile.width);
+                atlasIndex++;
+                if (useCache)
+                    cache.put(hashes[i], pixels);
+            }
+            image.setRGB(tile.x, tile.y, tile.width, tile.height, pixels, 0, tile.width);
+        }
+
+        return image;
+    }
+}
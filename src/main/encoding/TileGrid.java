@@ -0,0 +1,46 @@
+package main.encoding;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Splits an image of a given size into square tiles, numbered in raster order
+ * (left to right, then top to bottom). Tiles along the right and bottom edges
+ * are clipped to the image.
+ */
+public class TileGrid {
+    public final int width;
+    public final int height;
+    public final int tileSize;
+    public final int columns;
+    public final int rows;
+
+    public TileGrid(int width, int height, int tileSize) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+    }
+
+    public static TileGrid forImage(BufferedImage image, int tileSize) {
+        return new TileGrid(image.getWidth(), image.getHeight(), tileSize);
+    }
+
+    public int numTiles() {
+        return columns * rows;
+    }
+
+    public Rectangle getTile(int index) {
+        int x = (index % columns) * tileSize;
+        int y = (index / columns) * tileSize;
+        return new Rectangle(
+                x, y,
+                Math.min(tileSize, width - x),
+                Math.min(tileSize, height - y));
+    }
+
+    public boolean matches(BufferedImage image) {
+        return image.getWidth() == width && image.getHeight() == height;
+    }
+}
@@ -0,0 +1,241 @@
+package main.encoding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An image as YCbCr 4:2:0 planes: a full resolution luma plane and chroma
+ * planes with one sample per 2x2 block of pixels, i.e. 1.5 bytes per pixel
+ * instead of TYPE_INT_RGB's 4.
+ *
+ * Colors are converted with the full range BT.601 transform JPEG (JFIF)
+ * uses, in 16-bit fixed point rather than floating point. Chroma is
+ * converted from the average of each block's pixels. Large images are
+ * converted in bands of rows on the common ForkJoinPool.
+ *
+ * Codecs that take planar input (see FrameCodec.acceptsPlanes()) encode the
+ * planes directly instead of converting the image themselves.
+ *
+ * The planes aren't copied; instances shouldn't be modified once built.
+ */
+public class YuvPlanes {
+    // Below this, splitting the work costs more than it saves.
+    private final static int MIN_PARALLEL_PIXELS = 512 * 512;
+    private final static int MIN_BAND_PIXELS = 64 * 1024;
+
+    private final static ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    private final static int SHIFT = 16;
+    private final static int HALF = 1 << (SHIFT - 1);
+
+    public final int width;
+    public final int height;
+
+    // Row-major, without padding.
+    public final byte[] y;
+    public final byte[] cb;
+    public final byte[] cr;
+
+    public YuvPlanes(int width, int height, byte[] y, byte[] cb, byte[] cr) {
+        checkArgument(width > 0 && height > 0, "Illegal size %sx%s", width, height);
+        checkArgument(y.length == width * height, "Luma plane has %s samples", y.length);
+        int chroma = chromaWidth(width) * chromaHeight(height);
+        checkArgument(cb.length == chroma && cr.length == chroma,
+                "Chroma planes have %s and %s samples", cb.length, cr.length);
+
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.cb = cb;
+        this.cr = cr;
+    }
+
+    private static int chromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    private static int chromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+
+    public int getChromaWidth() {
+        return chromaWidth(width);
+    }
+
+    public int getChromaHeight() {
+        return chromaHeight(height);
+    }
+
+    /**
+     * A copy of rows [y0, y1) of the planes.
+     *
+     * @param y0 Must be even, so that the chroma rows line up.
+     */
+    public YuvPlanes getRows(int y0, int y1) {
+        checkArgument(y0 % 2 == 0 && y0 >= 0 && y0 < y1 && y1 <= height,
+                "Illegal rows [%s, %s) of %s", y0, y1, height);
+        int chromaWidth = getChromaWidth();
+        int chromaStart = y0 / 2 * chromaWidth, chromaEnd = chromaHeight(y1) * chromaWidth;
+        return new YuvPlanes(
+                width,
+                y1 - y0,
+                Arrays.copyOfRange(y, y0 * width, y1 * width),
+                Arrays.copyOfRange(cb, chromaStart, chromaEnd),
+                Arrays.copyOfRange(cr, chromaStart, chromaEnd));
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static int luma(int r, int g, int b) {
+        return (19595 * r + 38470 * g + 7471 * b + HALF) >> SHIFT;
+    }
+
+    // The chroma of a 2x2 block from the sums of its pixels' components.
+    private static int blueDifference(int r, int g, int b) {
+        return ((-11059 * r - 21709 * g + 32768 * b + 4 * HALF) >> (SHIFT + 2)) + 128;
+    }
+
+    private static int redDifference(int r, int g, int b) {
+        return ((32768 * r - 27439 * g - 5329 * b + 4 * HALF) >> (SHIFT + 2)) + 128;
+    }
+
+    private interface BandTask {
+        // Rows [y0, y1) of the chroma planes, i.e. twice as many image rows.
+        void run(int y0, int y1);
+    }
+
+    // Runs the task over all chroma rows, in parallel bands if the image is
+    // large.
+    private static void forEachBand(int width, int height, BandTask task) {
+        int rows = chromaHeight(height);
+        if ((long)width * height < MIN_PARALLEL_PIXELS) {
+            task.run(0, rows);
+            return;
+        }
+
+        int bandRows = Math.max(MIN_BAND_PIXELS / (2 * width),
+                (rows + POOL.getParallelism() - 1) / POOL.getParallelism());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int y = 0; y < rows; y += bandRows) {
+            int y0 = y, y1 = Math.min(y + bandRows, rows);
+            tasks.add(POOL.submit(() -> task.run(y0, y1)));
+        }
+        for (ForkJoinTask<?> band : tasks)
+            band.join();
+    }
+
+    /**
+     * Converts the image's pixels (read through PixelRows, so alpha is
+     * ignored).
+     */
+    public static YuvPlanes fromImage(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        int chromaWidth = chromaWidth(width);
+        byte[] y = new byte[width * height];
+        byte[] cb = new byte[chromaWidth * chromaHeight(height)];
+        byte[] cr = new byte[cb.length];
+
+        PixelRows pixels = new PixelRows(image);
+        forEachBand(width, height, (y0, y1) -> {
+            int[] topScratch = new int[width], bottomScratch = new int[width];
+            for (int cy = y0; cy < y1; cy++) {
+                int top = 2 * cy, bottom = Math.min(top + 1, height - 1);
+                int[] topRow = pixels.getRow(top, topScratch);
+                int topStart = pixels.getRowStart(top);
+                int[] bottomRow = pixels.getRow(bottom, bottomScratch);
+                int bottomStart = pixels.getRowStart(bottom);
+
+                for (int cx = 0; cx < chromaWidth; cx++) {
+                    int left = 2 * cx, right = Math.min(left + 1, width - 1);
+                    int r = 0, g = 0, b = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int px = (i & 1) == 0 ? left : right;
+                        int py = i < 2 ? top : bottom;
+                        int rgb = i < 2 ? topRow[topStart + px] : bottomRow[bottomStart + px];
+                        int pr = (rgb >> 16) & 0xff, pg = (rgb >> 8) & 0xff, pb = rgb & 0xff;
+                        // Edge pixels are counted twice but only stored once.
+                        y[py * width + px] = (byte)luma(pr, pg, pb);
+                        r += pr;
+                        g += pg;
+                        b += pb;
+                    }
+
+                    cb[cy * chromaWidth + cx] = (byte)blueDifference(r, g, b);
+                    cr[cy * chromaWidth + cx] = (byte)redDifference(r, g, b);
+                }
+            }
+        });
+        return new YuvPlanes(width, height, y, cb, cr);
+    }
+
+    private static int toRgb(int luma, int cb, int cr) {
+        cb -= 128;
+        cr -= 128;
+        int r = clamp(luma + ((91881 * cr + HALF) >> SHIFT));
+        int g = clamp(luma - ((22554 * cb + 46802 * cr + HALF) >> SHIFT));
+        int b = clamp(luma + ((116130 * cb + HALF) >> SHIFT));
+        return r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Converts the planes back into a TYPE_INT_RGB image, repeating each
+     * chroma sample over its block.
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        int chromaWidth = getChromaWidth();
+
+        forEachBand(width, height, (y0, y1) -> {
+            for (int row = 2 * y0; row < Math.min(2 * y1, height); row++) {
+                int chromaRow = (row / 2) * chromaWidth;
+                for (int x = 0; x < width; x++) {
+                    int chroma = chromaRow + x / 2;
+                    pixels[row * width + x] = toRgb(
+                            y[row * width + x] & 0xff,
+                            cb[chroma] & 0xff,
+                            cr[chroma] & 0xff);
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * The planes as a full resolution raster of interleaved Y, Cb and Cr
+     * samples, each chroma sample repeated over its block, which is what
+     * ImageIO's JPEG writer takes to skip its own color conversion.
+     */
+    public WritableRaster toInterleavedRaster() {
+        WritableRaster raster = Raster.createInterleavedRaster(
+                DataBuffer.TYPE_BYTE, width, height, 3, null);
+        byte[] samples = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int chromaWidth = getChromaWidth();
+
+        forEachBand(width, height, (y0, y1) -> {
+            for (int row = 2 * y0; row < Math.min(2 * y1, height); row++) {
+                int chromaRow = (row / 2) * chromaWidth;
+                for (int x = 0, index = 3 * row * width; x < width; x++, index += 3) {
+                    int chroma = chromaRow + x / 2;
+                    samples[index] = y[row * width + x];
+                    samples[index + 1] = cb[chroma];
+                    samples[index + 2] = cr[chroma];
+                }
+            }
+        });
+        return raster;
+    }
+}
@@ -1,7 +1,10 @@
 package main.network.connections;
 
+import main.util.SharedBuffer;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Interface wrapping connections. This allows us to break the dependency on
@@ -26,10 +29,64 @@ public interface Connection<TKey> {
     public int read(byte[] bytes, int numBytes) throws IOException;
 
     /**
+     * Bounds how long reads from the connection wait for bytes to arrive. A
+     * read that waits longer throws a SocketTimeoutException, after which
+     * the connection can still be read from.
+     *
+     * @param timeoutMillis 0 to wait forever, which is the default.
+     */
+    public void setReadTimeout(long timeoutMillis) throws IOException;
+
+    /**
+     * Sends the bytes right away, after anything written with
+     * writeBuffered().
+     *
      * @param bytes The bytes to write
      */
     public void write(byte[] bytes) throws IOException;
 
+    /**
+     * Writes the remaining bytes of the buffers, in order. Connections that
+     * can write them without copying do (see SharedBuffer); by default
+     * they're copied into an array for write(byte[]).
+     *
+     * @param buffers Views of owner's bytes, or of arrays that aren't
+     *      modified afterwards.
+     * @param owner Retained until the buffers have been written, if that's
+     *      after we return.
+     */
+    public default void write(ByteBuffer[] buffers, SharedBuffer owner) throws IOException {
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            buffer.get(bytes, offset, n);
+            offset += n;
+        }
+        write(bytes);
+    }
+
+    /**
+     * Like write(buffers, owner), but connections that batch writes (see
+     * SocketConnection) may hold on to the bytes until the next write() or
+     * flush(), so that several messages go out in one packet. By default
+     * they're sent right away.
+     */
+    public default void writeBuffered(ByteBuffer[] buffers, SharedBuffer owner)
+            throws IOException {
+        write(buffers, owner);
+    }
+
+    /**
+     * Sends anything written with writeBuffered().
+     */
+    public default void flush() throws IOException {
+    }
+
     /**
      * Closes the socket.
      */
@@ -0,0 +1,113 @@
+package main.network.connections.socket;
+
+import main.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that does the reads and writes of the NioSocketConnections
+ * registered with it as their channels become ready.
+ *
+ * Anything touching the selector or the connections' SelectionKeys must run
+ * on the loop, through execute().
+ */
+class EventLoop implements Runnable {
+    private final static int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean running;
+
+    // Shared by the connections for reading from their channels, since only
+    // the loop reads.
+    final ByteBuffer readBuffer;
+
+    private EventLoop(Selector selector, String name) {
+        this.selector = selector;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.running = true;
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    static EventLoop start(String name) throws IOException {
+        EventLoop loop = new EventLoop(Selector.open(), name);
+        loop.thread.start();
+        return loop;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop, in the order tasks were given.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Util.printException("Error running event loop task", e);
+            }
+        }
+    }
+
+    private static void handle(SelectionKey key) {
+        NioSocketConnection connection = (NioSocketConnection)key.attachment();
+        try {
+            if (key.isValid() && key.isReadable())
+                connection.onReadable();
+            if (key.isValid() && key.isWritable())
+                connection.onWritable();
+        } catch (CancelledKeyException e) {
+            // Closed by another thread while we were handling it.
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                runTasks();
+                selector.select();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    handle(it.next());
+                    it.remove();
+                }
+            }
+        } catch (IOException e) {
+            Util.printException("Event loop failed", e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,414 @@
+package main.network.connections.socket;
+
+import main.network.connections.Connection;
+import main.util.Serialization;
+import main.util.SharedBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A Connection over a non-blocking SocketChannel, whose reads and writes are
+ * done by an EventLoop shared with other connections (see
+ * NioSocketConnectionFactory).
+ *
+ * Bytes the loop reads are buffered until they're read from the input
+ * stream. Written bytes are sent right away if the socket can take them, and
+ * are otherwise queued for the loop to send. Queued writes are sent together
+ * with gathering writes, straight from the writers' buffers (see
+ * SharedBuffer), as are buffered writes (see writeBuffered()) once they're
+ * flushed. Both directions are bounded: the loop stops reading once
+ * the inbound one is full, and write() blocks while the outbound one is, so a
+ * slow peer slows down its writers as it would with a blocking socket.
+ *
+ * Threadsafe.
+ */
+public class NioSocketConnection implements Connection<SocketInformation> {
+    // The most bytes buffered in each direction.
+    private final static int MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    // The most buffers passed to a single gathering write.
+    private final static int MAX_GATHERED_BUFFERS = 64;
+
+    // A write waiting to be sent.
+    private static class PendingWrite {
+        private final ByteBuffer[] buffers;
+
+        // Released once the buffers are sent. Nullable.
+        private final SharedBuffer owner;
+
+        private PendingWrite(ByteBuffer[] buffers, SharedBuffer owner) {
+            this.buffers = buffers;
+            this.owner = owner;
+        }
+
+        private boolean isSent() {
+            for (ByteBuffer buffer : buffers)
+                if (buffer.hasRemaining())
+                    return false;
+            return true;
+        }
+
+        private void release() {
+            if (owner != null)
+                owner.release();
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            return read(bytes, 0, 1) < 0 ? -1 : bytes[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+
+            synchronized (inbound) {
+                try {
+                    waitForInbound();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (closed.get())
+                    throw new IOException("Stream closed");
+                if (inbound.isEmpty())
+                    return -1;
+
+                int bytesRead = 0;
+                while (bytesRead < length && !inbound.isEmpty()) {
+                    byte[] chunk = inbound.peek();
+                    int n = Math.min(length - bytesRead, chunk.length - inboundOffset);
+                    System.arraycopy(chunk, inboundOffset, bytes, offset + bytesRead, n);
+                    bytesRead += n;
+                    inboundOffset += n;
+                    if (inboundOffset == chunk.length) {
+                        inbound.poll();
+                        inboundOffset = 0;
+                    }
+                }
+
+                boolean wasFull = inboundBytes >= MAX_BUFFERED_BYTES;
+                inboundBytes -= bytesRead;
+                if (wasFull && inboundBytes < MAX_BUFFERED_BYTES)
+                    loop.execute(() -> setInterest(SelectionKey.OP_READ, true));
+                return bytesRead;
+            }
+        }
+
+        // Waits until there's something to read or the stream is done, for
+        // at most the read timeout. Must be called with inbound locked.
+        private void waitForInbound() throws InterruptedException, SocketTimeoutException {
+            long timeoutMillis = readTimeoutMillis;
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (inbound.isEmpty() && !endOfStream && !closed.get()) {
+                if (timeoutMillis == 0) {
+                    inbound.wait();
+                    continue;
+                }
+
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(
+                        deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0)
+                    throw new SocketTimeoutException("Read timed out");
+                inbound.wait(remainingMillis);
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (inbound) {
+                return inboundBytes;
+            }
+        }
+    }
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final SocketInformation source;
+    private final SocketInformation dest;
+    private final InputStream inputStream;
+    private final AtomicBoolean closed;
+    private volatile long readTimeoutMillis;
+
+    // Only used on the loop.
+    private SelectionKey key;
+
+    // Chunks read but not yet consumed, the first of which has been consumed
+    // up to inboundOffset. Guarded by inbound.
+    private final ArrayDeque<byte[]> inbound;
+    private int inboundOffset;
+    private int inboundBytes;
+    private boolean endOfStream;
+
+    // Writes waiting to be sent. Guarded by outbound.
+    private final ArrayDeque<PendingWrite> outbound;
+    private long outboundBytes;
+
+    // Whether the loop sends outbound when the socket can take more, as
+    // opposed to the writes in it being buffered until a flush. Guarded by
+    // outbound.
+    private boolean loopSending;
+
+    private NioSocketConnection(SocketChannel channel,
+                                EventLoop loop,
+                                SocketInformation source,
+                                SocketInformation dest) {
+        this.channel = channel;
+        this.loop = loop;
+        this.source = source;
+        this.dest = dest;
+        this.inputStream = new ChannelInputStream();
+        this.closed = new AtomicBoolean(false);
+        this.readTimeoutMillis = 0;
+        this.inbound = new ArrayDeque<>();
+        this.inboundOffset = 0;
+        this.inboundBytes = 0;
+        this.endOfStream = false;
+        this.outbound = new ArrayDeque<>();
+        this.outboundBytes = 0;
+        this.loopSending = false;
+    }
+
+    /**
+     * @param channel A connected channel, which is made non-blocking.
+     */
+    static NioSocketConnection fromChannel(SocketChannel channel,
+                                           EventLoop loop,
+                                           SocketInformation source,
+                                           SocketInformation dest)
+            throws IOException {
+        channel.configureBlocking(false);
+        NioSocketConnection connection = new NioSocketConnection(channel, loop, source, dest);
+        loop.execute(connection::register);
+        return connection;
+    }
+
+    private void register() {
+        try {
+            key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            close();
+        }
+    }
+
+    // Must be called on the loop.
+    private void setInterest(int op, boolean interested) {
+        if (key == null || !key.isValid())
+            return;
+        key.interestOps(interested ? key.interestOps() | op : key.interestOps() & ~op);
+    }
+
+    // Called by the loop when the channel has bytes to read.
+    void onReadable() {
+        ByteBuffer buffer = loop.readBuffer;
+        buffer.clear();
+        int n;
+        try {
+            n = channel.read(buffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+
+        synchronized (inbound) {
+            if (n < 0) {
+                endOfStream = true;
+                setInterest(SelectionKey.OP_READ, false);
+            } else if (n > 0) {
+                byte[] chunk = new byte[n];
+                buffer.flip();
+                buffer.get(chunk);
+                inbound.add(chunk);
+                inboundBytes += n;
+                if (inboundBytes >= MAX_BUFFERED_BYTES)
+                    setInterest(SelectionKey.OP_READ, false);
+            }
+            inbound.notifyAll();
+        }
+    }
+
+    // Called by the loop when the channel can take more bytes.
+    void onWritable() {
+        synchronized (outbound) {
+            try {
+                sendOutbound();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (outbound.isEmpty()) {
+                setInterest(SelectionKey.OP_WRITE, false);
+                loopSending = false;
+            }
+        }
+    }
+
+    // The buffers at the front of outbound, for a gathering write.
+    private ByteBuffer[] gatherOutbound() {
+        int count = 0;
+        for (PendingWrite write : outbound) {
+            if (count > 0 && count + write.buffers.length > MAX_GATHERED_BUFFERS)
+                break;
+            count += write.buffers.length;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int i = 0;
+        for (PendingWrite write : outbound) {
+            if (i == count)
+                break;
+            System.arraycopy(write.buffers, 0, buffers, i, write.buffers.length);
+            i += write.buffers.length;
+        }
+        return buffers;
+    }
+
+    // Writes as much of outbound as the channel takes without blocking. Must
+    // be called with outbound locked.
+    private void sendOutbound() throws IOException {
+        while (!outbound.isEmpty()) {
+            outboundBytes -= channel.write(gatherOutbound());
+
+            while (!outbound.isEmpty() && outbound.peek().isSent())
+                outbound.poll().release();
+            if (!outbound.isEmpty() && !outbound.peek().isSent())
+                break;  // the socket is full
+        }
+        outbound.notifyAll();
+    }
+
+    @Override
+    public SocketInformation getSource() {
+        return source;
+    }
+
+    @Override
+    public SocketInformation getDest() {
+        return dest;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public int read(byte[] bytes, int numBytes) throws IOException {
+        return Serialization.read(inputStream, bytes, numBytes);
+    }
+
+    @Override
+    public void setReadTimeout(long timeoutMillis) {
+        checkArgument(timeoutMillis >= 0, "Illegal read timeout %s", timeoutMillis);
+        readTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param bytes Not copied, so must not be modified afterwards.
+     */
+    @Override
+    public void write(byte[] bytes) throws IOException {
+        write(new PendingWrite(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, null), true);
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, SharedBuffer owner) throws IOException {
+        write(new PendingWrite(buffers, owner == null ? null : owner.retain()), true);
+    }
+
+    @Override
+    public void writeBuffered(ByteBuffer[] buffers, SharedBuffer owner) throws IOException {
+        write(new PendingWrite(buffers, owner == null ? null : owner.retain()), false);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (outbound) {
+            if (!closed.get())
+                startSending();
+        }
+    }
+
+    // Sends what the socket takes now and has the loop send the rest. Must be
+    // called with outbound locked.
+    private void startSending() throws IOException {
+        if (loopSending)
+            return;  // the loop is already waiting to send
+
+        try {
+            sendOutbound();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (!outbound.isEmpty()) {
+            loopSending = true;
+            loop.execute(() -> setInterest(SelectionKey.OP_WRITE, true));
+        }
+    }
+
+    // Takes over the write's reference to its owner. Unless flush is set,
+    // the write is held until the next flush, as long as outbound isn't full.
+    private void write(PendingWrite write, boolean flush) throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : write.buffers)
+            length += buffer.remaining();
+
+        synchronized (outbound) {
+            try {
+                while (outboundBytes >= MAX_BUFFERED_BYTES && !closed.get())
+                    outbound.wait();
+            } catch (InterruptedException e) {
+                write.release();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (closed.get()) {
+                write.release();
+                throw new IOException("Connection closed");
+            }
+
+            outbound.add(write);
+            outboundBytes += length;
+            if (flush || outboundBytes >= MAX_BUFFERED_BYTES)
+                startSending();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.getAndSet(true))
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+
+        synchronized (inbound) {
+            inbound.notifyAll();
+        }
+        synchronized (outbound) {
+            for (PendingWrite write : outbound)
+                write.release();
+            outbound.clear();
+            outboundBytes = 0;
+            outbound.notifyAll();
+        }
+    }
+}
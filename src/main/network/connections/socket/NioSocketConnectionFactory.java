@@ -0,0 +1,149 @@
+package main.network.connections.socket;
+
+import main.network.connections.Connection;
+import main.network.connections.ConnectionFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Factory for creating NioSocketConnections: socket-based Connections whose
+ * reads and writes are done by a small fixed set of EventLoops rather than by
+ * a thread per connection, so that a relay can serve many children.
+ *
+ * Connections are assigned to the loops round-robin. Accepting and opening
+ * connections still block the caller, as ConnectionFactory requires.
+ *
+ * Must be threadsafe.
+ */
+public class NioSocketConnectionFactory implements ConnectionFactory<SocketInformation> {
+    public final static int DEFAULT_NUM_LOOPS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final SocketInformation info;
+    private final ServerSocketChannel serverChannel;
+    private final SocketOptions options;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop;
+
+    // As in SocketConnectionFactory, a destination is never removed, so it
+    // can only be connected with once.
+    private final ConcurrentHashMap<SocketInformation, NioSocketConnection> connections;
+
+    // Avoid throwing exceptions in constructors
+    private NioSocketConnectionFactory(SocketInformation info,
+                                       ServerSocketChannel serverChannel,
+                                       SocketOptions options,
+                                       EventLoop[] loops) {
+        this.info = info;
+        this.serverChannel = serverChannel;
+        this.options = options;
+        this.loops = loops;
+        this.nextLoop = new AtomicInteger();
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    public static NioSocketConnectionFactory fromSocketInfo(SocketInformation info)
+            throws IOException {
+        return fromSocketInfo(info, DEFAULT_NUM_LOOPS);
+    }
+
+    public static NioSocketConnectionFactory fromSocketInfo(SocketInformation info, int numLoops)
+            throws IOException {
+        return fromSocketInfo(info, numLoops, SocketOptions.DEFAULT);
+    }
+
+    public static NioSocketConnectionFactory fromSocketInfo(SocketInformation info,
+                                                            int numLoops,
+                                                            SocketOptions options)
+            throws IOException {
+        checkArgument(numLoops > 0, "Must have at least one event loop, not %s", numLoops);
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        options.applyTo(serverChannel.socket());
+        serverChannel.bind(new InetSocketAddress(info.port));
+
+        EventLoop[] loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++)
+            loops[i] = EventLoop.start(String.format("%s event loop %d", info, i));
+        return new NioSocketConnectionFactory(info, serverChannel, options, loops);
+    }
+
+    @Override
+    public SocketInformation getKey() {
+        return info;
+    }
+
+    private EventLoop chooseLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    private Connection<SocketInformation> addConnection(SocketChannel channel,
+                                                        SocketInformation dest)
+            throws IOException {
+        NioSocketConnection connection =
+                NioSocketConnection.fromChannel(channel, chooseLoop(), info, dest);
+        if (connections.putIfAbsent(dest, connection) != null) {
+            connection.close();
+            throw new IOException("Already connected with " + dest);
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection<SocketInformation> acceptConnection() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        Socket socket = channel.socket();
+        options.applyTo(socket);
+        SocketInformation dest = new SocketInformation(
+                socket.getInetAddress().getHostAddress(),
+                socket.getPort());
+        return addConnection(channel, dest);
+    }
+
+    @Override
+    public Connection<SocketInformation> openConnection(SocketInformation dest)
+            throws IOException {
+        if (connections.containsKey(dest))
+            throw new IOException("Already connected with " + dest);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            options.applyTo(channel.socket());
+            channel.connect(new InetSocketAddress(dest.ip, dest.port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return addConnection(channel, dest);
+    }
+
+    public void kill(SocketInformation dest) {
+        this.connections.get(dest).close();
+        // do not remove dest from this.connections, so that it can not be connected to again
+    }
+
+    /**
+     * Also closes our connections, since nothing reads or writes them once
+     * the loops stop.
+     */
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+
+        for (NioSocketConnection connection : connections.values())
+            connection.close();
+        for (EventLoop loop : loops)
+            loop.close();
+    }
+}
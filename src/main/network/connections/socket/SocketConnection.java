@@ -2,22 +2,38 @@ package main.network.connections.socket;
 
 import main.network.connections.Connection;
 import main.util.Serialization;
+import main.util.SharedBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A socket-based Connection.
+ *
+ * Buffered writes (see writeBuffered()) are copied into a buffer that's sent
+ * with a single write once it fills up or is flushed, together with the next
+ * write() if that fits. The frames and messages a child's send queue writes
+ * one after another therefore go out in as few packets as they fit in.
  */
 public class SocketConnection implements Connection<SocketInformation> {
+    // How many bytes writeBuffered() holds on to before sending them.
+    private final static int WRITE_BUFFER_BYTES = 64 * 1024;
+
     private final Socket socket;
     private final InputStream inputStream;
     private final OutputStream outputStream;
     private final SocketInformation source;
     private final SocketInformation dest;
 
+    // Bytes written with writeBuffered() but not yet sent. Guarded by this.
+    private final byte[] writeBuffer;
+    private int writeBufferLength;
+
     // To avoid throwing exceptions in the constructor, we make it private.
     private SocketConnection(Socket socket,
                              InputStream inputStream,
@@ -29,6 +45,8 @@ public class SocketConnection implements Connection<SocketInformation> {
         this.outputStream = outputStream;
         this.source = source;
         this.dest = dest;
+        this.writeBuffer = new byte[WRITE_BUFFER_BYTES];
+        this.writeBufferLength = 0;
     }
 
     public static SocketConnection fromSocket(Socket socket,
@@ -70,8 +88,55 @@ public class SocketConnection implements Connection<SocketInformation> {
     }
 
     @Override
-    public void write(byte[] bytes) throws IOException {
-        outputStream.write(bytes);
+    public void setReadTimeout(long timeoutMillis) throws IOException {
+        checkArgument(timeoutMillis >= 0 && timeoutMillis <= Integer.MAX_VALUE,
+                "Illegal read timeout %s", timeoutMillis);
+        if (socket.getSoTimeout() != timeoutMillis)
+            socket.setSoTimeout((int)timeoutMillis);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes) throws IOException {
+        if (bytes.length <= writeBuffer.length - writeBufferLength) {
+            System.arraycopy(bytes, 0, writeBuffer, writeBufferLength, bytes.length);
+            writeBufferLength += bytes.length;
+            flush();
+        } else {
+            flush();
+            outputStream.write(bytes);
+        }
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer[] buffers, SharedBuffer owner) throws IOException {
+        writeBuffered(buffers, owner);
+        flush();
+    }
+
+    /**
+     * The buffers are copied, so owner isn't retained.
+     */
+    @Override
+    public synchronized void writeBuffered(ByteBuffer[] buffers, SharedBuffer owner)
+            throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                if (writeBufferLength == writeBuffer.length)
+                    flush();
+
+                int n = Math.min(buffer.remaining(), writeBuffer.length - writeBufferLength);
+                buffer.get(writeBuffer, writeBufferLength, n);
+                writeBufferLength += n;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (writeBufferLength > 0) {
+            outputStream.write(writeBuffer, 0, writeBufferLength);
+            writeBufferLength = 0;
+        }
     }
 
     @Override
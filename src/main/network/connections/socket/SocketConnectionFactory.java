@@ -4,6 +4,7 @@ import main.network.connections.Connection;
 import main.network.connections.ConnectionFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ConcurrentHashMap;
@@ -16,21 +17,33 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SocketConnectionFactory implements ConnectionFactory<SocketInformation> {
     private final SocketInformation info;
     private final ServerSocket serverSocket;
+    private final SocketOptions options;
 
     // you can once a SocketInfo is added, it is never removed. aka, you can only connect with a given SocketInfo once
     private final ConcurrentHashMap<SocketInformation, SocketConnection> connections;
 
     // Avoid throwing exceptions in constructors
     private SocketConnectionFactory(SocketInformation info,
-                                   ServerSocket serverSocket) {
+                                   ServerSocket serverSocket,
+                                   SocketOptions options) {
         this.info = info;
         this.serverSocket = serverSocket;
+        this.options = options;
         this.connections = new ConcurrentHashMap<>();
     }
 
     public static SocketConnectionFactory fromSocketInfo(SocketInformation info)
             throws IOException {
-        return new SocketConnectionFactory(info, new ServerSocket(info.port));
+        return fromSocketInfo(info, SocketOptions.DEFAULT);
+    }
+
+    public static SocketConnectionFactory fromSocketInfo(SocketInformation info,
+                                                         SocketOptions options)
+            throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        options.applyTo(serverSocket);
+        serverSocket.bind(new InetSocketAddress(info.port));
+        return new SocketConnectionFactory(info, serverSocket, options);
     }
 
     @Override
@@ -46,6 +59,7 @@ public class SocketConnectionFactory implements ConnectionFactory<SocketInformat
     @Override
     public Connection<SocketInformation> acceptConnection() throws IOException {
         Socket socket = serverSocket.accept();
+        options.applyTo(socket);
         SocketInformation dest = new SocketInformation(
                 socket.getInetAddress().getHostAddress(),
                 socket.getPort());
@@ -64,10 +78,15 @@ public class SocketConnectionFactory implements ConnectionFactory<SocketInformat
         if (this.connections.get(dest) != null) {
             throw new IOException();
         } else {
-            this.connections.putIfAbsent(dest, SocketConnection.fromSocket(
-                    new Socket(dest.ip, dest.port),
-                    info,
-                    dest));
+            Socket socket = new Socket();
+            try {
+                options.applyTo(socket);
+                socket.connect(new InetSocketAddress(dest.ip, dest.port));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.connections.putIfAbsent(dest, SocketConnection.fromSocket(socket, info, dest));
             return this.connections.get(dest);
         }
     }
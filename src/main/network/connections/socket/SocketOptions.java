@@ -0,0 +1,107 @@
+package main.network.connections.socket;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Immutable set of TCP options the socket factories set on every socket they
+ * accept or open.
+ *
+ * Nagle's algorithm is off by default: connections batch their own writes
+ * (see Connection.writeBuffered()), so whatever they send is already as
+ * large as it's going to get, and waiting for more only delays frames.
+ *
+ * The buffer sizes default to the OS's. Setting them turns off the kernel's
+ * own tuning of them on Linux, so they're worth setting only to go beyond
+ * what it picks, e.g., on a link with a large bandwidth-delay product.
+ */
+public class SocketOptions {
+    public final static SocketOptions DEFAULT = new Builder().build();
+
+    public static class Builder {
+        private boolean tcpNoDelay;
+        private boolean keepAlive;
+        private int sendBufferBytes;
+        private int receiveBufferBytes;
+
+        public Builder() {
+            tcpNoDelay = true;
+            keepAlive = true;
+            sendBufferBytes = 0;
+            receiveBufferBytes = 0;
+        }
+
+        public Builder setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        // Whether the OS checks that idle peers are still there. Our own
+        // keepalives (see ClientList.KEEPALIVE_PREFIX) notice much sooner;
+        // this catches peers that go away while we're only reading.
+        public Builder setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        // 0 for the OS's default.
+        public Builder setSendBufferBytes(int sendBufferBytes) {
+            checkArgument(sendBufferBytes >= 0, "Illegal send buffer size %s", sendBufferBytes);
+            this.sendBufferBytes = sendBufferBytes;
+            return this;
+        }
+
+        // 0 for the OS's default.
+        public Builder setReceiveBufferBytes(int receiveBufferBytes) {
+            checkArgument(receiveBufferBytes >= 0,
+                    "Illegal receive buffer size %s", receiveBufferBytes);
+            this.receiveBufferBytes = receiveBufferBytes;
+            return this;
+        }
+
+        public SocketOptions build() {
+            return new SocketOptions(tcpNoDelay, keepAlive, sendBufferBytes, receiveBufferBytes);
+        }
+    }
+
+    public final boolean tcpNoDelay;
+    public final boolean keepAlive;
+    public final int sendBufferBytes;
+    public final int receiveBufferBytes;
+
+    private SocketOptions(boolean tcpNoDelay,
+                          boolean keepAlive,
+                          int sendBufferBytes,
+                          int receiveBufferBytes) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.sendBufferBytes = sendBufferBytes;
+        this.receiveBufferBytes = receiveBufferBytes;
+    }
+
+    /**
+     * Sets the options on a socket, which should be done before it connects
+     * so that the receive buffer size can be used for the TCP window.
+     */
+    void applyTo(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBufferBytes > 0)
+            socket.setSendBufferSize(sendBufferBytes);
+        if (receiveBufferBytes > 0)
+            socket.setReceiveBufferSize(receiveBufferBytes);
+    }
+
+    /**
+     * Sets the receive buffer size that accepted sockets start with, which
+     * must be done before the server socket is bound. The rest of the options
+     * are set on each socket as it's accepted.
+     */
+    void applyTo(ServerSocket serverSocket) throws SocketException {
+        if (receiveBufferBytes > 0)
+            serverSocket.setReceiveBufferSize(receiveBufferBytes);
+    }
+}
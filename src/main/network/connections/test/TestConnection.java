@@ -7,9 +7,13 @@ import main.util.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A threadsafe connection intended to be used locally for testing
  * NetworkProtocol implementations.
@@ -29,9 +33,15 @@ public class TestConnection implements Connection<String> {
 
         @Override
         public int read() throws IOException {
+            long timeoutMillis = readTimeoutMillis;
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
             Byte value;
-            while ((value = readQueue.poll()) == null && !closed.get())
+            while ((value = readQueue.poll()) == null && !closed.get()) {
+                if (timeoutMillis != 0 && System.nanoTime() - deadlineNanos >= 0)
+                    throw new SocketTimeoutException("Read timed out");
                 Util.sleepMillis(10);
+            }
             if (closed.get() || value == null)
                 throw new IOException("Stream closed");
 
@@ -43,6 +53,7 @@ public class TestConnection implements Connection<String> {
     private final TestConnectionManager manager;
 
     private final AtomicBoolean closed;
+    private volatile long readTimeoutMillis;
 
     private final ConcurrentLinkedQueue<Byte> readQueue;
     private final ConcurrentLinkedQueue<Byte> writeQueue;
@@ -58,6 +69,7 @@ public class TestConnection implements Connection<String> {
                           String dest) {
         this.manager = manager;
         this.closed = new AtomicBoolean(false);
+        this.readTimeoutMillis = 0;
         this.readQueue = readQueue;
         this.writeQueue = writeQueue;
         this.inputStream = new RateLimitingInputStream(new TestConnectionInputStream(closed));
@@ -89,6 +101,12 @@ public class TestConnection implements Connection<String> {
         return bytesRead;
     }
 
+    @Override
+    public void setReadTimeout(long timeoutMillis) {
+        checkArgument(timeoutMillis >= 0, "Illegal read timeout %s", timeoutMillis);
+        readTimeoutMillis = timeoutMillis;
+    }
+
     @Override
     public void write(byte[] bytes) throws IOException {
         for (byte b : bytes)
@@ -1,36 +1,295 @@
 package main.network.protocols;
 
 import main.Snapshot;
+import main.encoding.DeltaEncoder;
+import main.encoding.EncodingOptions;
+import main.encoding.FrameCodec;
+import main.encoding.TileCache;
+import main.encoding.TileDelta;
 import main.network.connections.Connection;
+import main.util.SharedBuffer;
 import main.util.Util;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.*;
 
 /**
  * Holds a list of connections to clients requesting snapshots.
+ *
+ * Each connection is subscribed to a set of layers (see Snapshot) and is only
+ * sent snapshots on those layers. New connections are subscribed to the
+ * default layer until they ask for something else.
+ *
+ * Receivers may report how many snapshots they've read, from which we
+ * measure whether they're keeping up (see ThroughputMonitor). With
+ * EncodingOptions.downscaleSlowReceivers, those that aren't are sent scaled
+ * down keyframes instead of the frames everyone else gets until they catch
+ * up, followed by a full keyframe.
+ *
+ * With EncodingOptions.previews, keyframes we encode are preceded by a
+ * preview. Previews we receive are forwarded as soon as they're read, ahead of
+ * the rest of the frame.
+ *
+ * Everything is sent as messages (see Messages). Relays don't need to wait
+ * for a whole frame before forwarding it: see startForwarding().
+ *
+ * Frames are copied once for all the connections they're sent to (see
+ * Messages.SharedFrame), and connections that can write them without
+ * another copy do.
+ *
+ * Each connection has its own queue of what's waiting to be sent to it (see
+ * SendQueue), so that a slow connection doesn't hold up the others or
+ * whoever is sending. Frames dropped from a full queue are followed by a
+ * keyframe on their layer. Those keyframes, and the scaled keyframes for
+ * receivers that aren't keeping up, are encoded by the receivers' writers
+ * rather than whoever is sending.
  */
 public class ClientList<TKey> {
+    // Sent when there's no new snapshot to send (e.g., the screen hasn't
+    // changed), so that clients know we're still alive and don't time out.
+    // Receivers just skip it.
+    public final static byte KEEPALIVE_PREFIX = 0x51;
+
+    // Comfortably below the protocols' read timeouts.
+    private final static long KEEPALIVE_MILLIS = 1000;
+
     private final TKey key;
     private final List<Connection<TKey>> connections;
 
     // If connectionHandler != null, we'll spawn a new thread and run the
     // connectionHandler on it. When the connectionHandler returns, the
     // connection will be killed.
-    private final Consumer<Connection> connectionHandler;
+    private final Consumer<Connection<TKey>> connectionHandler;
+
+    // The state we keep for each layer we've been given snapshots on.
+    private class Layer {
+        // When a client subscribes to the layer, we send this to them if it
+        // isn't null.
+        private final AtomicReference<Snapshot> mostRecentSnapshot;
+
+        // Encodes the snapshots sent to all connections subscribed to the
+        // layer. Newly subscribed connections are always sent a keyframe
+        // instead, since they don't have a base frame. Snapshots we received
+        // from a parent are forwarded exactly as they were encoded and don't
+        // go through the encoder.
+        private final DeltaEncoder encoder;
+
+        private Layer() {
+            this.mostRecentSnapshot = new AtomicReference<>();
+            this.encoder = new DeltaEncoder(options);
+            this.encoder.setCodec(codec);
+        }
+    }
+
+    private final EncodingOptions options;
+    private final Map<Integer, Layer> layers;
+    private volatile FrameCodec codec;
+
+    // What we know about each connection.
+    private static class Receiver implements SendQueue.Sender {
+        private final Connection<?> connection;
+        private final ThroughputMonitor monitor;
+        private final SendQueue queue;
+
+        // The layers the connection is subscribed to.
+        private long layers;
+
+        // The layers we've sent scaled keyframes on; the receiver needs a
+        // full keyframe on them before it can apply delta frames again.
+        private long scaledLayers;
+
+        // The layers frames were dropped on (see SendQueue), which also need
+        // a keyframe.
+        private long droppedLayers;
+
+        // The layers we've sent a keyframe on that isn't part of the stream
+        // (e.g., the first frame a connection gets). The receiver's tile
+        // cache (see TileDelta) is out of sync with the stream's until the
+        // stream's next keyframe, so until then, delta frames that refer to
+        // the cache are sent to it as keyframes.
+        private long offStreamLayers;
+
+        private Receiver(Connection<?> connection,
+                         ExecutorService writers,
+                         EncodingOptions options,
+                         BiConsumer<Receiver, IOException> onFailure) {
+            this.connection = connection;
+            this.monitor = new ThroughputMonitor();
+            this.queue = new SendQueue(this, writers, options, e -> onFailure.accept(this, e));
+            this.layers = Snapshot.layerMask(Snapshot.DEFAULT_LAYER);
+            this.scaledLayers = 0;
+            this.droppedLayers = 0;
+            this.offStreamLayers = 0;
+        }
+
+        @Override
+        public void sendFrame(Snapshot snapshot, Messages.SharedFrame frame) throws IOException {
+            writeSnapshot(connection, this, snapshot, frame);
+        }
+
+        @Override
+        public void sendForwardedMessage(ByteBuffer[] message, SharedBuffer owner)
+                throws IOException {
+            Util.threadsafeWriteBuffered(connection, message, owner);
+        }
+
+        @Override
+        public void onFrameForwarded(int length) {
+            monitor.onSend(length, System.nanoTime());
+        }
+
+        @Override
+        public void sendMessage(byte[] bytes) throws IOException {
+            Util.threadsafeWriteBuffered(
+                    connection, new ByteBuffer[] { ByteBuffer.wrap(bytes) }, null);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Util.threadsafeFlush(connection);
+        }
+    }
 
-    // When a new client connects, we send this to them if it isn't null.
-    private final AtomicReference<Snapshot> mostRecentSnapshot;
+    // By destination. Written while connections is locked.
+    private final Map<TKey, Receiver> receivers;
 
-    public ClientList(TKey key, /* nullable */ Consumer<Connection> connectionHandler) {
+    // When we last sent anything to the connections.
+    private final AtomicLong lastSendNanos;
+
+    // Run the receivers' send queues.
+    private final ExecutorService writers;
+
+    public ClientList(TKey key, /* nullable */ Consumer<Connection<TKey>> connectionHandler) {
+        this(key, connectionHandler, EncodingOptions.DEFAULT);
+    }
+
+    public ClientList(TKey key,
+                      /* nullable */ Consumer<Connection<TKey>> connectionHandler,
+                      EncodingOptions options) {
         this.key = key;
         this.connections = Collections.synchronizedList(new LinkedList<>());
         this.connectionHandler = connectionHandler;
-        this.mostRecentSnapshot = new AtomicReference<>();
+        this.options = options;
+        this.layers = new ConcurrentHashMap<>();
+        this.codec = null;
+        this.receivers = new ConcurrentHashMap<>();
+        this.lastSendNanos = new AtomicLong(System.nanoTime());
+        this.writers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, key + " writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private Layer getLayer(int layer) {
+        return layers.computeIfAbsent(layer, l -> new Layer());
+    }
+
+    // See DeltaEncoder.setCodec(). Applies to every layer.
+    public void setCodec(/* nullable */ FrameCodec codec) {
+        this.codec = codec;
+        for (Layer layer : layers.values())
+            layer.encoder.setCodec(codec);
+    }
+
+    // The sender side of the default layer's tile cache, for its hit and
+    // miss counters.
+    public TileCache getTileCache() {
+        return getLayer(Snapshot.DEFAULT_LAYER).encoder.getTileCache();
+    }
+
+    // The union of the layers our connections are subscribed to.
+    public long getSubscribedLayers() {
+        long result = 0;
+        for (Receiver receiver : receivers.values())
+            result |= receiver.layers;
+        return result;
+    }
+
+    // What's queued for each connection, and how many frames were sent and
+    // dropped (see SendQueue), by destination.
+    public Map<TKey, SendQueue.Stats> getSendQueueStats() {
+        Map<TKey, SendQueue.Stats> result = new HashMap<>();
+        for (Map.Entry<TKey, Receiver> entry : receivers.entrySet())
+            result.put(entry.getKey(), entry.getValue().queue.getStats());
+        return result;
+    }
+
+    /**
+     * Records that the connection's destination has read this many of the
+     * snapshots we've sent it.
+     */
+    public void onSnapshotsRead(TKey dest, long totalRead) {
+        Receiver receiver = receivers.get(dest);
+        if (receiver != null)
+            receiver.monitor.onReport(totalRead, System.nanoTime());
+    }
+
+    // Writes the frame's messages one by one, so that others can be written
+    // in between. They're buffered until the receiver's queue flushes them.
+    // Only the receiver's queue writes frames, so two frames' chunks are
+    // never interleaved (see Messages).
+    private static void writeSnapshot(Connection<?> connection,
+                                      Receiver receiver,
+                                      Snapshot snapshot,
+                                      Messages.SharedFrame frame) throws IOException {
+        int length = 0;
+        for (ByteBuffer[] message : frame.toMessages(snapshot.getReceivedMicros())) {
+            for (ByteBuffer buffer : message)
+                length += buffer.remaining();
+            Util.threadsafeWriteBuffered(connection, message, frame.getPayload());
+        }
+        receiver.monitor.onSend(length, System.nanoTime());
+    }
+
+    // Queues a keyframe that isn't part of the stream for a single
+    // connection.
+    private static void queueSnapshot(Receiver receiver, Snapshot snapshot, byte[] bytes)
+            throws IOException {
+        Messages.SharedFrame frame = new Messages.SharedFrame(bytes);
+        try {
+            receiver.queue.addFrame(snapshot, frame);
+            receiver.offStreamLayers |= Snapshot.layerMask(snapshot.getLayer());
+        } finally {
+            frame.release();
+        }
+    }
+
+    // Whether the delta frame at the offset in bytes (see
+    // TileDelta.hasCacheReferences()) refers to the sender's tile cache.
+    // Frames we can't tell about are assumed to.
+    private static boolean hasCacheReferences(byte[] bytes, int offset) {
+        try {
+            return TileDelta.hasCacheReferences(bytes, offset);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // Stops sending to the connection, if it's still ours.
+    private void remove(Connection<TKey> connection, Receiver receiver) {
+        connection.close();
+        receiver.queue.close();
+        synchronized (connections) {
+            if (receivers.remove(connection.getDest(), receiver))
+                connections.remove(connection);
+        }
+    }
+
+    private void onWriteFailed(Connection<TKey> connection, Receiver receiver, IOException e) {
+        Util.printException("Error writing to connection", e);
+        remove(connection, receiver);
     }
 
     public void addConnection(Connection<TKey> connection) {
@@ -38,32 +297,39 @@ public class ClientList<TKey> {
                 "Tried to add connection where source (%s) was not us (%s)",
                 connection.getSource(), key);
 
-        if (mostRecentSnapshot.get() != null) {
-            // Send the snapshot before we add it to the connections list,
-            // otherwise another thread may call sendSnapshot(), which would
-            // write to the connection simultaneously.
+        Receiver receiver = new Receiver(connection, writers, options,
+                (r, e) -> onWriteFailed(connection, r, e));
+        Snapshot mostRecentSnapshot =
+                getLayer(Snapshot.DEFAULT_LAYER).mostRecentSnapshot.get();
+        if (mostRecentSnapshot != null) {
+            // Queue the snapshot before we add it to the connections list, so
+            // that it's sent ahead of anything sendSnapshot() queues.
             try {
-                byte[] bytes = getSnapshotBytes(mostRecentSnapshot.get());
+                byte[] bytes = getKeyframeBytes(mostRecentSnapshot);
                 if (bytes != null)
-                    connection.write(bytes);
+                    queueSnapshot(receiver, mostRecentSnapshot, bytes);
             } catch (IOException e) {
                 Util.printException(
-                        "Error writing most recent snapshot to new connection (dest "
+                        "Error queueing most recent snapshot for new connection (dest "
                                 + connection.getDest() + ")", e);
-                return;  // No reason to add this connection if it just crashed
+                receiver.queue.close();
+                return;
             }
         }
 
-        connections.add(connection);
+        synchronized (connections) {
+            receivers.put(connection.getDest(), receiver);
+            connections.add(connection);
+        }
 
         if (connectionHandler != null)
-            new Thread(new ConnectionHandler<>(connection)).start();
+            new Thread(new ConnectionHandler(connection)).start();
     }
 
-    private class ConnectionHandler<T> implements Runnable {
-        private final Connection<T> connection;
+    private class ConnectionHandler implements Runnable {
+        private final Connection<TKey> connection;
 
-        public ConnectionHandler(Connection<T> connection) {
+        public ConnectionHandler(Connection<TKey> connection) {
             this.connection = connection;
         }
 
@@ -71,13 +337,71 @@ public class ClientList<TKey> {
         public void run() {
             connectionHandler.accept(connection);
             connection.close();
-            connections.removeIf(conn -> conn.getDest().equals(connection.getDest()));
+            synchronized (connections) {
+                connections.removeIf(conn -> conn.getDest().equals(connection.getDest()));
+                Receiver receiver = receivers.remove(connection.getDest());
+                if (receiver != null)
+                    receiver.queue.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the layers the connection is subscribed to. The connection is
+     * sent a keyframe of the most recent snapshot on each layer it wasn't
+     * subscribed to before, so it can start decoding right away.
+     *
+     * @param layers A bitmask of layers (see Snapshot.layerMask()).
+     */
+    public void subscribe(Connection<TKey> connection, long layers) throws IOException {
+        synchronized (connections) {
+            Receiver receiver = receivers.get(connection.getDest());
+            if (receiver == null)
+                return;  // no longer connected
+
+            long added = layers & ~receiver.layers;
+            for (int layer = 0; layer < Snapshot.MAX_LAYERS; layer++) {
+                if ((added & Snapshot.layerMask(layer)) == 0)
+                    continue;
+
+                Snapshot snapshot = getLayer(layer).mostRecentSnapshot.get();
+                byte[] bytes = snapshot == null ? null : getKeyframeBytes(snapshot);
+                if (bytes != null)
+                    queueSnapshot(receiver, snapshot, bytes);
+            }
+            receiver.layers = layers;
+        }
+    }
+
+    private byte[] getKeyframeBytes(Snapshot snapshot) {
+        try {
+            return getLayer(snapshot.getLayer()).encoder.encodeKeyframe(snapshot);
+        } catch (IOException|UncheckedIOException e) {
+            Util.printException(
+                    String.format("Error converting snapshot %d to bytes:\n",
+                            snapshot.getFrameIndex()),
+                    e);
+            return null;
+        }
+    }
+
+    private byte[] getScaledKeyframeBytes(Snapshot snapshot) {
+        try {
+            return getLayer(snapshot.getLayer()).encoder.encodeScaledKeyframe(snapshot);
+        } catch (IOException|UncheckedIOException e) {
+            Util.printException(
+                    String.format("Error converting snapshot %d to bytes:\n",
+                            snapshot.getFrameIndex()),
+                    e);
+            return null;
         }
     }
 
     private byte[] getSnapshotBytes(Snapshot snapshot) {
         try {
-            return snapshot.toBytes();
+            if (snapshot.isEncoded())
+                return snapshot.toBytes();
+            return getLayer(snapshot.getLayer()).encoder.encode(snapshot);
         } catch (IOException e) {
             Util.printException(
                     String.format("Error converting snapshot %d to bytes:\n",
@@ -93,35 +417,346 @@ public class ClientList<TKey> {
                 it.next().close();
                 it.remove();
             }
+            for (Receiver receiver : receivers.values())
+                receiver.queue.close();
+            receivers.clear();
         }
     }
 
+    // The bytes should be whole messages (see Messages) other than frames.
+    // They're queued for each connection (see SendQueue) and never dropped.
     public void sendBytesToConnections(byte[] bytes) {
+        lastSendNanos.set(System.nanoTime());
         synchronized (connections) {
-            for (Iterator<Connection<TKey>> it  = connections.iterator(); it.hasNext(); ) {
-                Connection<TKey> connection = it.next();
-                try {
-                    Util.threadsafeWrite(connection, bytes);
-                } catch (IOException e) {
-                    Util.printException("Error writing to connection", e);
-                    connection.close();
-                    it.remove();
+            for (Connection<TKey> connection : connections) {
+                Receiver receiver = receivers.get(connection.getDest());
+                if (receiver != null)
+                    receiver.queue.addMessage(bytes);
+            }
+        }
+    }
+
+    // Makes room in the receiver's queue for a frame (see SendQueue). Returns
+    // false if the connection was disconnected instead, in which case it's
+    // removed from connections through it. Must be called with connections
+    // locked.
+    private boolean makeRoom(Iterator<Connection<TKey>> it,
+                             Connection<TKey> connection,
+                             Receiver receiver) {
+        try {
+            receiver.droppedLayers |= receiver.queue.makeRoom();
+            return true;
+        } catch (IOException e) {
+            Util.printException("Disconnecting connection that isn't keeping up", e);
+            connection.close();
+            receiver.queue.close();
+            it.remove();
+            receivers.remove(connection.getDest());
+            return false;
+        }
+    }
+
+    // Another encoding of a snapshot than the one everyone gets, for
+    // receivers that aren't keeping up. Made by the first of their writers
+    // to get to it (see SendQueue.LazyFrame) rather than whoever sends the
+    // snapshot, which for a relay is the thread reading from its parent.
+    private class Reencoding implements SendQueue.LazyFrame {
+        private final Snapshot snapshot;
+        private final byte frameType;
+
+        // Guarded by this.
+        private boolean encoded;
+        private byte[] bytes;
+
+        private Reencoding(Snapshot snapshot, byte frameType) {
+            this.snapshot = snapshot;
+            this.frameType = frameType;
+            this.encoded = false;
+            this.bytes = null;
+        }
+
+        @Override
+        public synchronized byte[] getBytes() {
+            if (!encoded) {
+                bytes = frameType == Snapshot.SCALED_KEYFRAME
+                        ? getScaledKeyframeBytes(snapshot)
+                        : getKeyframeBytes(snapshot);
+                encoded = true;
+            }
+            return bytes;
+        }
+    }
+
+    // Picks what to send the receiver for a snapshot: null for the encoding
+    // everyone gets, or another encoding of it, by frame type. A reencoding
+    // that fails is reported as dropped by the receiver's queue, which flags
+    // its layer again (see makeRoom()).
+    private /* nullable */ Reencoding getReencoding(Receiver receiver,
+                                                    Snapshot snapshot,
+                                                    boolean isDeltaFrame,
+                                                    boolean hasCacheReferences,
+                                                    Map<Byte, Reencoding> reencodings) {
+        long layer = Snapshot.layerMask(snapshot.getLayer());
+        if (options.downscaleSlowReceivers && receiver.monitor.isBehind(System.nanoTime())) {
+            receiver.scaledLayers |= layer;
+            receiver.offStreamLayers |= layer;
+            return reencodings.computeIfAbsent(
+                    Snapshot.SCALED_KEYFRAME, t -> new Reencoding(snapshot, t));
+        }
+
+        boolean needsKeyframe = ((receiver.scaledLayers | receiver.droppedLayers) & layer) != 0 ||
+                (hasCacheReferences && (receiver.offStreamLayers & layer) != 0);
+        receiver.scaledLayers &= ~layer;
+        receiver.droppedLayers &= ~layer;
+        if (!isDeltaFrame) {
+            // A keyframe on the stream, which clears the stream's cache.
+            receiver.offStreamLayers &= ~layer;
+            return null;
+        } else if (!needsKeyframe)
+            return null;
+
+        receiver.offStreamLayers |= layer;
+        return reencodings.computeIfAbsent(
+                Snapshot.KEYFRAME, t -> new Reencoding(snapshot, t));
+    }
+
+    // Only sends to connections subscribed to the snapshot's layer. Previews
+    // are small, so everyone gets the same bytes.
+    private void sendSnapshotBytes(Snapshot snapshot,
+                                   byte[] bytes,
+                                   boolean preview,
+                                   Set<TKey> skip) {
+        long layer = Snapshot.layerMask(snapshot.getLayer());
+
+        // Other encodings of the snapshot, by frame type, encoded by the
+        // writers of the receivers that need them.
+        Map<Byte, Reencoding> reencodings = new HashMap<>();
+
+        lastSendNanos.set(System.nanoTime());
+        Messages.SharedFrame frame;
+        try {
+            frame = new Messages.SharedFrame(bytes);
+        } catch (IOException e) {
+            Util.printException(
+                    String.format("Error splitting snapshot %d into messages:\n",
+                            snapshot.getFrameIndex()),
+                    e);
+            return;
+        }
+
+        // The frame is copied once for everyone it's sent to as it is.
+        try {
+            boolean isDeltaFrame = frame.getHeader().frameType == Snapshot.DELTA_FRAME;
+            boolean hasCacheReferences = isDeltaFrame &&
+                    hasCacheReferences(bytes, frame.getHeader().getLength());
+
+            synchronized (connections) {
+                for (Iterator<Connection<TKey>> it  = connections.iterator(); it.hasNext(); ) {
+                    Connection<TKey> connection = it.next();
+                    Receiver receiver = receivers.get(connection.getDest());
+                    if (receiver == null ||
+                            (receiver.layers & layer) == 0 ||
+                            skip.contains(connection.getDest()))
+                        continue;
+
+                    if (!makeRoom(it, connection, receiver))
+                        continue;
+
+                    Reencoding reencoding = preview
+                            ? null
+                            : getReencoding(receiver, snapshot, isDeltaFrame,
+                                            hasCacheReferences, reencodings);
+                    if (reencoding == null)
+                        receiver.queue.addFrame(snapshot, frame);
+                    else
+                        receiver.queue.addFrame(snapshot, reencoding);
                 }
             }
+        } finally {
+            frame.release();
         }
     }
 
+    /**
+     * Sends a keepalive if nothing has been sent for a while. Should be
+     * called regularly by whoever sends snapshots.
+     */
+    public void maybeSendKeepalive() {
+        if (System.nanoTime() - lastSendNanos.get() >= KEEPALIVE_MILLIS * 1000000)
+            sendBytesToConnections(Messages.toBytes(KEEPALIVE_PREFIX));
+    }
+
+    private void sendPreview(Snapshot snapshot) {
+        try {
+            byte[] bytes = getLayer(snapshot.getLayer()).encoder.encodePreview(snapshot);
+            sendSnapshotBytes(snapshot, bytes, true, Collections.emptySet());
+        } catch (IOException|UncheckedIOException e) {
+            Util.printException(
+                    String.format("Error encoding preview of snapshot %d:\n",
+                            snapshot.getFrameIndex()),
+                    e);
+        }
+    }
+
+    // Whether a connection not in skip is subscribed to one of the layers.
+    private boolean hasSubscribers(long layers, Set<TKey> skip) {
+        for (Map.Entry<TKey, Receiver> entry : receivers.entrySet())
+            if ((entry.getValue().layers & layers) != 0 && !skip.contains(entry.getKey()))
+                return true;
+        return false;
+    }
+
+    // Whether the receiver can be sent the frame's bytes as they are. Call
+    // makeRoom() first, since frames it drops need a keyframe next.
+    private boolean canForwardTo(Receiver receiver,
+                                 Snapshot.Header header,
+                                 boolean hasCacheReferences) {
+        long layer = Snapshot.layerMask(header.layer);
+        if ((receiver.layers & layer) == 0)
+            return false;
+        if (header.frameType == Snapshot.PREVIEW)
+            return true;
+        if ((receiver.droppedLayers & layer) != 0)
+            return false;
+        if (hasCacheReferences && (receiver.offStreamLayers & layer) != 0)
+            return false;
+        if (!options.downscaleSlowReceivers)
+            return true;
+        return (receiver.scaledLayers & layer) == 0 &&
+                !receiver.monitor.isBehind(System.nanoTime());
+    }
+
+    /**
+     * A frame being forwarded to our children chunk by chunk as we read it
+     * from our parent, so that its latency grows with the depth of the tree
+     * by the time to send a chunk rather than a whole frame.
+     *
+     * It's queued for the connections that can take the frame as it is (see
+     * getReencoding()), like any other frame, and its chunks are added to
+     * their queues as they're read (see SendQueue.ForwardedFrame), so a
+     * connection that isn't keeping up never holds up whoever forwards. No
+     * other frame is sent to them until the Forward is closed, so it must be
+     * closed, and should be closed as soon as the frame is done.
+     */
+    public class Forward implements AutoCloseable {
+        private final Snapshot.Header header;
+
+        // By destination.
+        private final Map<TKey, SendQueue.ForwardedFrame> targets;
+        private boolean finished;
+
+        private Forward(Snapshot.Header header, Map<TKey, SendQueue.ForwardedFrame> targets) {
+            this.header = header;
+            this.targets = targets;
+            this.finished = false;
+        }
+
+        // Queues a message of the frame (see Messages) for our targets.
+        public void forwardChunk(Messages.Message chunk) {
+            SharedBuffer body = SharedBuffer.copyOf(chunk.body);
+            lastSendNanos.set(System.nanoTime());
+            try {
+                for (SendQueue.ForwardedFrame target : targets.values())
+                    target.add(chunk.type, body);
+            } finally {
+                body.release();
+            }
+        }
+
+        // Marks that every chunk of the frame was forwarded. Otherwise the
+        // targets drop the partial frame when the next one starts.
+        public void finish() {
+            finished = true;
+        }
+
+        // The destinations the whole frame was queued for.
+        public Set<TKey> getDestinations() {
+            return new HashSet<>(targets.keySet());
+        }
+
+        @Override
+        public void close() {
+            for (SendQueue.ForwardedFrame target : targets.values())
+                target.finish(finished);
+
+            // A keyframe on the stream, which clears the stream's cache.
+            if (!finished ||
+                    header.frameType == Snapshot.DELTA_FRAME ||
+                    header.frameType == Snapshot.PREVIEW)
+                return;
+            long layer = Snapshot.layerMask(header.layer);
+            synchronized (connections) {
+                for (TKey dest : targets.keySet()) {
+                    Receiver receiver = receivers.get(dest);
+                    if (receiver != null)
+                        receiver.offStreamLayers &= ~layer;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts forwarding a frame we're reading from our parent. Pass each of
+     * its messages, starting with first, to forwardChunk(); then pass the
+     * snapshot to sendSnapshot(), skipping the Forward's destinations.
+     *
+     * @param first The frame's SNAPSHOT_PREFIX message.
+     */
+    public Forward startForwarding(Messages.PartialFrame frame, Messages.Message first)
+            throws IOException {
+        Snapshot.Header header = frame.header;
+        long layer = Snapshot.layerMask(header.layer);
+        boolean hasCacheReferences = header.frameType == Snapshot.DELTA_FRAME &&
+                hasCacheReferences(first.body, header.getLength() - 1);
+        Map<TKey, SendQueue.ForwardedFrame> targets = new LinkedHashMap<>();
+        synchronized (connections) {
+            for (Iterator<Connection<TKey>> it = connections.iterator(); it.hasNext(); ) {
+                Connection<TKey> connection = it.next();
+                Receiver receiver = receivers.get(connection.getDest());
+                if (receiver == null ||
+                        (receiver.layers & layer) == 0 ||
+                        !makeRoom(it, connection, receiver) ||
+                        !canForwardTo(receiver, header, hasCacheReferences))
+                    continue;
+
+                targets.put(connection.getDest(), receiver.queue.addForwardedFrame(header));
+            }
+        }
+
+        Forward forward = new Forward(header, targets);
+        forward.forwardChunk(Messages.withHop(first, frame.receivedMicros));
+        return forward;
+    }
+
     public void sendSnapshot(Snapshot snapshot) {
-        mostRecentSnapshot.set(snapshot);
+        sendSnapshot(snapshot, Collections.emptySet());
+    }
+
+    /**
+     * @param skip Destinations of connections not to send the snapshot to
+     *      (e.g., because it was already forwarded to them).
+     */
+    public void sendSnapshot(Snapshot snapshot, Set<TKey> skip) {
+        Layer layer = getLayer(snapshot.getLayer());
+        if (!snapshot.isPreview())
+            layer.mostRecentSnapshot.set(snapshot);
 
-        if (connections.size() == 0)
+        long mask = Snapshot.layerMask(snapshot.getLayer());
+        if (!hasSubscribers(mask, skip)) {
+            if (!snapshot.isEncoded())
+                layer.encoder.skip(snapshot);
             return;
+        }
+
+        // The preview goes out before we spend time encoding the frame.
+        if (options.previews && !snapshot.isEncoded() && !layer.encoder.mayEncodeDelta(snapshot))
+            sendPreview(snapshot);
 
         byte[] bytes = getSnapshotBytes(snapshot);
 
         if (bytes == null)
             return;
 
-        sendBytesToConnections(bytes);
+        sendSnapshotBytes(snapshot, bytes, snapshot.isPreview(), skip);
     }
 }
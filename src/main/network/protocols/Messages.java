@@ -0,0 +1,348 @@
+package main.network.protocols;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import main.FrameTrace;
+import main.Snapshot;
+import main.network.connections.Connection;
+import main.util.Serialization;
+import main.util.SharedBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The framing of everything nodes send each other. Every message is
+ *
+ *      type (byte)
+ *      length (int)
+ *      body (length bytes)
+ *
+ * so a receiver can skip messages of types it doesn't know.
+ *
+ * Frames (see Snapshot.toBytes()) are split into chunks of at most
+ * MAX_CHUNK_BYTES. The first chunk is sent as a SNAPSHOT_PREFIX message whose
+ * body starts with the frame's header, and the rest as CHUNK_PREFIX messages.
+ * Other messages may be sent between the chunks of a frame, so that control
+ * messages aren't held up behind large frames, but a connection only ever has
+ * one frame in progress. A frame that's interrupted by the start of another
+ * is dropped (e.g., a relay that lost its parent in the middle of a frame
+ * just starts forwarding the next one).
+ *
+ * Every node that sends a frame adds its hop to the frame's trace (see
+ * FrameTrace) as it sends the first message.
+ *
+ * Messages sent to several connections can share their bodies (see
+ * SharedBuffer) rather than being copied for each: see toBuffers() and
+ * SharedFrame.
+ */
+public class Messages {
+    public final static byte CHUNK_PREFIX = 0x52;
+
+    public final static int MAX_CHUNK_BYTES = 16 * 1024;
+
+    // Any message, or frame payload, that's longer is treated as a corrupt
+    // stream rather than allocated.
+    private final static int MAX_MESSAGE_BYTES = 64 * 1024 * 1024;
+
+    private Messages() {}
+
+    public static class Message {
+        public final byte type;
+        public final byte[] body;
+
+        public Message(byte type, byte[] body) {
+            this.type = type;
+            this.body = body;
+        }
+
+        public InputStream getBodyStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        public byte[] toBytes() {
+            return Messages.toBytes(type, body);
+        }
+    }
+
+    public static byte[] toBytes(byte type, byte[] body) {
+        return toBytes(type, body, 0, body.length);
+    }
+
+    public static byte[] toBytes(byte type) {
+        return toBytes(type, new byte[0]);
+    }
+
+    // The type and length that start a message.
+    private static byte[] toHeaderBytes(byte type, int length) {
+        byte[] result = new byte[1 + Integer.BYTES];
+        result[0] = type;
+        System.arraycopy(Ints.toByteArray(length), 0, result, 1, Integer.BYTES);
+        return result;
+    }
+
+    /**
+     * @return The message as buffers to write (see
+     *      Connection.write(ByteBuffer[], SharedBuffer)), the body being a
+     *      view of the shared buffer.
+     */
+    public static ByteBuffer[] toBuffers(byte type, SharedBuffer body) {
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(toHeaderBytes(type, body.length())),
+                body.view()
+        };
+    }
+
+    private static byte[] toBytes(byte type, byte[] bytes, int offset, int length) {
+        byte[] result = new byte[1 + Integer.BYTES + length];
+        result[0] = type;
+        System.arraycopy(Ints.toByteArray(length), 0, result, 1, Integer.BYTES);
+        System.arraycopy(bytes, offset, result, 1 + Integer.BYTES, length);
+        return result;
+    }
+
+    private static Snapshot.Header readHeader(byte[] frame) throws IOException {
+        return Snapshot.Header.read(new ByteArrayInputStream(frame, 1, frame.length - 1));
+    }
+
+    // The first message holds header (without its prefix) and as much of the
+    // payload as fits. Returns how much that is.
+    private static int getFirstChunkLength(byte[] headerBytes, int payloadLength) {
+        return Math.min(Math.max(0, MAX_CHUNK_BYTES - headerBytes.length + 1), payloadLength);
+    }
+
+    private static List<byte[]> frameToMessages(Snapshot.Header header,
+                                                byte[] frame,
+                                                int payloadStart) {
+        byte[] headerBytes = header.toBytes();
+        int firstLength = getFirstChunkLength(headerBytes, frame.length - payloadStart);
+
+        List<byte[]> messages = new ArrayList<>();
+        messages.add(toBytes(Snapshot.SNAPSHOT_PREFIX, Bytes.concat(
+                Arrays.copyOfRange(headerBytes, 1, headerBytes.length),
+                Arrays.copyOfRange(frame, payloadStart, payloadStart + firstLength))));
+
+        for (int offset = payloadStart + firstLength; offset < frame.length; offset += MAX_CHUNK_BYTES)
+            messages.add(toBytes(
+                    CHUNK_PREFIX,
+                    frame,
+                    offset,
+                    Math.min(MAX_CHUNK_BYTES, frame.length - offset)));
+        return messages;
+    }
+
+    /**
+     * Splits a frame into the messages it's sent as.
+     *
+     * @param frame The frame as returned by Snapshot.toBytes() (i.e.,
+     *      starting with SNAPSHOT_PREFIX).
+     */
+    public static List<byte[]> frameToMessages(byte[] frame) throws IOException {
+        Snapshot.Header header = readHeader(frame);
+        return frameToMessages(header, frame, header.getLength());
+    }
+
+    /**
+     * Splits a frame we're sending into messages, adding our hop to its trace
+     * (see FrameTrace). It's sent now.
+     *
+     * @param receivedMicros When we received the frame (see
+     *      FrameTrace.nowMicros()).
+     */
+    public static List<byte[]> frameToMessages(byte[] frame, long receivedMicros)
+            throws IOException {
+        Snapshot.Header header = readHeader(frame);
+        return frameToMessages(
+                header.withHop(receivedMicros, FrameTrace.nowMicros()),
+                frame,
+                header.getLength());
+    }
+
+    /**
+     * A frame we're sending to several connections, split into messages as
+     * frameToMessages() does. Its payload is copied once into a SharedBuffer,
+     * and the chunks each connection is sent are views of it.
+     *
+     * Holds a reference to the buffer until it's released.
+     */
+    public static class SharedFrame {
+        private final Snapshot.Header header;
+        private final SharedBuffer payload;
+
+        // The headers of the CHUNK_PREFIX messages, which are the same for
+        // every connection. Only ever read.
+        private final List<byte[]> chunkHeaders;
+
+        /**
+         * @param frame As for frameToMessages().
+         */
+        public SharedFrame(byte[] frame) throws IOException {
+            this.header = readHeader(frame);
+            int payloadStart = header.getLength();
+            this.payload = SharedBuffer.copyOf(frame, payloadStart, frame.length - payloadStart);
+
+            // The header is the same length whenever we add our hop, so the
+            // chunks after the first message are the same for everyone.
+            this.chunkHeaders = new ArrayList<>();
+            for (int offset = getChunksStart(); offset < payload.length(); offset += MAX_CHUNK_BYTES)
+                chunkHeaders.add(toHeaderBytes(
+                        CHUNK_PREFIX, Math.min(MAX_CHUNK_BYTES, payload.length() - offset)));
+        }
+
+        private int getChunksStart() {
+            return getFirstChunkLength(
+                    header.withHop(0, 0).toBytes(), payload.length());
+        }
+
+        // The header the frame was given with (i.e., without our hop).
+        public Snapshot.Header getHeader() {
+            return header;
+        }
+
+        public SharedBuffer getPayload() {
+            return payload;
+        }
+
+        /**
+         * The frame's messages, each as buffers to write (see
+         * Connection.write(ByteBuffer[], SharedBuffer)) with getPayload() as
+         * their owner. Adds our hop to the frame's trace; it's sent now.
+         *
+         * @param receivedMicros As for frameToMessages().
+         */
+        public List<ByteBuffer[]> toMessages(long receivedMicros) {
+            byte[] headerBytes = header.withHop(receivedMicros, FrameTrace.nowMicros()).toBytes();
+            int firstLength = getFirstChunkLength(headerBytes, payload.length());
+
+            List<ByteBuffer[]> messages = new ArrayList<>();
+            messages.add(new ByteBuffer[] {
+                    ByteBuffer.wrap(toHeaderBytes(
+                            Snapshot.SNAPSHOT_PREFIX, headerBytes.length - 1 + firstLength)),
+                    ByteBuffer.wrap(headerBytes, 1, headerBytes.length - 1),
+                    payload.view(0, firstLength)
+            });
+
+            int offset = firstLength;
+            for (byte[] chunkHeader : chunkHeaders) {
+                int length = Math.min(MAX_CHUNK_BYTES, payload.length() - offset);
+                messages.add(new ByteBuffer[] {
+                        ByteBuffer.wrap(chunkHeader),
+                        payload.view(offset, length)
+                });
+                offset += length;
+            }
+            return messages;
+        }
+
+        // Takes another reference to the payload, to be given up with
+        // release().
+        public SharedFrame retain() {
+            payload.retain();
+            return this;
+        }
+
+        public void release() {
+            payload.release();
+        }
+    }
+
+    /**
+     * Adds our hop to the trace of a frame we're forwarding as it's read (see
+     * frameToMessages()).
+     *
+     * @param first The frame's SNAPSHOT_PREFIX message.
+     */
+    public static Message withHop(Message first, long receivedMicros) throws IOException {
+        InputStream stream = first.getBodyStream();
+        Snapshot.Header header = Snapshot.Header.read(stream);
+        byte[] headerBytes = header.withHop(receivedMicros, FrameTrace.nowMicros()).toBytes();
+        return new Message(first.type, Bytes.concat(
+                Arrays.copyOfRange(headerBytes, 1, headerBytes.length),
+                Serialization.read(stream, stream.available())));
+    }
+
+    /**
+     * Reads a message from the connection, giving up if no bytes arrive for
+     * a while.
+     *
+     * @param timeoutMillis How long to wait for each of the message's bytes
+     *      (see Connection.setReadTimeout()), or 0 to wait forever.
+     * @throws java.net.SocketTimeoutException If the wait times out.
+     */
+    public static Message read(Connection<?> connection, long timeoutMillis) throws IOException {
+        connection.setReadTimeout(timeoutMillis);
+        return read(connection.getInputStream());
+    }
+
+    public static Message read(InputStream stream) throws IOException {
+        byte type = Serialization.read(stream, 1)[0];
+
+        int length = Serialization.readInt(stream);
+        if (length < 0 || length > MAX_MESSAGE_BYTES)
+            throw new IOException(String.format(
+                    "Illegal length %s of message of type %s", length, type));
+        return new Message(type, Serialization.read(stream, length));
+    }
+
+    /**
+     * A frame whose chunks are being read.
+     */
+    public static class PartialFrame {
+        public final Snapshot.Header header;
+
+        // When the first message was read (see FrameTrace.nowMicros()).
+        public final long receivedMicros;
+
+        private final byte[] payload;
+        private int length;
+
+        /**
+         * @param first The frame's SNAPSHOT_PREFIX message, just read.
+         */
+        public PartialFrame(Message first) throws IOException {
+            this.receivedMicros = FrameTrace.nowMicros();
+
+            InputStream stream = first.getBodyStream();
+            this.header = Snapshot.Header.read(stream);
+            if (header.payloadLength > MAX_MESSAGE_BYTES)
+                throw new IOException(String.format(
+                        "Illegal payload length %s of frame %s",
+                        header.payloadLength, header.frameIndex));
+            this.payload = new byte[header.payloadLength];
+            this.length = 0;
+
+            add(Serialization.read(stream, stream.available()));
+        }
+
+        private void add(byte[] chunk) throws IOException {
+            if (chunk.length > payload.length - length)
+                throw new IOException(String.format(
+                        "Frame %s is longer than its header says (%s bytes)",
+                        header.frameIndex, payload.length));
+
+            System.arraycopy(chunk, 0, payload, length, chunk.length);
+            length += chunk.length;
+        }
+
+        // A CHUNK_PREFIX message.
+        public void add(Message chunk) throws IOException {
+            add(chunk.body);
+        }
+
+        public boolean isComplete() {
+            return length == payload.length;
+        }
+
+        public byte[] getPayload() {
+            checkState(isComplete(), "Frame %s is incomplete", header.frameIndex);
+            return payload;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package main.network.protocols;
 
+import main.LatencyStats;
 import main.Snapshot;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -39,4 +40,10 @@ public interface NetworkProtocol {
      * Get the address of our current parent.
      */
     public String getParentKeyString();
+
+    /**
+     * Where the latency of the snapshots inserted into the output queue went.
+     * Whoever shows them should call onDisplay().
+     */
+    public LatencyStats getLatencyStats();
 }
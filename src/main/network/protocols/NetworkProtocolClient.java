@@ -1,11 +1,12 @@
 package main.network.protocols;
 
+import main.LatencyStats;
 import main.Snapshot;
-import main.network.connections.Connection;
 import main.network.connections.ConnectionFactory;
-import main.util.Util;
 
-import java.util.concurrent.Callable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -21,8 +22,16 @@ public abstract class NetworkProtocolClient<TKey> implements NetworkProtocol {
     private final boolean lossy;
     private final AtomicReference<Snapshot> mostRecentSnapshot;
 
+    // The last snapshot read off the network on each layer, used as the base
+    // for delta frames. This is tracked separately from mostRecentSnapshot
+    // because implementers may read a snapshot before handing it to
+    // onSnapshot(), and may read layers they only forward.
+    private final Map<Integer, Snapshot> previousReadSnapshots;
+
     protected ConcurrentLinkedQueue<Snapshot> queue;
 
+    private final LatencyStats latencyStats;
+
     protected NetworkProtocolClient(ConnectionFactory<TKey> connectionFactory) {
         // Defaults to lossy snapshots, but this should probably only be used
         // if the implementer doesn't read snapshots.
@@ -34,6 +43,8 @@ public abstract class NetworkProtocolClient<TKey> implements NetworkProtocol {
         this.connectionFactory = connectionFactory;
         this.lossy = lossy;
         this.mostRecentSnapshot = new AtomicReference<>(null);
+        this.previousReadSnapshots = new ConcurrentHashMap<>();
+        this.latencyStats = new LatencyStats();
 
         this.queue = null;
     }
@@ -46,29 +57,48 @@ public abstract class NetworkProtocolClient<TKey> implements NetworkProtocol {
             queue.add(mostRecentSnapshot.get());
     }
 
-    // TODO(ddoucet): timeout should be pushed down to the snapshot layer so
-    // that it can only abort when reading the first 8 bytes rather than the
-    // entire snapshot.
-    protected Snapshot readSnapshot(Connection<TKey> connection, long timeoutMillis)
-            throws Exception {
-        Callable<Snapshot> callable = () -> Snapshot.fromInputStream(connection.getInputStream(), lossy);
+    // Creates the snapshot for a frame read off the network (see Messages).
+    //
+    // Returns null if the snapshot was a delta frame that couldn't be applied
+    // (we don't have its base frame); the caller should drop it.
+    protected Snapshot readSnapshot(Messages.PartialFrame frame) throws IOException {
+        Snapshot snapshot = Snapshot.fromPayload(
+                frame.header,
+                frame.getPayload(),
+                lossy,
+                previousReadSnapshots::get,
+                frame.receivedMicros);
+        if (snapshot != null && !snapshot.isPreview())
+            previousReadSnapshots.put(snapshot.getLayer(), snapshot);
+        return snapshot;
+    }
 
-        if (timeoutMillis == -1)
-            return callable.call();
-        return Util.doWithTimeout(callable, timeoutMillis);
+    // Whether the snapshot should be output after the last one we output.
+    // A frame replaces its own preview.
+    private static boolean isNewer(Snapshot snapshot, /* nullable */ Snapshot last) {
+        if (last == null || snapshot.getFrameIndex() > last.getFrameIndex())
+            return true;
+        return snapshot.getFrameIndex() == last.getFrameIndex() &&
+                last.isPreview() && !snapshot.isPreview();
     }
 
     protected void onSnapshot(Snapshot snapshot) {
         mostRecentSnapshot.getAndUpdate(
                 snap -> {
-                    if (snap != null && snapshot.getFrameIndex() <= snap.getFrameIndex())
+                    if (!isNewer(snapshot, snap))
                         return snap;
+                    latencyStats.onOutput(snapshot);
                     if (queue != null)
                         queue.add(snapshot);
                     return snapshot;
                 });
     }
 
+    @Override
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
     public abstract void insertSnapshot(Snapshot image);
 
     @Override
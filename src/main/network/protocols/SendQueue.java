@@ -0,0 +1,489 @@
+package main.network.protocols;
+
+import main.Snapshot;
+import main.encoding.EncodingOptions;
+import main.util.SharedBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * The frames and other messages waiting to be sent to one child, with the
+ * writer that sends them, so that a slow child only holds up itself.
+ *
+ * The writer runs on a shared executor while anything is queued, so idle
+ * children don't cost a thread. It only flushes once the queue is empty, so
+ * whatever was queued while it was busy goes out together.
+ *
+ * The number of queued frames is bounded. When a frame is about to be added
+ * to a full queue, makeRoom() drops frames according to the queue policy
+ * (see EncodingOptions.QueuePolicy). Since the child can't decode the delta
+ * frames following a dropped frame on its layer, those are dropped along with
+ * it; the child needs a keyframe on the layer next. Other messages are never
+ * dropped.
+ *
+ * A frame a relay forwards as it reads it (see ClientList.Forward) is queued
+ * like any other frame, and its messages are added as they're read. The
+ * writer sends whatever has arrived and picks the rest up as it's added;
+ * nothing queued after the frame is sent until the frame is finished. It's
+ * dropped as a unit, even if some of it was sent: the child drops a frame
+ * that's interrupted by the next one (see Messages).
+ *
+ * Threadsafe.
+ */
+public class SendQueue {
+    // Sends what's queued to the child. Frames and messages may be buffered
+    // (see Connection.writeBuffered()) until flush().
+    interface Sender {
+        void sendFrame(Snapshot snapshot, Messages.SharedFrame frame) throws IOException;
+
+        // A message of a forwarded frame, as buffers owned by owner (see
+        // Connection.write(ByteBuffer[], SharedBuffer)).
+        void sendForwardedMessage(ByteBuffer[] message, SharedBuffer owner) throws IOException;
+
+        // Called once every message of a forwarded frame has been sent.
+        void onFrameForwarded(int length);
+
+        void sendMessage(byte[] bytes) throws IOException;
+        void flush() throws IOException;
+    }
+
+    /**
+     * A frame that's only encoded when the writer gets to it, so that
+     * whoever queues it doesn't spend the time (e.g., a relay's read thread
+     * re-encoding a frame for a child that fell behind). Never a delta frame.
+     * May be queued for several children; should encode once for all of them.
+     */
+    interface LazyFrame {
+        // Null if the frame couldn't be encoded, in which case it's dropped
+        // (see makeRoom()).
+        /* nullable */ byte[] getBytes();
+    }
+
+    // A message of a forwarded frame.
+    private static class Chunk {
+        private final ByteBuffer[] buffers;
+        private final SharedBuffer owner;
+
+        private Chunk(ByteBuffer[] buffers, SharedBuffer owner) {
+            this.buffers = buffers;
+            this.owner = owner;
+        }
+    }
+
+    // A frame (encoded, forwarded or lazily encoded) or another message.
+    private static class Item {
+        private final /* nullable */ Snapshot snapshot;
+        private final /* nullable */ Messages.SharedFrame frame;
+        private final /* nullable */ ForwardedFrame forwarded;
+        private final /* nullable */ LazyFrame lazyFrame;
+        private final /* nullable */ byte[] message;
+
+        private Item(Snapshot snapshot,
+                     Messages.SharedFrame frame,
+                     ForwardedFrame forwarded,
+                     LazyFrame lazyFrame,
+                     byte[] message) {
+            this.snapshot = snapshot;
+            this.frame = frame;
+            this.forwarded = forwarded;
+            this.lazyFrame = lazyFrame;
+            this.message = message;
+        }
+
+        private boolean isFrame() {
+            return frame != null || forwarded != null || lazyFrame != null;
+        }
+
+        private int getLayer() {
+            if (lazyFrame != null)
+                return snapshot.getLayer();
+            return frame != null ? frame.getHeader().layer : forwarded.header.layer;
+        }
+
+        private boolean isDeltaFrame() {
+            if (lazyFrame != null)
+                return false;
+            Snapshot.Header header = frame != null ? frame.getHeader() : forwarded.header;
+            return header.frameType == Snapshot.DELTA_FRAME;
+        }
+
+        private void release() {
+            if (frame != null)
+                frame.release();
+            if (forwarded != null)
+                forwarded.release();
+        }
+    }
+
+    /**
+     * A frame being forwarded to the child as it's read. Add each of its
+     * messages, then finish it.
+     */
+    class ForwardedFrame {
+        private final Snapshot.Header header;
+
+        // Everything below is guarded by the queue.
+
+        // The messages that haven't been sent yet.
+        private final ArrayDeque<Chunk> chunks;
+        private int length;
+        private boolean finished;
+        private boolean complete;
+
+        // Whether the frame was dropped (or the queue closed), after which
+        // nothing more of it is sent.
+        private boolean released;
+
+        private ForwardedFrame(Snapshot.Header header) {
+            this.header = header;
+            this.chunks = new ArrayDeque<>();
+            this.length = 0;
+            this.finished = false;
+            this.complete = false;
+            this.released = false;
+        }
+
+        /**
+         * Queues a message of the frame (see Messages) after those added
+         * before it. Takes its own reference to the body.
+         */
+        void add(byte type, SharedBuffer body) {
+            synchronized (SendQueue.this) {
+                if (released || finished)
+                    return;
+                chunks.add(new Chunk(Messages.toBuffers(type, body), body.retain()));
+                length += 1 + Integer.BYTES + body.length();
+                schedule();
+            }
+        }
+
+        /**
+         * Marks that nothing more of the frame will be added.
+         *
+         * @param complete Whether every message of the frame was added. An
+         *      incomplete frame isn't worth sending the rest of.
+         */
+        void finish(boolean complete) {
+            synchronized (SendQueue.this) {
+                if (released || finished)
+                    return;
+                finished = true;
+                this.complete = complete;
+                if (!complete)
+                    releaseChunks();
+                schedule();
+            }
+        }
+
+        private void releaseChunks() {
+            for (Chunk chunk : chunks)
+                chunk.owner.release();
+            chunks.clear();
+        }
+
+        private void release() {
+            released = true;
+            releaseChunks();
+        }
+    }
+
+    /**
+     * What a queue holds and has done, at some moment.
+     */
+    public static class Stats {
+        public final int queuedFrames;
+        public final int queuedMessages;
+        public final long sentFrames;
+        public final long droppedFrames;
+
+        private Stats(int queuedFrames, int queuedMessages, long sentFrames, long droppedFrames) {
+            this.queuedFrames = queuedFrames;
+            this.queuedMessages = queuedMessages;
+            this.sentFrames = sentFrames;
+            this.droppedFrames = droppedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames and %d messages queued, %d frames sent, %d dropped",
+                    queuedFrames, queuedMessages, sentFrames, droppedFrames);
+        }
+    }
+
+    private final Sender sender;
+    private final Executor executor;
+    private final int maxFrames;
+    private final EncodingOptions.QueuePolicy policy;
+    private final int maxDroppedFrames;
+
+    // Called (on the writer) when sending fails. The queue is closed first.
+    private final Consumer<IOException> onFailure;
+
+    // Everything below is guarded by this.
+    private final ArrayDeque<Item> items;
+    private int queuedFrames;
+    private long sentFrames;
+    private long droppedFrames;
+
+    // Since a frame was last sent.
+    private int recentlyDroppedFrames;
+
+    // The layers of frames the writer couldn't send (see LazyFrame) since
+    // makeRoom() last returned them.
+    private long unsentLayers;
+
+    // Whether the writer is running.
+    private boolean writing;
+    private boolean closed;
+
+    SendQueue(Sender sender,
+              Executor executor,
+              EncodingOptions options,
+              Consumer<IOException> onFailure) {
+        this.sender = sender;
+        this.executor = executor;
+        this.maxFrames = options.sendQueueFrames;
+        this.policy = options.queuePolicy;
+        this.maxDroppedFrames = options.maxDroppedFrames;
+        this.onFailure = onFailure;
+        this.items = new ArrayDeque<>();
+        this.queuedFrames = 0;
+        this.sentFrames = 0;
+        this.droppedFrames = 0;
+        this.recentlyDroppedFrames = 0;
+        this.unsentLayers = 0;
+        this.writing = false;
+        this.closed = false;
+    }
+
+    // Drops the queued frame and the delta frames after it on its layer.
+    // Returns the layer's mask.
+    private long drop(Item frame) {
+        int layer = frame.getLayer();
+        boolean found = false;
+        for (Iterator<Item> it = items.iterator(); it.hasNext(); ) {
+            Item item = it.next();
+            if (item == frame)
+                found = true;
+            else if (!found || !item.isFrame() || item.getLayer() != layer)
+                continue;
+            else if (!item.isDeltaFrame())
+                break;  // the child can decode the rest
+
+            it.remove();
+            item.release();
+            queuedFrames--;
+            droppedFrames++;
+            recentlyDroppedFrames++;
+        }
+        return Snapshot.layerMask(layer);
+    }
+
+    private Item oldestFrame() {
+        for (Item item : items)
+            if (item.isFrame())
+                return item;
+        return null;
+    }
+
+    /**
+     * Makes room for a frame, if the queue is full, by dropping frames.
+     *
+     * @return A mask of the layers frames were dropped (or couldn't be
+     *      encoded) on, whose next frame needs to be a keyframe.
+     * @throws IOException If the child should be disconnected instead (see
+     *      EncodingOptions.QueuePolicy.DISCONNECT).
+     */
+    synchronized long makeRoom() throws IOException {
+        long layers = unsentLayers;
+        unsentLayers = 0;
+        if (queuedFrames >= maxFrames) {
+            Item frame;
+            while ((frame = oldestFrame()) != null) {
+                layers |= drop(frame);
+                if (policy != EncodingOptions.QueuePolicy.LATEST_FRAME && queuedFrames < maxFrames)
+                    break;
+            }
+        }
+
+        if (policy == EncodingOptions.QueuePolicy.DISCONNECT &&
+                recentlyDroppedFrames > maxDroppedFrames)
+            throw new IOException(String.format(
+                    "Dropped %d frames without sending one", recentlyDroppedFrames));
+        return layers;
+    }
+
+    // Starts the writer if it isn't running. Must be called with this locked.
+    private void schedule() {
+        if (!writing && !closed) {
+            writing = true;
+            executor.execute(this::write);
+        }
+    }
+
+    // Call makeRoom() first, and send a keyframe on the layers it returns.
+    synchronized void addFrame(Snapshot snapshot, Messages.SharedFrame frame) {
+        if (closed)
+            return;
+        items.add(new Item(snapshot, frame.retain(), null, null, null));
+        queuedFrames++;
+        schedule();
+    }
+
+    // As for addFrame(), but the frame is encoded by the writer.
+    synchronized void addFrame(Snapshot snapshot, LazyFrame frame) {
+        if (closed)
+            return;
+        items.add(new Item(snapshot, null, null, frame, null));
+        queuedFrames++;
+        schedule();
+    }
+
+    /**
+     * Queues a frame whose messages are added to the returned
+     * ForwardedFrame as they're read. Call makeRoom() first, as for
+     * addFrame().
+     *
+     * @param header The frame's header, as read from the first message.
+     */
+    synchronized ForwardedFrame addForwardedFrame(Snapshot.Header header) {
+        ForwardedFrame forwarded = new ForwardedFrame(header);
+        if (closed)
+            forwarded.release();
+        else {
+            items.add(new Item(null, null, forwarded, null, null));
+            queuedFrames++;
+        }
+        return forwarded;
+    }
+
+    synchronized void addMessage(byte[] bytes) {
+        if (closed)
+            return;
+        items.add(new Item(null, null, null, null, bytes));
+        schedule();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(queuedFrames, items.size() - queuedFrames, sentFrames, droppedFrames);
+    }
+
+    private void onFrameSent() {
+        sentFrames++;
+        recentlyDroppedFrames = 0;
+    }
+
+    private void sendLazyFrame(Item item) throws IOException {
+        byte[] bytes = item.lazyFrame.getBytes();
+        if (bytes == null) {
+            // Treated like a dropped frame, so the layer gets a keyframe.
+            synchronized (this) {
+                if (!closed) {
+                    items.addFirst(item);
+                    queuedFrames++;
+                    unsentLayers |= drop(item);
+                }
+            }
+            return;
+        }
+
+        Messages.SharedFrame frame = new Messages.SharedFrame(bytes);
+        try {
+            sender.sendFrame(item.snapshot, frame);
+        } finally {
+            frame.release();
+        }
+        synchronized (this) {
+            onFrameSent();
+        }
+    }
+
+    // Sends items until the queue is empty (or all that's left is the rest of
+    // a forwarded frame we haven't read yet), then flushes them.
+    private void write() {
+        boolean flushed = true;
+        while (true) {
+            Item item;
+            Chunk chunk = null;
+            ForwardedFrame finished = null;
+            synchronized (this) {
+                item = items.peek();
+                if (item != null && item.forwarded != null) {
+                    chunk = item.forwarded.chunks.poll();
+                    if (chunk == null && item.forwarded.finished) {
+                        finished = item.forwarded;
+                        items.poll();
+                        queuedFrames--;
+                        if (finished.complete)
+                            onFrameSent();
+                    }
+                    item = null;  // sent a message at a time
+                } else if (item != null) {
+                    items.poll();
+                    if (item.isFrame())
+                        queuedFrames--;
+                }
+
+                if (closed || (item == null && chunk == null && finished == null && flushed)) {
+                    writing = false;
+                    if (item != null)
+                        item.release();
+                    if (chunk != null)
+                        chunk.owner.release();
+                    return;
+                }
+            }
+
+            if (finished != null) {
+                if (finished.complete)
+                    sender.onFrameForwarded(finished.length);
+                continue;
+            }
+
+            try {
+                flushed = item == null && chunk == null;
+                if (chunk != null)
+                    sender.sendForwardedMessage(chunk.buffers, chunk.owner);
+                else if (item == null)
+                    sender.flush();
+                else if (item.lazyFrame != null)
+                    sendLazyFrame(item);
+                else if (item.isFrame()) {
+                    sender.sendFrame(item.snapshot, item.frame);
+                    synchronized (this) {
+                        onFrameSent();
+                    }
+                } else
+                    sender.sendMessage(item.message);
+            } catch (IOException e) {
+                close();
+                synchronized (this) {
+                    writing = false;
+                }
+                onFailure.accept(e);
+                return;
+            } finally {
+                if (item != null)
+                    item.release();
+                if (chunk != null)
+                    chunk.owner.release();
+            }
+        }
+    }
+
+    /**
+     * Drops everything queued. Nothing more is sent.
+     */
+    synchronized void close() {
+        closed = true;
+        for (Item item : items)
+            item.release();
+        items.clear();
+        queuedFrames = 0;
+    }
+}
@@ -0,0 +1,146 @@
+package main.network.protocols;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Estimates whether a receiver is keeping up with the snapshots we send it,
+ * from its reports of how many snapshots it has read so far.
+ *
+ * Every snapshot sent is recorded with its size. Over a stretch of reports
+ * during which the receiver had a backlog the whole time, the bytes it read
+ * give a sample of its throughput. The receiver is behind once its backlog
+ * would take longer than MAX_DELAY_MILLIS to read at that throughput, or the
+ * oldest snapshot it hasn't read was sent longer ago than that; it has caught
+ * up once both are under half of that.
+ *
+ * Receivers that never report are never considered behind.
+ *
+ * Threadsafe.
+ */
+public class ThroughputMonitor {
+    private final static long MAX_DELAY_MILLIS = 500;
+    private final static long MAX_DELAY_NANOS = MAX_DELAY_MILLIS * 1000000;
+
+    // Reports only come every so often and snapshots are read whole, so
+    // samples are taken over at least this long.
+    private final static long MIN_SAMPLE_NANOS = 500 * 1000000L;
+
+    // Weight of a new throughput sample.
+    private final static double SMOOTHING = 0.5;
+
+    private static class SentSnapshot {
+        private final int bytes;
+        private final long nanos;
+
+        private SentSnapshot(int bytes, long nanos) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    // Snapshots sent but not yet reported read, oldest first.
+    private final Deque<SentSnapshot> unread;
+    private long unreadBytes;
+
+    private long numSent;
+    private long numRead;
+    private boolean hasReported;
+
+    // The current sample: bytes read since it started. The sample starts
+    // over whenever the receiver runs out of backlog, since it may have been
+    // idle for part of it. Negative start if there's no sample.
+    private long sampleStartNanos;
+    private long sampleBytes;
+
+    // 0 until we have a sample.
+    private double bytesPerNano;
+    private boolean behind;
+
+    public ThroughputMonitor() {
+        this.unread = new ArrayDeque<>();
+        this.unreadBytes = 0;
+        this.numSent = 0;
+        this.numRead = 0;
+        this.hasReported = false;
+        this.sampleStartNanos = -1;
+        this.sampleBytes = 0;
+        this.bytesPerNano = 0;
+        this.behind = false;
+    }
+
+    public synchronized void onSend(int bytes, long nanos) {
+        unread.addLast(new SentSnapshot(bytes, nanos));
+        unreadBytes += bytes;
+        numSent++;
+    }
+
+    /**
+     * @param totalRead The number of snapshots the receiver has read since we
+     *      started sending to it.
+     */
+    public synchronized void onReport(long totalRead, long nanos) {
+        totalRead = Math.min(totalRead, numSent);
+        hasReported = true;
+
+        long bytesRead = 0;
+        for (; numRead < totalRead; numRead++) {
+            SentSnapshot sent = unread.removeFirst();
+            unreadBytes -= sent.bytes;
+            bytesRead += sent.bytes;
+        }
+
+        if (unreadBytes == 0) {
+            sampleStartNanos = -1;
+            return;
+        } else if (sampleStartNanos < 0) {
+            sampleStartNanos = nanos;
+            sampleBytes = 0;
+            return;
+        }
+
+        sampleBytes += bytesRead;
+        if (nanos - sampleStartNanos >= MIN_SAMPLE_NANOS) {
+            double sample = (double)sampleBytes / (nanos - sampleStartNanos);
+            bytesPerNano = bytesPerNano == 0
+                    ? sample
+                    : SMOOTHING * sample + (1 - SMOOTHING) * bytesPerNano;
+            sampleStartNanos = nanos;
+            sampleBytes = 0;
+        }
+    }
+
+    // How long until the receiver has read everything we've sent it.
+    private long getDelayNanos(long nanos) {
+        if (unread.isEmpty())
+            return 0;
+
+        long delay = nanos - unread.peekFirst().nanos;
+        if (bytesPerNano > 0)
+            delay = Math.max(delay, (long)(unreadBytes / bytesPerNano));
+        return delay;
+    }
+
+    public synchronized boolean isBehind(long nanos) {
+        if (!hasReported)
+            return false;
+
+        long delay = getDelayNanos(nanos);
+        if (delay > MAX_DELAY_NANOS)
+            behind = true;
+        else if (delay < MAX_DELAY_NANOS / 2)
+            behind = false;
+        return behind;
+    }
+
+    // Bytes per second, or 0 if we haven't measured it yet.
+    public synchronized double getThroughput() {
+        return bytesPerNano * 1e9;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("<sent=%s, read=%s, unread bytes=%s, throughput=%.0fB/s>",
+                numSent, numRead, unreadBytes, getThroughput());
+    }
+}
@@ -3,6 +3,9 @@ package main.network.protocols.basic;
 import main.network.protocols.NetworkProtocolClient;
 import main.util.InterruptableThreadSet;
 import main.Snapshot;
+import main.encoding.EncodingOptions;
+import main.encoding.FrameCodec;
+import main.encoding.TileCache;
 import main.network.protocols.ClientList;
 import main.network.connections.ConnectionFactory;
 
@@ -22,8 +25,13 @@ public class BasicNetworkProtocolBroadcaster<TKey> extends NetworkProtocolClient
     private final ClientList<TKey> clientList;
 
     public BasicNetworkProtocolBroadcaster(ConnectionFactory<TKey> connectionFactory) {
+        this(connectionFactory, EncodingOptions.DEFAULT);
+    }
+
+    public BasicNetworkProtocolBroadcaster(ConnectionFactory<TKey> connectionFactory,
+                                           EncodingOptions options) {
         super(connectionFactory);
-        clientList = new ClientList<>(connectionFactory.getKey(), null);
+        clientList = new ClientList<>(connectionFactory.getKey(), null, options);
         snapshotQueue = new ConcurrentLinkedQueue<>();
 
         threadSet = new InterruptableThreadSet(
@@ -31,6 +39,21 @@ public class BasicNetworkProtocolBroadcaster<TKey> extends NetworkProtocolClient
                 null);  // TODO(ddoucet): should probably handle errors
     }
 
+    /**
+     * Switches the codec used to encode the snapshots we send. Snapshots
+     * received from a parent are still forwarded as they were encoded.
+     *
+     * @param codec Null to pick based on whether snapshots are lossy.
+     */
+    public void setCodec(/* nullable */ FrameCodec codec) {
+        clientList.setCodec(codec);
+    }
+
+    // The cache of tiles sent to our children, for its hit and miss counters.
+    public TileCache getTileCache() {
+        return clientList.getTileCache();
+    }
+
     @Override
     public void insertSnapshot(Snapshot image) {
         snapshotQueue.add(image);
@@ -59,7 +82,8 @@ public class BasicNetworkProtocolBroadcaster<TKey> extends NetworkProtocolClient
         if (snapshot != null) {
             onSnapshot(snapshot);
             clientList.sendSnapshot(snapshot);
-        }
+        } else
+            clientList.maybeSendKeepalive();
     }
 
     @Override
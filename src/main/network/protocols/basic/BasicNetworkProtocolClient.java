@@ -1,11 +1,12 @@
 package main.network.protocols.basic;
 
+import main.network.protocols.ClientList;
+import main.network.protocols.Messages;
 import main.network.protocols.NetworkProtocolClient;
 import main.util.InterruptableThreadSet;
 import main.Snapshot;
 import main.network.connections.Connection;
 import main.network.connections.ConnectionFactory;
-import main.util.Serialization;
 import main.util.Util;
 import main.network.protocols.NetworkProtocol;
 
@@ -15,6 +16,8 @@ import java.util.Arrays;
  * Client for the basic network protocol.
  */
 public class BasicNetworkProtocolClient<TKey> extends NetworkProtocolClient<TKey> {
+    private final static long TIMEOUT_MILLIS = 5000;
+
     private final TKey broadcasterKey;
     private final InterruptableThreadSet threadSet;
 
@@ -67,14 +70,17 @@ public class BasicNetworkProtocolClient<TKey> extends NetworkProtocolClient<TKey
                 return;  // give the thread a chance to die
             }
 
-            byte prefix = Serialization.readByteWithTimeout(
-                    connection.getInputStream(), 5000);
+            Messages.Message message = Messages.read(connection, TIMEOUT_MILLIS);
+
+            // A frame may be interrupted by the next one.
+            while (message != null && message.type == Snapshot.SNAPSHOT_PREFIX)
+                message = receiveSnapshot(message);
 
-            if (prefix == Snapshot.SNAPSHOT_PREFIX)
-                onSnapshot(readSnapshot(connection, -1));
-            else
-                System.err.printf("%s read illegal prefix %s from broadcaster\n",
-                        connectionFactory.getKey(), prefix);
+            if (message != null &&
+                    message.type != ClientList.KEEPALIVE_PREFIX &&
+                    message.type != Messages.CHUNK_PREFIX)
+                System.err.printf("%s skipping message of unknown type %s from broadcaster\n",
+                        connectionFactory.getKey(), message.type);
         } catch (Exception e) {
             if (connection != null)
                 connection.close();
@@ -83,6 +89,25 @@ public class BasicNetworkProtocolClient<TKey> extends NetworkProtocolClient<TKey
             Util.printException("Error receiving Snapshots", e);
         }
     }
+    // Reads the rest of the frame and outputs it. Returns the first message
+    // of the next frame if it started before this one was done, in which case
+    // this one is dropped.
+    private Messages.Message receiveSnapshot(Messages.Message first) throws Exception {
+        Messages.PartialFrame frame = new Messages.PartialFrame(first);
+        while (!frame.isComplete()) {
+            Messages.Message message = Messages.read(connection, TIMEOUT_MILLIS);
+            if (message.type == Snapshot.SNAPSHOT_PREFIX)
+                return message;
+            else if (message.type == Messages.CHUNK_PREFIX)
+                frame.add(message);
+        }
+
+        Snapshot snapshot = readSnapshot(frame);
+        if (snapshot != null)
+            onSnapshot(snapshot);
+        return null;
+    }
+
     @Override
     public String getParentKeyString() {
         return broadcasterKey.toString();
@@ -171,9 +171,8 @@ public class Topology<TKey> {
     }
 
     // Should only be called while this is locked.
-    private byte[] serializeExceptEdgeLocked(byte prefix, TKey edge) throws Exception {
+    private byte[] serializeExceptEdgeLocked(TKey edge) throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(prefix);
 
         List<Map<TKey, TKey>> maps = destToNodeToParent.entrySet().stream()
                 .filter(entry -> !entry.getKey().equals(edge))
@@ -184,14 +183,12 @@ public class Topology<TKey> {
         return baos.toByteArray();
     }
 
-    public synchronized byte[] serializeDescendantInfo(byte prefix)
-            throws Exception {
-        return serializeExceptEdgeLocked(prefix, parentKey);
+    public synchronized byte[] serializeDescendantInfo() throws Exception {
+        return serializeExceptEdgeLocked(parentKey);
     }
 
-    public synchronized byte[] serializeExceptChild(byte prefix, TKey child)
-            throws Exception {
-        return serializeExceptEdgeLocked(prefix, child);
+    public synchronized byte[] serializeExceptChild(TKey child) throws Exception {
+        return serializeExceptEdgeLocked(child);
     }
 
     // Removes a child and all of its descendants from the map. This is called
@@ -1,22 +1,30 @@
 package main.network.protocols.tree;
 
+import com.google.common.primitives.Longs;
 import main.Snapshot;
+import main.encoding.EncodingOptions;
+import main.encoding.FrameCodec;
+import main.encoding.TileCache;
 import main.network.protocols.ClientList;
+import main.network.protocols.Messages;
 import main.network.connections.Connection;
 import main.network.connections.ConnectionFactory;
 import main.network.protocols.NetworkProtocol;
 import main.network.protocols.NetworkProtocolClient;
 import main.util.InterruptableThreadSet;
-import main.util.Serialization;
 import main.util.Util;
 
-import java.io.InputStream;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Represents a non-broadcaster node in the tree protocol.
  *
@@ -29,6 +37,10 @@ import java.util.concurrent.atomic.AtomicReference;
  * broadcaster, and that information about the state of this tree is propagated
  * throughout the tree (see the Topology class).
  *
+ * Each node displays one layer of the broadcast (see Snapshot) and subscribes
+ * to it on its parent, along with every layer its children subscribed to, so
+ * a parent only forwards the layers someone below it asked for.
+ *
  * TODO(ddoucet): should probably document usage of the scanner
  *
  * TODO(ddoucet): this class is pretty bulky. I wonder how much of it I can
@@ -37,6 +49,8 @@ import java.util.concurrent.atomic.AtomicReference;
 public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
     private final static byte STATE_PREFIX = 0x77;
     private final static byte STATE_ACK = 0x78;  // acknowledge receipt of state
+    private final static byte SUBSCRIBE_PREFIX = 0x79;  // followed by a layer mask
+    private final static byte READ_PREFIX = 0x7A;  // followed by snapshots read
 
     // How long to wait between sending states to the parent in ns.
     private final static long NANO_SEND_STATE_DELAY = 100000000;  // 100ms
@@ -52,11 +66,24 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
     private final AtomicReference<Connection<TKey>> parentConnection;
     private long previousSendStateNano;
 
+    // How many snapshots we've read from our current parent, reported along
+    // with our state so that it can tell whether we're keeping up.
+    private final AtomicLong snapshotsReadFromParent;
+
+    // The layer we display.
+    private volatile int layer;
+
+    // The layers we last subscribed to and which parent we subscribed on.
+    // Only used by the maybeSendState thread.
+    private long subscribedLayers;
+    private Connection<TKey> subscribedParent;
+
     private ParentCandidateScanner<TKey> scanner;
 
     private TreeNetworkProtocol(ConnectionFactory<TKey> connectionFactory,
                                 TKey broadcasterKey,
-                                boolean lossy) {
+                                boolean lossy,
+                                EncodingOptions options) {
         super(connectionFactory, lossy);
 
         this.isBroadcaster = connectionFactory.getKey().equals(broadcasterKey);
@@ -68,7 +95,10 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
                 null);
         this.clientList = new ClientList<>(
                 connectionFactory.getKey(),
-                this::handleChild);
+                this::handleChild,
+                options);
+        this.layer = Snapshot.DEFAULT_LAYER;
+        this.snapshotsReadFromParent = new AtomicLong();
 
         if (isBroadcaster)
             parentConnection = null;
@@ -105,14 +135,51 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
 
     public static <T> NetworkProtocol losslessClient(ConnectionFactory<T> connectionFactory,
                                                      T broadcasterKey) {
+        return losslessClient(connectionFactory, broadcasterKey, EncodingOptions.DEFAULT);
+    }
+
+    public static <T> NetworkProtocol losslessClient(ConnectionFactory<T> connectionFactory,
+                                                     T broadcasterKey,
+                                                     EncodingOptions options) {
         return new TreeNetworkProtocol<>(
-                connectionFactory, broadcasterKey, false);
+                connectionFactory, broadcasterKey, false, options);
     }
 
     public static <T> NetworkProtocol lossyClient(ConnectionFactory<T> connectionFactory,
                                                   T broadcasterKey) {
+        return lossyClient(connectionFactory, broadcasterKey, EncodingOptions.DEFAULT);
+    }
+
+    public static <T> NetworkProtocol lossyClient(ConnectionFactory<T> connectionFactory,
+                                                  T broadcasterKey,
+                                                  EncodingOptions options) {
         return new TreeNetworkProtocol<>(
-                connectionFactory, broadcasterKey, true);
+                connectionFactory, broadcasterKey, true, options);
+    }
+
+    /**
+     * Switches the codec used to encode the snapshots we send. Snapshots
+     * received from a parent are still forwarded as they were encoded.
+     *
+     * @param codec Null to pick based on whether snapshots are lossy.
+     */
+    public void setCodec(/* nullable */ FrameCodec codec) {
+        clientList.setCodec(codec);
+    }
+
+    // The cache of tiles sent to our children, for its hit and miss counters.
+    public TileCache getTileCache() {
+        return clientList.getTileCache();
+    }
+
+    /**
+     * Sets the layer whose snapshots are output to the registered queue. Can
+     * be called at any time; the new subscription is sent to our parent
+     * shortly after.
+     */
+    public void setLayer(int layer) {
+        checkArgument(layer >= 0 && layer < Snapshot.MAX_LAYERS, "Illegal layer %s", layer);
+        this.layer = layer;
     }
 
     @Override
@@ -138,22 +205,30 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
         }
     }
 
+    private byte[] getStateForChild(Connection<TKey> child) throws Exception {
+        return Messages.toBytes(STATE_PREFIX, topology.serializeExceptChild(child.getDest()));
+    }
+
     private void handleChild(Connection<TKey> child) {
         try {
-            Util.threadsafeWrite(child, topology.serializeExceptChild(STATE_PREFIX, child.getDest()));
+            Util.threadsafeWrite(child, getStateForChild(child));
 
-            InputStream stream = child.getInputStream();
             AtomicBoolean shouldExecute = threadSet.getShouldExecute();
             while (shouldExecute != null && shouldExecute.get()) {
-                byte prefix = Serialization.readByteWithTimeout(stream, TIMEOUT_MILLIS);
-
-                if (prefix == STATE_PREFIX) {
-                    topology.updateChildInfo(child.getDest(), stream);
-                    Util.threadsafeWrite(child, new byte[] { STATE_ACK });
-                    Util.threadsafeWrite(child, topology.serializeExceptChild(STATE_PREFIX, child.getDest()));
-                } else
-                    System.err.printf("Illegal prefix %s when reading from %s\n",
-                            Byte.toString(prefix), child.getDest().toString());
+                Messages.Message message = Messages.read(child, TIMEOUT_MILLIS);
+
+                if (message.type == STATE_PREFIX) {
+                    topology.updateChildInfo(child.getDest(), message.getBodyStream());
+                    Util.threadsafeWrite(child,
+                            Messages.toBytes(STATE_ACK),
+                            getStateForChild(child));
+                } else if (message.type == SUBSCRIBE_PREFIX)
+                    clientList.subscribe(child, Longs.fromByteArray(message.body));
+                else if (message.type == READ_PREFIX)
+                    clientList.onSnapshotsRead(child.getDest(), Longs.fromByteArray(message.body));
+                else
+                    System.err.printf("Skipping message of unknown type %s from %s\n",
+                            Byte.toString(message.type), child.getDest().toString());
 
                 Util.sleepMillis(10);
             }
@@ -183,16 +258,34 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
     private void sendStateToParent() throws Exception {
         Connection<TKey> parent = parentConnection.get();
         if (parent != null) {
-            Util.threadsafeWrite(
-                    parent,
-                    topology.serializeDescendantInfo(STATE_PREFIX));
+            Util.threadsafeWrite(parent,
+                    Messages.toBytes(STATE_PREFIX, topology.serializeDescendantInfo()),
+                    Messages.toBytes(
+                            READ_PREFIX, Longs.toByteArray(snapshotsReadFromParent.get())));
         }
         previousSendStateNano = System.nanoTime();
     }
 
-    // Sends the state to the parent every NANO_SEND_STATE_DELAY ns.
+    // Subscribes to our layer and our children's on the parent, if that
+    // changed since we last did (or we have a new parent).
+    private void maybeSendSubscription() throws Exception {
+        Connection<TKey> parent = parentConnection.get();
+        long layers = Snapshot.layerMask(layer) | clientList.getSubscribedLayers();
+        if (parent == null || (parent == subscribedParent && layers == subscribedLayers))
+            return;
+
+        Util.threadsafeWrite(parent, Messages.toBytes(
+                SUBSCRIBE_PREFIX, Longs.toByteArray(layers)));
+
+        subscribedParent = parent;
+        subscribedLayers = layers;
+    }
+
+    // Sends the state to the parent every NANO_SEND_STATE_DELAY ns, and the
+    // layers we want whenever they change.
     private void maybeSendState() {
         try {
+            maybeSendSubscription();
             if (System.nanoTime() - previousSendStateNano >= NANO_SEND_STATE_DELAY)
                 sendStateToParent();
         } catch (Exception e) {
@@ -222,6 +315,7 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
 
         System.out.println(connectionFactory.getKey() + " attempting to connect to " + parent);
         Connection<TKey> connection = connectionFactory.openConnection(parent);
+        snapshotsReadFromParent.set(0);
         parentConnection.set(connection);
         topology.setParent(connection.getDest());
     }
@@ -233,6 +327,7 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
         // to non-null value
         try {
             Connection<TKey> connection = connectionFactory.openConnection(parent);
+            snapshotsReadFromParent.set(0);
             Connection<TKey> oldConnection = parentConnection.getAndSet(connection);
             oldConnection.close();
             topology.setParent(connection.getDest());
@@ -254,30 +349,85 @@ public class TreeNetworkProtocol<TKey> extends NetworkProtocolClient<TKey> {
                 return;  // give the thread a chance to die
             }
 
-            InputStream stream = connection.getInputStream();
-            byte prefix = Serialization.readByteWithTimeout(stream, TIMEOUT_MILLIS);
-            scanner = null;  // after we successfully read a byte
-
-            if (prefix == Snapshot.SNAPSHOT_PREFIX)
-                snapshotQueue.add(readSnapshot(connection, -1));
-            else if (prefix == STATE_PREFIX)
-                topology.updateNonDescendantInfo(stream);
-            else if (prefix != STATE_ACK)
-                System.err.printf(
-                    "%s read unrecognized prefix (%s) from parent %s\n",
-                        connectionFactory.getKey(),
-                        prefix,
-                        connection.getDest());
+            Messages.Message message = Messages.read(connection, TIMEOUT_MILLIS);
+            scanner = null;  // after we successfully read a message
+
+            // A frame may be interrupted by the next one.
+            while (message != null && message.type == Snapshot.SNAPSHOT_PREFIX)
+                message = forwardSnapshot(connection, message);
+            if (message != null)
+                handleParentMessage(connection, message);
         } catch (Exception e) {
             closeParent();
         }
     }
 
+    // Handles anything but the frames.
+    private void handleParentMessage(Connection<TKey> connection, Messages.Message message)
+            throws Exception {
+        if (message.type == STATE_PREFIX)
+            topology.updateNonDescendantInfo(message.getBodyStream());
+        else if (message.type == Messages.CHUNK_PREFIX)
+            return;  // the rest of a frame we dropped
+        else if (message.type != STATE_ACK && message.type != ClientList.KEEPALIVE_PREFIX)
+            System.err.printf(
+                "%s skipping message of unknown type %s from parent %s\n",
+                    connectionFactory.getKey(),
+                    message.type,
+                    connection.getDest());
+    }
+
+    // Forwards the frame to the children that can take it as it is while we
+    // read it (see ClientList.startForwarding()), then sends it to the rest.
+    // The rest are queued the frame from this thread rather than
+    // sendSnapshot() so that every child gets the frames in the order we
+    // read them. The snapshot is only decoded when someone asks for its
+    // image (or to keep a chain of delta frames short; see Snapshot), and
+    // children that need it re-encoded get it encoded by their writers (see
+    // ClientList), so this thread gets back to reading right away.
+    //
+    // Returns the first message of the next frame if it started before this
+    // one was done, in which case this one is dropped.
+    private Messages.Message forwardSnapshot(Connection<TKey> connection, Messages.Message first)
+            throws Exception {
+        Messages.PartialFrame frame = new Messages.PartialFrame(first);
+        Set<TKey> forwardedTo;
+        try (ClientList<TKey>.Forward forward = clientList.startForwarding(frame, first)) {
+            while (!frame.isComplete()) {
+                Messages.Message message = Messages.read(connection, TIMEOUT_MILLIS);
+                if (message.type == Snapshot.SNAPSHOT_PREFIX)
+                    return message;
+                else if (message.type != Messages.CHUNK_PREFIX) {
+                    handleParentMessage(connection, message);
+                    continue;
+                }
+
+                frame.add(message);
+                forward.forwardChunk(message);
+            }
+
+            forward.finish();
+            forwardedTo = forward.getDestinations();
+        }
+
+        Snapshot snapshot = readSnapshot(frame);
+        snapshotsReadFromParent.incrementAndGet();
+        if (snapshot == null)
+            return null;
+
+        if (snapshot.getLayer() == layer)
+            onSnapshot(snapshot);
+        clientList.sendSnapshot(snapshot, forwardedTo);
+        return null;
+    }
+
     private void sendSnapshot() {
         Snapshot snapshot = snapshotQueue.poll();
         if (snapshot != null) {
-            onSnapshot(snapshot);
+            if (snapshot.getLayer() == layer)
+                onSnapshot(snapshot);
             clientList.sendSnapshot(snapshot);
-        }
+        } else
+            clientList.maybeSendKeepalive();
     }
 }
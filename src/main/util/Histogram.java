@@ -0,0 +1,75 @@
+package main.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Counts non-negative values (e.g., latencies in microseconds) in buckets
+ * that double in size: bucket 0 holds 0, and bucket i holds values in
+ * [2^(i-1), 2^i). Percentiles are the upper bound of the bucket they fall in,
+ * so they're within a factor of two.
+ *
+ * Threadsafe.
+ */
+public class Histogram {
+    private final long[] buckets;
+    private long count;
+    private long sum;
+    private long max;
+
+    public Histogram() {
+        this.buckets = new long[Long.SIZE];
+        this.count = 0;
+        this.sum = 0;
+        this.max = 0;
+    }
+
+    private static int bucket(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    // Negative values (e.g., from clocks that disagree) are counted as 0.
+    public synchronized void add(long value) {
+        value = Math.max(0, value);
+        buckets[bucket(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double)sum / count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return An upper bound on the value below which percentile percent of
+     *      the values fall, or 0 if there are none.
+     */
+    public synchronized long getPercentile(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100,
+                "Illegal percentile %s", percentile);
+
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen > 0 && seen >= percentile / 100 * count)
+                return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("<count=%s, mean=%.0f, p50=%s, p90=%s, p99=%s, max=%s>",
+                count, getMean(),
+                getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+}
@@ -1,13 +1,12 @@
 package main.util;
 
 import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import main.network.connections.socket.SocketInformation;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.io.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -43,16 +42,6 @@ public class Serialization {
         return bytes;
     }
 
-    public static byte[] readWithTimeout(InputStream stream, int numBytes, long timeoutMillis)
-            throws InterruptedException, ExecutionException, TimeoutException {
-        return Util.doWithTimeout(() -> read(stream, numBytes), timeoutMillis);
-    }
-
-    public static byte readByteWithTimeout(InputStream stream, long timeoutMillis)
-            throws InterruptedException, ExecutionException, TimeoutException {
-        return Util.doWithTimeout(() -> read(stream, 1)[0], timeoutMillis);
-    }
-
     public static long readLong(InputStream stream) throws IOException {
         return Longs.fromByteArray(read(stream, Long.BYTES));
     }
@@ -61,6 +50,14 @@ public class Serialization {
         stream.write(Longs.toByteArray(value));
     }
 
+    public static int readInt(InputStream stream) throws IOException {
+        return Ints.fromByteArray(read(stream, Integer.BYTES));
+    }
+
+    public static void writeInt(OutputStream stream, int value) throws IOException {
+        stream.write(Ints.toByteArray(value));
+    }
+
     // These methods suck :/
     public static <T> T deserialize(InputStream stream, Class<T> type) throws IOException {
         if (type.equals(String.class))
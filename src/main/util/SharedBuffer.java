@@ -0,0 +1,141 @@
+package main.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Bytes written to several connections without copying them for each, e.g.,
+ * a frame sent to every child.
+ *
+ * The bytes are copied once into a direct buffer, which channels can write
+ * from without copying them again. Each connection writes from its own
+ * read-only view (see view()), so they can't change the bytes or each
+ * other's positions.
+ *
+ * The buffer is reference counted: whoever creates it holds the first
+ * reference, connections that queue views to write later take another with
+ * retain(), and each gives its reference up with release(). When the last is
+ * released, the buffer is returned to a pool for reuse, so views must not be
+ * used after their holder has released its reference.
+ *
+ * Threadsafe.
+ */
+public class SharedBuffer {
+    // Buffers are rounded up to a power of two of at least the minimum, so
+    // that they can be reused for similar lengths. Larger ones than the
+    // maximum aren't kept around.
+    private final static int MIN_POOLED_CAPACITY = 4 * 1024;
+    private final static int MAX_POOLED_CAPACITY = 32 * 1024 * 1024;
+
+    // How many buffers of each capacity are kept.
+    private final static int MAX_POOLED_BUFFERS = 8;
+
+    // Released buffers, indexed by the log of their capacity (which is a
+    // power of two).
+    private final static ConcurrentLinkedQueue<ByteBuffer>[] POOL = createPool();
+
+    private final ByteBuffer buffer;
+    private final int length;
+    private final AtomicInteger references;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<ByteBuffer>[] createPool() {
+        ConcurrentLinkedQueue<ByteBuffer>[] pool = new ConcurrentLinkedQueue[Integer.SIZE];
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = new ConcurrentLinkedQueue<>();
+        return pool;
+    }
+
+    private SharedBuffer(ByteBuffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        this.references = new AtomicInteger(1);
+    }
+
+    private static boolean isPooled(int capacity) {
+        return capacity >= MIN_POOLED_CAPACITY && capacity <= MAX_POOLED_CAPACITY;
+    }
+
+    private static ByteBuffer allocate(int length) {
+        int capacity = Math.max(
+                MIN_POOLED_CAPACITY,
+                Integer.highestOneBit(Math.max(length - 1, 1)) << 1);
+        if (!isPooled(capacity))
+            return ByteBuffer.allocateDirect(length);
+
+        ByteBuffer buffer = POOL[Integer.numberOfTrailingZeros(capacity)].poll();
+        return buffer == null ? ByteBuffer.allocateDirect(capacity) : buffer;
+    }
+
+    /**
+     * @return A buffer holding a copy of the bytes, with one reference.
+     */
+    public static SharedBuffer copyOf(byte[] bytes, int offset, int length) {
+        checkPositionIndexes(offset, offset + length, bytes.length);
+
+        ByteBuffer buffer = allocate(length);
+        buffer.clear();
+        buffer.put(bytes, offset, length);
+        return new SharedBuffer(buffer, length);
+    }
+
+    public static SharedBuffer copyOf(byte[] bytes) {
+        return copyOf(bytes, 0, bytes.length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isReleased() {
+        return references.get() == 0;
+    }
+
+    /**
+     * @return A read-only view of the bytes in [offset, offset + length).
+     */
+    public ByteBuffer view(int offset, int length) {
+        checkPositionIndexes(offset, offset + length, this.length);
+        checkState(!isReleased(), "Buffer was released");
+
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    public ByteBuffer view() {
+        return view(0, length);
+    }
+
+    /**
+     * Takes another reference, to be given up with release().
+     */
+    public SharedBuffer retain() {
+        int count;
+        do {
+            count = references.get();
+            checkState(count > 0, "Buffer was released");
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = references.decrementAndGet();
+        checkState(count >= 0, "Buffer was released more times than it was retained");
+        if (count > 0)
+            return;
+
+        int capacity = buffer.capacity();
+        if (!isPooled(capacity) || Integer.bitCount(capacity) != 1)
+            return;
+
+        ConcurrentLinkedQueue<ByteBuffer> pool = POOL[Integer.numberOfTrailingZeros(capacity)];
+        if (pool.size() < MAX_POOLED_BUFFERS)
+            pool.add(buffer);
+    }
+}
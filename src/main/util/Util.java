@@ -1,13 +1,15 @@
 package main.util;
 
+import com.google.common.primitives.Bytes;
 import main.network.connections.Connection;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
-import java.util.concurrent.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Static utility functions.
@@ -61,25 +63,42 @@ public class Util {
         return ip == null ? "127.0.0.1" : ip;
     }
 
-    public static <T> T doWithTimeout(Callable<T> callable, long timeoutMillis)
-            throws InterruptedException, ExecutionException, TimeoutException {
-        // http://stackoverflow.com/questions/804951/is-it-possible-to-read-from-a-inputstream-with-a-timeout
-        ExecutorService executor = null;
-        try {
-            executor = Executors.newFixedThreadPool(2);
-            Future<T> future = executor.submit(callable);
-            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
-        } finally {
-            // Clean up thread resources
-            if (executor != null)
-                executor.shutdownNow();
+    public static <T> void threadsafeWrite(Connection<T> connection, byte[] bytes)
+            throws IOException {
+        synchronized (connection) {
+            connection.write(bytes);
         }
     }
 
-    public static <T> void threadsafeWrite(Connection<T> connection, byte[] bytes)
+    // Writes the messages together, so that they can go out in one packet.
+    public static <T> void threadsafeWrite(Connection<T> connection,
+                                           byte[] first,
+                                           byte[]... rest)
+            throws IOException {
+        threadsafeWrite(connection, Bytes.concat(first, Bytes.concat(rest)));
+    }
+
+    public static <T> void threadsafeWrite(Connection<T> connection,
+                                           ByteBuffer[] buffers,
+                                           SharedBuffer owner)
             throws IOException {
         synchronized (connection) {
-            connection.write(bytes);
+            connection.write(buffers, owner);
+        }
+    }
+
+    public static <T> void threadsafeWriteBuffered(Connection<T> connection,
+                                                   ByteBuffer[] buffers,
+                                                   SharedBuffer owner)
+            throws IOException {
+        synchronized (connection) {
+            connection.writeBuffered(buffers, owner);
+        }
+    }
+
+    public static <T> void threadsafeFlush(Connection<T> connection) throws IOException {
+        synchronized (connection) {
+            connection.flush();
         }
     }
 }
@@ -30,7 +30,6 @@ public class Runner {
     private final AtomicInteger currentRound;
     private NetworkProtocol broadcaster;
     private List<NetworkProtocol> clients;
-    private Snapshot currentSnapshot;
 
     public Runner(Callable<NetworkProtocol> createBroadcaster,
                   Function<String, NetworkProtocol> createClient,
@@ -48,7 +47,6 @@ public class Runner {
     private void initialize() throws Exception {
         broadcaster = createBroadcaster.call();
         broadcaster.start();
-        currentSnapshot = Snapshot.lossySnapshot(0, image);
 
         clients = new ArrayList<>();
         for (int i = 0; i < input.clients.size(); i++) {
@@ -105,8 +103,8 @@ public class Runner {
 
         currentRound.set(round);
         builder.startRound(round);
-        broadcaster.insertSnapshot(currentSnapshot);
-        currentSnapshot = currentSnapshot.createNext(image);
+        // Created now so that its capture time is when the round started.
+        broadcaster.insertSnapshot(Snapshot.lossySnapshot(round, image));
         builder.waitUntilRoundEnded();
     }
 
@@ -115,6 +113,10 @@ public class Runner {
         broadcaster.stop();
         for (NetworkProtocol client : clients)
             client.stop();
+
+        for (int i = 0; i < clients.size(); i++)
+            System.out.printf("%s latency (us):\n%s",
+                    input.clients.get(i), clients.get(i).getLatencyStats());
     }
 
     public ResultSet<String> run() throws Exception {
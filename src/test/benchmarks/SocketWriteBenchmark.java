@@ -0,0 +1,176 @@
+package test.benchmarks;
+
+import main.network.connections.Connection;
+import main.network.connections.socket.SocketConnectionFactory;
+import main.network.connections.socket.SocketInformation;
+import main.network.connections.socket.SocketOptions;
+import main.network.protocols.Messages;
+import org.junit.Test;
+import test.unit.network.ConnectionPair;
+import test.unit.network.TestClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+
+/**
+ * Times sending small control messages and large frames between two
+ * SocketConnections over loopback: written one by one, or batched with
+ * writeBuffered() and flushed together (as the send queues do), with the
+ * default SocketOptions, with Nagle's algorithm, and with larger buffers.
+ *
+ * Dumps output to stdout.
+ */
+public class SocketWriteBenchmark {
+    private final static int PORT1 = 5561;
+    private final static int PORT2 = 6671;
+
+    // Like the READ_PREFIX messages nodes send their parents.
+    private final static int CONTROL_MESSAGES = 100000;
+    private final static int CONTROL_BODY_BYTES = 8;
+
+    // How many control messages are flushed together when batching.
+    private final static int CONTROL_BATCH = 20;
+
+    private final static int FRAMES = 40;
+    private final static int FRAME_BYTES = 1024 * 1024;
+
+    // Each time reported is the fastest of this many.
+    private final static int RUNS = 5;
+
+    private interface Sender {
+        void send(Connection<SocketInformation> connection) throws IOException;
+    }
+
+    private static ConnectionPair<SocketInformation> connect(SocketOptions options)
+            throws IOException {
+        SocketInformation source = new SocketInformation("127.0.0.1", PORT1),
+                dest = new SocketInformation("127.0.0.1", PORT2);
+        return TestClient.connect(
+                new TestClient<>(SocketConnectionFactory.fromSocketInfo(source, options), source),
+                new TestClient<>(SocketConnectionFactory.fromSocketInfo(dest, options), dest));
+    }
+
+    // Returns the fastest it took the bytes sent to be read, in ms.
+    private static double time(SocketOptions options, long numBytes, Sender sender)
+            throws Exception {
+        double fastest = Double.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++)
+            fastest = Math.min(fastest, timeOnce(options, numBytes, sender));
+        return fastest;
+    }
+
+    private static double timeOnce(SocketOptions options, long numBytes, Sender sender)
+            throws Exception {
+        ConnectionPair<SocketInformation> connections = connect(options);
+        AtomicReference<Exception> err = new AtomicReference<>();
+
+        long startNanos = System.nanoTime();
+        Thread writer = new Thread(() -> {
+            try {
+                sender.send(connections.sourceToDest);
+            } catch (IOException e) {
+                err.set(e);
+            }
+        });
+        writer.start();
+
+        byte[] read = new byte[64 * 1024];
+        for (long remaining = numBytes; remaining > 0; ) {
+            int n = connections.destToSource.getInputStream().read(
+                    read, 0, (int)Math.min(read.length, remaining));
+            if (n < 0)
+                throw new IOException("Connection closed early");
+            remaining -= n;
+        }
+        double millis = (System.nanoTime() - startNanos) / 1e6;
+
+        writer.join();
+        assertNull(err.get());
+        connections.source.getConnectionFactory().close();
+        connections.dest.getConnectionFactory().close();
+        connections.sourceToDest.close();
+        connections.destToSource.close();
+        return millis;
+    }
+
+    private static void sendControlMessages(Connection<SocketInformation> connection,
+                                            byte[] message,
+                                            boolean batched) throws IOException {
+        for (int i = 0; i < CONTROL_MESSAGES; i++) {
+            if (!batched)
+                connection.write(message);
+            else {
+                connection.writeBuffered(new ByteBuffer[] { ByteBuffer.wrap(message) }, null);
+                if (i % CONTROL_BATCH == CONTROL_BATCH - 1)
+                    connection.flush();
+            }
+        }
+        connection.flush();
+    }
+
+    private static void sendFrames(Connection<SocketInformation> connection,
+                                   List<byte[]> messages,
+                                   boolean batched) throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            for (byte[] message : messages) {
+                if (batched)
+                    connection.writeBuffered(new ByteBuffer[] { ByteBuffer.wrap(message) }, null);
+                else
+                    connection.write(message);
+            }
+            connection.flush();
+        }
+    }
+
+    private static void run(String name, SocketOptions options, boolean print)
+            throws Exception {
+        byte[] control = Messages.toBytes((byte)0x60, new byte[CONTROL_BODY_BYTES]);
+        long controlBytes = (long)CONTROL_MESSAGES * control.length;
+
+        // A frame's worth of chunks (see Messages.MAX_CHUNK_BYTES).
+        List<byte[]> frame = new ArrayList<>();
+        long frameBytes = 0;
+        for (int length = 0; length < FRAME_BYTES; length += Messages.MAX_CHUNK_BYTES) {
+            byte[] message = Messages.toBytes(
+                    Messages.CHUNK_PREFIX,
+                    new byte[Math.min(Messages.MAX_CHUNK_BYTES, FRAME_BYTES - length)]);
+            frame.add(message);
+            frameBytes += message.length;
+        }
+        long framesBytes = FRAMES * frameBytes;
+
+        List<String> lines = new ArrayList<>();
+        for (boolean batched : new boolean[] { false, true }) {
+            String label = batched ? "batched" : "one by one";
+            lines.add(String.format("%d control messages, %s: %.1f ms", CONTROL_MESSAGES, label,
+                    time(options, controlBytes, c -> sendControlMessages(c, control, batched))));
+            lines.add(String.format("%d 1MB frames, %s: %.1f ms", FRAMES, label,
+                    time(options, framesBytes, c -> sendFrames(c, frame, batched))));
+        }
+
+        if (!print)
+            return;
+        System.out.println(name);
+        System.out.println("===============");
+        for (String line : lines)
+            System.out.println(line);
+        System.out.println();
+    }
+
+    @Test
+    public void benchmarkSocketOptions() throws Exception {
+        run("Warm-up", SocketOptions.DEFAULT, false);
+
+        run("Default options", SocketOptions.DEFAULT, true);
+        run("Nagle's algorithm", new SocketOptions.Builder().setTcpNoDelay(false).build(), true);
+        run("4MB buffers", new SocketOptions.Builder()
+                .setSendBufferBytes(4 * 1024 * 1024)
+                .setReceiveBufferBytes(4 * 1024 * 1024)
+                .build(), true);
+    }
+}
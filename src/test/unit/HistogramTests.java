@@ -0,0 +1,44 @@
+package test.unit;
+
+import main.util.Histogram;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests counting values in power-of-two buckets.
+ */
+public class HistogramTests {
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++)
+            histogram.add(i);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+        assertEquals(100, histogram.getMax());
+
+        // Within a factor of two, and never past the maximum.
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 50 && median < 100);
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testNegativeCountsAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.add(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+}
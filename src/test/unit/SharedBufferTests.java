@@ -0,0 +1,75 @@
+package test.unit;
+
+import main.util.SharedBuffer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reference counting and views of shared buffers.
+ */
+public class SharedBufferTests {
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testViews() {
+        SharedBuffer buffer = SharedBuffer.copyOf(new byte[] { 0, 1, 2, 3, 4, 5 }, 1, 4);
+        assertEquals(4, buffer.length());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, toBytes(buffer.view()));
+        assertArrayEquals(new byte[] { 2, 3 }, toBytes(buffer.view(1, 2)));
+
+        // Views have their own positions.
+        ByteBuffer view = buffer.view();
+        view.get();
+        assertEquals(4, buffer.view().remaining());
+        buffer.release();
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testViewsAreReadOnly() {
+        SharedBuffer.copyOf(new byte[10]).view().put((byte)1);
+    }
+
+    @Test
+    public void testReleasedByLastReference() {
+        SharedBuffer buffer = SharedBuffer.copyOf(new byte[100]);
+        buffer.retain();
+        buffer.release();
+        assertFalse(buffer.isReleased());
+        buffer.release();
+        assertTrue(buffer.isReleased());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoViewsAfterRelease() {
+        SharedBuffer buffer = SharedBuffer.copyOf(new byte[100]);
+        buffer.release();
+        buffer.view();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoRetainAfterRelease() {
+        SharedBuffer buffer = SharedBuffer.copyOf(new byte[100]);
+        buffer.release();
+        buffer.retain();
+    }
+
+    // Released buffers are reused, and hold the new bytes.
+    @Test
+    public void testReuse() {
+        for (int i = 0; i < 20; i++) {
+            byte[] bytes = new byte[5000 + i];
+            bytes[i] = (byte)i;
+            SharedBuffer buffer = SharedBuffer.copyOf(bytes);
+            assertArrayEquals(bytes, toBytes(buffer.view()));
+            buffer.release();
+        }
+    }
+}
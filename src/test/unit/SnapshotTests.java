@@ -0,0 +1,176 @@
+package test.unit;
+
+import main.Snapshot;
+import main.encoding.DeltaEncoder;
+import main.encoding.EncodingOptions;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests serializing and deserializing Snapshots.
+ */
+public class SnapshotTests {
+    private static Snapshot read(byte[] bytes, Snapshot previous) throws IOException {
+        InputStream stream = new ByteArrayInputStream(bytes);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+        return Snapshot.fromInputStream(stream, false, previous);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Snapshot snapshot = Snapshot.losslessSnapshot(3, ImageUtil.createImage1());
+        assertEquals(snapshot, read(snapshot.toBytes(), null));
+    }
+
+    @Test
+    public void testLayerRoundTrip() throws IOException {
+        Snapshot snapshot = Snapshot.losslessSnapshot(3, 2, ImageUtil.createImage1());
+        Snapshot read = read(snapshot.toBytes(), null);
+        assertEquals(2, read.getLayer());
+        assertEquals(snapshot, read);
+        assertEquals(2, read.createNext(ImageUtil.createImage2()).getLayer());
+    }
+
+    @Test
+    public void testHeaderRoundTrip() throws IOException {
+        byte[] bytes = Snapshot.losslessSnapshot(3, 2, ImageUtil.createImage1()).toBytes();
+        InputStream stream = new ByteArrayInputStream(bytes);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+
+        Snapshot.Header header = Snapshot.Header.read(stream);
+        assertEquals(2, header.layer);
+        assertEquals(3, header.frameIndex);
+        assertEquals(stream.available(), header.payloadLength);
+
+        byte[] headerBytes = header.toBytes();
+        assertArrayEquals(Arrays.copyOf(bytes, headerBytes.length), headerBytes);
+    }
+
+    // The capture time survives the trip; nobody has sent the frame on yet.
+    @Test
+    public void testTraceRoundTrip() throws IOException {
+        Snapshot snapshot = Snapshot.losslessSnapshot(3, ImageUtil.createImage1());
+        Snapshot read = read(snapshot.toBytes(), null);
+        assertEquals(snapshot.getTrace(), read.getTrace());
+        assertEquals(0, read.getTrace().getNumHops());
+        assertTrue(read.getReadMicros() >= read.getReceivedMicros());
+    }
+
+    // Each layer's delta frames apply to the previous frame on that layer,
+    // even when layers are interleaved on the same stream.
+    @Test
+    public void testDeltaFramesPerLayer() throws IOException {
+        EncodingOptions options = new EncodingOptions.Builder().setKeyframeInterval(10).build();
+        DeltaEncoder[] encoders = { new DeltaEncoder(options), new DeltaEncoder(options) };
+        Map<Integer, Snapshot> previous = new HashMap<>();
+
+        BufferedImage[] images = { ImageUtil.createImage1(), ImageUtil.createImage2() };
+        for (int index = 0; index < 3; index++) {
+            for (int layer = 0; layer < 2; layer++) {
+                Snapshot snapshot = Snapshot.losslessSnapshot(index, layer, images[layer]);
+                InputStream stream = new ByteArrayInputStream(
+                        encoders[layer].encode(snapshot));
+                assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+
+                Snapshot read = Snapshot.fromInputStream(stream, false, previous::get);
+                assertEquals(index > 0, read.isDeltaFrame());
+                assertEquals(snapshot, read);
+                previous.put(layer, read);
+            }
+        }
+    }
+
+    // A relay should forward exactly the bytes it received, including delta
+    // frames.
+    @Test
+    public void testReadSnapshotForwardsSameBytes() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(
+                new EncodingOptions.Builder().setKeyframeInterval(10).build());
+        Snapshot first = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        Snapshot second = first.createNext(ImageUtil.createImage1());
+
+        byte[] firstBytes = encoder.encode(first),
+                secondBytes = encoder.encode(second);
+
+        Snapshot firstRead = read(firstBytes, null);
+        Snapshot secondRead = read(secondBytes, firstRead);
+        assertTrue(secondRead.isEncoded());
+        assertArrayEquals(firstBytes, firstRead.toBytes());
+        assertArrayEquals(secondBytes, secondRead.toBytes());
+
+        // New children get a keyframe they can decode on its own.
+        assertEquals(second, read(secondRead.toKeyframeBytes(), null));
+    }
+
+    @Test
+    public void testReadingDoesNotDecode() throws IOException {
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        Snapshot read = read(snapshot.toBytes(), null);
+        assertFalse(read.isDecoded());
+
+        BufferedImage image = read.getImage();
+        assertTrue(read.isDecoded());
+        assertSame(image, read.getImage());
+    }
+
+    // A relay that never decodes its frames still decodes some of a long run
+    // of delta frames, so that it doesn't hold every frame since the keyframe.
+    @Test
+    public void testLongDeltaChainsAreDecoded() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(
+                new EncodingOptions.Builder().setKeyframeInterval(100).build());
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        List<Snapshot> reads = new ArrayList<>();
+        Snapshot previous = null;
+        for (int index = 0; index < 40; index++) {
+            if (index > 0)
+                snapshot = snapshot.createNext(ImageUtil.createImage1());
+            previous = read(encoder.encode(snapshot), previous);
+            assertEquals(index > 0, previous.isDeltaFrame());
+            reads.add(previous);
+        }
+
+        int undecoded = 0;
+        for (Snapshot read : reads) {
+            undecoded = read.isDecoded() ? 0 : undecoded + 1;
+            assertTrue(undecoded <= 8);
+        }
+        assertFalse(previous.isDecoded());
+        assertEquals(snapshot, previous);
+    }
+
+    @Test
+    public void testConcurrentDecodeReturnsSameImage() throws Exception {
+        Snapshot read = read(
+                Snapshot.losslessSnapshot(0, ImageUtil.createImage1()).toBytes(),
+                null);
+
+        List<Callable<BufferedImage>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            tasks.add(read::getImage);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<BufferedImage>> results = executor.invokeAll(tasks);
+            for (Future<BufferedImage> future : results)
+                assertSame(read.getImage(), future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package test.unit.encoding;
+
+import main.Snapshot;
+import main.encoding.DeltaEncoder;
+import main.encoding.EncodingOptions;
+import main.encoding.TileCache;
+import main.encoding.TileDelta;
+import main.encoding.TileGrid;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests encoding snapshots as keyframes and tile deltas.
+ */
+public class DeltaEncoderTests {
+    private final static EncodingOptions OPTIONS =
+            new EncodingOptions.Builder()
+                    .setTileSize(32)
+                    .setKeyframeInterval(3)
+                    .build();
+
+    // createImage1() with a small black square in the middle.
+    private static BufferedImage createChangedImage() {
+        BufferedImage img = ImageUtil.createImage1();
+        Graphics2D graphics = img.createGraphics();
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(100, 60, 10, 10);
+        graphics.dispose();
+        return img;
+    }
+
+    private static byte frameType(byte[] bytes) {
+        // prefix (1) + codec id (1) + layer (1) + frame index (8)
+        return bytes[11];
+    }
+
+    private static Snapshot read(byte[] bytes, Snapshot previous) throws IOException {
+        InputStream stream = new ByteArrayInputStream(bytes);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+        return Snapshot.fromInputStream(stream, false, previous);
+    }
+
+    // Hashing the tiles in one pass over the image gives the same hashes as
+    // hashing them one by one, for each layout the pixels are read from.
+    @Test
+    public void testTileHashes() {
+        BufferedImage image = createChangedImage();
+        TileGrid grid = TileGrid.forImage(image, 32);
+        List<Integer> tiles = Arrays.asList(0, 3, grid.columns + 3, grid.numTiles() - 1);
+
+        int[] row = new int[grid.tileSize];
+        long[] expected = new long[tiles.size()];
+        for (int i = 0; i < tiles.size(); i++)
+            expected[i] = TileCache.hash(image, grid.getTile(tiles.get(i)), row);
+
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+            Graphics2D graphics = converted.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            assertArrayEquals(expected, TileDelta.hashTiles(grid, converted, tiles));
+        }
+    }
+
+    @Test
+    public void testDeltaRoundTrip() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(OPTIONS);
+        Snapshot first = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        Snapshot second = first.createNext(createChangedImage());
+
+        byte[] firstBytes = encoder.encode(first);
+        byte[] secondBytes = encoder.encode(second);
+        assertEquals(Snapshot.KEYFRAME, frameType(firstBytes));
+        assertEquals(Snapshot.DELTA_FRAME, frameType(secondBytes));
+        assertTrue(secondBytes.length < firstBytes.length);
+
+        Snapshot decodedFirst = read(firstBytes, null);
+        assertEquals(first, decodedFirst);
+        assertEquals(second, read(secondBytes, decodedFirst));
+    }
+
+    @Test
+    public void testDeltaWithoutBaseIsDropped() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(OPTIONS);
+        Snapshot first = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        encoder.encode(first);
+
+        byte[] bytes = encoder.encode(first.createNext(createChangedImage()));
+        assertNull(read(bytes, null));
+    }
+
+    @Test
+    public void testKeyframeInterval() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(OPTIONS);
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+
+        byte[] expected = {
+                Snapshot.KEYFRAME, Snapshot.DELTA_FRAME, Snapshot.DELTA_FRAME,
+                Snapshot.KEYFRAME, Snapshot.DELTA_FRAME
+        };
+        for (byte frameType : expected) {
+            assertEquals(frameType, frameType(encoder.encode(snapshot)));
+            snapshot = snapshot.createNext(snapshot.getImage());
+        }
+    }
+
+    @Test
+    public void testLargeChangeSendsKeyframe() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(OPTIONS);
+        Snapshot first = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        encoder.encode(first);
+
+        byte[] bytes = encoder.encode(first.createNext(ImageUtil.createImage2()));
+        assertEquals(Snapshot.KEYFRAME, frameType(bytes));
+    }
+
+    // Flips between the two images, reading every frame back.
+    private static long[] flip(EncodingOptions options, int frames) throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(options);
+        BufferedImage[] images = { ImageUtil.createImage1(), createChangedImage() };
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, images[0]);
+        Snapshot previousRead = null;
+        long[] sizes = new long[frames];
+
+        for (int i = 0; i < frames; i++) {
+            byte[] bytes = encoder.encode(snapshot);
+            sizes[i] = bytes.length;
+            previousRead = read(bytes, previousRead);
+            assertEquals(snapshot, previousRead);
+            snapshot = snapshot.createNext(images[(i + 1) % 2]);
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testCachedTilesSentAsReferences() throws IOException {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setTileSize(32)
+                .setKeyframeInterval(10)
+                .setTileCacheSize(16)
+                .build();
+
+        // Frames 1 and 2 send the changed tiles and the original tiles; from
+        // then on, both are cached.
+        long[] sizes = flip(options, 5);
+        assertTrue(sizes[3] < sizes[1]);
+        assertTrue(sizes[4] < sizes[2]);
+    }
+
+    // Evictions happen at the same points on both ends.
+    @Test
+    public void testTinyCacheStaysInSync() throws IOException {
+        flip(new EncodingOptions.Builder()
+                .setTileSize(32)
+                .setKeyframeInterval(10)
+                .setTileCacheSize(1)
+                .build(), 6);
+    }
+
+    // A receiver whose chain started at a different keyframe than the
+    // sender's cache can't resolve references.
+    @Test
+    public void testReferencesDroppedForOtherCacheEpoch() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(new EncodingOptions.Builder()
+                .setTileSize(32)
+                .setKeyframeInterval(10)
+                .setTileCacheSize(16)
+                .build());
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        for (int i = 0; i < 3; i++) {
+            encoder.encode(snapshot);
+            snapshot = snapshot.createNext(
+                    i % 2 == 0 ? createChangedImage() : ImageUtil.createImage1());
+        }
+
+        // What a child joining now would be sent first.
+        Snapshot joined = read(encoder.encodeKeyframe(snapshot), null);
+        encoder.encode(snapshot);
+
+        byte[] bytes = encoder.encode(snapshot.createNext(ImageUtil.createImage1()));
+        assertEquals(Snapshot.DELTA_FRAME, frameType(bytes));
+        assertNull(read(bytes, joined));
+        assertTrue(encoder.getTileCache().getHits() > 0);
+    }
+
+    // A page of numbered lines of text scrolled down by the given number of
+    // pixels, with a static sidebar on the left.
+    private static BufferedImage createDocument(int scrollX, int scrollY) {
+        BufferedImage img = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = img.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 320, 240);
+        graphics.setColor(Color.BLACK);
+        graphics.setClip(40, 0, 280, 240);
+        for (int line = 0; line < 40; line++)
+            graphics.drawString("Line " + line + " of a document " + (line * 7919 % 1000),
+                    50 - scrollX, 14 * line - scrollY);
+        graphics.setClip(null);
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(0, 0, 40, 240);
+        graphics.dispose();
+        return img;
+    }
+
+    private static void testScroll(int scrollX, int scrollY) throws IOException {
+        EncodingOptions.Builder builder = new EncodingOptions.Builder()
+                .setTileSize(32)
+                .setKeyframeInterval(10);
+        Snapshot first = Snapshot.losslessSnapshot(0, createDocument(0, 0));
+        Snapshot second = first.createNext(createDocument(scrollX, scrollY));
+
+        int[] sizes = new int[2];
+        for (boolean moveDetection : new boolean[] { false, true }) {
+            DeltaEncoder encoder = new DeltaEncoder(
+                    builder.setMoveDetection(moveDetection).build());
+            Snapshot firstRead = read(encoder.encode(first), null);
+            byte[] bytes = encoder.encode(second);
+
+            assertEquals(second, read(bytes, firstRead));
+            sizes[moveDetection ? 1 : 0] = bytes.length;
+            if (moveDetection)
+                assertEquals(Snapshot.DELTA_FRAME, frameType(bytes));
+        }
+        // Without move detection, nearly every tile changed and we'd send a
+        // keyframe.
+        assertTrue(sizes[1] * 2 < sizes[0]);
+    }
+
+    @Test
+    public void testVerticalScroll() throws IOException {
+        testScroll(0, 37);
+        testScroll(0, -20);
+    }
+
+    @Test
+    public void testHorizontalScroll() throws IOException {
+        testScroll(25, 0);
+    }
+
+    // Scaled keyframes decode to the original size, and are much smaller
+    // than full keyframes.
+    @Test
+    public void testScaledKeyframe() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(OPTIONS);
+        BufferedImage image = createChangedImage();
+        Snapshot snapshot = Snapshot.losslessSnapshot(4, image);
+
+        byte[] scaledBytes = encoder.encodeScaledKeyframe(snapshot);
+        assertEquals(Snapshot.SCALED_KEYFRAME, frameType(scaledBytes));
+        assertTrue(scaledBytes.length < encoder.encodeKeyframe(snapshot).length);
+
+        Snapshot read = read(scaledBytes, null);
+        assertEquals(4, read.getFrameIndex());
+        assertEquals(image.getWidth(), read.getImage().getWidth());
+        assertEquals(image.getHeight(), read.getImage().getHeight());
+
+        // Relays forward it as a keyframe.
+        assertArrayEquals(scaledBytes, read.toKeyframeBytes());
+    }
+
+    @Test
+    public void testPreview() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(OPTIONS);
+        BufferedImage image = createChangedImage();
+        Snapshot snapshot = Snapshot.losslessSnapshot(4, image);
+
+        byte[] previewBytes = encoder.encodePreview(snapshot);
+        assertEquals(Snapshot.PREVIEW, frameType(previewBytes));
+        assertTrue(previewBytes.length < encoder.encodeScaledKeyframe(snapshot).length);
+
+        Snapshot preview = read(previewBytes, null);
+        assertTrue(preview.isPreview());
+        assertEquals(4, preview.getFrameIndex());
+        assertEquals(image.getWidth(), preview.getImage().getWidth());
+
+        // Previews don't affect the stream.
+        assertFalse(encoder.mayEncodeDelta(snapshot));
+        assertEquals(Snapshot.KEYFRAME, frameType(encoder.encode(snapshot)));
+        assertTrue(encoder.mayEncodeDelta(snapshot.createNext(image)));
+    }
+}
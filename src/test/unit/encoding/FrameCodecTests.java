@@ -0,0 +1,126 @@
+package test.unit.encoding;
+
+import main.Snapshot;
+import main.encoding.DeflateCodec;
+import main.encoding.DeltaEncoder;
+import main.encoding.EncodingOptions;
+import main.encoding.FrameCodec;
+import main.encoding.FrameCodecs;
+import main.encoding.HybridCodec;
+import main.encoding.ImageEncoder;
+import main.encoding.PaletteCodec;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the codec registry and the codec id in the frame header.
+ */
+public class FrameCodecTests {
+    private static Snapshot read(byte[] bytes) throws IOException {
+        InputStream stream = new ByteArrayInputStream(bytes);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+        return Snapshot.fromInputStream(stream, false);
+    }
+
+    @Test
+    public void testBuiltinCodecsRegistered() {
+        assertSame(ImageEncoder.PNG, FrameCodecs.get(FrameCodecs.PNG_ID));
+        assertSame(ImageEncoder.JPEG, FrameCodecs.get(FrameCodecs.JPEG_ID));
+        assertSame(DeflateCodec.INSTANCE, FrameCodecs.get(FrameCodecs.DEFLATE_ID));
+        assertSame(HybridCodec.INSTANCE, FrameCodecs.get(FrameCodecs.HYBRID_ID));
+        assertSame(PaletteCodec.INSTANCE, FrameCodecs.get(FrameCodecs.PALETTE_ID));
+        assertNull(FrameCodecs.get((byte)100));
+    }
+
+    private static void testDeflateRoundTrip(BufferedImage image) throws IOException {
+        FrameCodec codec = DeflateCodec.INSTANCE;
+        BufferedImage decoded = codec.decode(new ByteArrayInputStream(codec.encode(image)));
+        assertTrue(Snapshot.imagesEqual(image, decoded));
+    }
+
+    // Copies the image into one of another type, which DeflateCodec reads
+    // through getRGB() instead of the backing array.
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D graphics = converted.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return converted;
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        testDeflateRoundTrip(ImageUtil.createImage1());
+        testDeflateRoundTrip(ImageUtil.createImage2());
+    }
+
+    // Stripes are subimages sharing their parent's backing array.
+    @Test
+    public void testDeflateSubimage() throws IOException {
+        testDeflateRoundTrip(ImageUtil.createImage1().getSubimage(13, 7, 50, 40));
+    }
+
+    @Test
+    public void testDeflateOtherImageTypes() throws IOException {
+        BufferedImage image = ImageUtil.createImage2();
+        testDeflateRoundTrip(convert(image, BufferedImage.TYPE_3BYTE_BGR));
+        testDeflateRoundTrip(convert(image, BufferedImage.TYPE_INT_BGR));
+    }
+
+    @Test
+    public void testCodecIdInHeader() throws IOException {
+        Snapshot snapshot = Snapshot.losslessSnapshot(3, ImageUtil.createImage1());
+        byte[] bytes = snapshot.toKeyframeBytes(DeflateCodec.INSTANCE);
+
+        assertEquals(FrameCodecs.DEFLATE_ID, bytes[1]);
+        assertEquals(snapshot, read(bytes));
+    }
+
+    // Each frame records its codec, so switching mid-stream (even between
+    // a keyframe and a delta against it) doesn't confuse the receiver.
+    @Test
+    public void testSwitchCodecs() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(new EncodingOptions.Builder()
+                .setKeyframeInterval(10)
+                .setCodec(ImageEncoder.PNG)
+                .build());
+        Snapshot first = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        Snapshot second = first.createNext(ImageUtil.createImage1());
+
+        byte[] firstBytes = encoder.encode(first);
+        encoder.setCodec(DeflateCodec.INSTANCE);
+        byte[] secondBytes = encoder.encode(second);
+        assertEquals(FrameCodecs.PNG_ID, firstBytes[1]);
+        assertEquals(FrameCodecs.DEFLATE_ID, secondBytes[1]);
+
+        Snapshot firstRead = read(firstBytes);
+        InputStream stream = new ByteArrayInputStream(secondBytes);
+        stream.read();
+        assertEquals(second, Snapshot.fromInputStream(stream, false, firstRead));
+    }
+
+    // Frames with a codec we don't know can still be read and forwarded.
+    @Test
+    public void testUnknownCodecForwarded() throws IOException {
+        byte[] bytes = Snapshot.losslessSnapshot(0, ImageUtil.createImage1()).toBytes();
+        bytes[1] = 100;
+
+        Snapshot snapshot = read(bytes);
+        assertArrayEquals(bytes, snapshot.toBytes());
+        try {
+            snapshot.getImage();
+            fail("Decoded a frame with an unknown codec");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+    }
+}
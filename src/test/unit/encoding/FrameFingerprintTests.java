@@ -0,0 +1,47 @@
+package test.unit.encoding;
+
+import main.encoding.FrameFingerprint;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests fingerprinting frames to recognize unchanged captures.
+ */
+public class FrameFingerprintTests {
+    @Test
+    public void testEqualImages() {
+        assertEquals(FrameFingerprint.of(ImageUtil.createImage1()),
+                FrameFingerprint.of(ImageUtil.createImage1()));
+    }
+
+    @Test
+    public void testDifferentImages() {
+        assertFalse(FrameFingerprint.of(ImageUtil.createImage1()) ==
+                FrameFingerprint.of(ImageUtil.createImage2()));
+    }
+
+    // A single changed pixel (e.g., a cursor) must not be missed.
+    @Test
+    public void testSinglePixelChange() {
+        BufferedImage image = ImageUtil.createImage1();
+        long before = FrameFingerprint.of(image);
+        image.setRGB(image.getWidth() - 1, image.getHeight() - 1,
+                ~image.getRGB(image.getWidth() - 1, image.getHeight() - 1));
+        assertFalse(before == FrameFingerprint.of(image));
+    }
+
+    // Other image types are hashed through getRGB(), which must agree with
+    // reading the pixels directly.
+    @Test
+    public void testOtherImageTypes() {
+        BufferedImage image = ImageUtil.createImage2();
+        BufferedImage converted = new BufferedImage(
+                image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        converted.getGraphics().drawImage(image, 0, 0, null);
+        assertEquals(FrameFingerprint.of(image), FrameFingerprint.of(converted));
+    }
+}
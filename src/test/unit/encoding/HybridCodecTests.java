@@ -0,0 +1,111 @@
+package test.unit.encoding;
+
+import main.Snapshot;
+import main.encoding.DeflateCodec;
+import main.encoding.DeltaEncoder;
+import main.encoding.EncodingOptions;
+import main.encoding.FrameCodecs;
+import main.encoding.HybridCodec;
+import main.encoding.PixelRows;
+import main.encoding.TileClassifier;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests classifying tiles and encoding them losslessly or lossily.
+ */
+public class HybridCodecTests {
+    // Text on the left half, noise (standing in for a photo) on the right.
+    private static BufferedImage createMixedImage() {
+        BufferedImage image = ImageUtil.createImage1();
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.BLACK);
+        graphics.drawString("The quick brown fox", 4, 80);
+        graphics.dispose();
+
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 128; x < image.getWidth(); x++)
+                image.setRGB(x, y, random.nextInt());
+        return image;
+    }
+
+    private static BufferedImage roundTrip(BufferedImage image) throws IOException {
+        return HybridCodec.INSTANCE.decode(
+                new ByteArrayInputStream(HybridCodec.INSTANCE.encode(image)));
+    }
+
+    private static boolean regionsEqual(BufferedImage lhs, BufferedImage rhs, Rectangle region) {
+        return Snapshot.imagesEqual(
+                lhs.getSubimage(region.x, region.y, region.width, region.height),
+                rhs.getSubimage(region.x, region.y, region.width, region.height));
+    }
+
+    @Test
+    public void testCountColors() {
+        PixelRows pixels = new PixelRows(ImageUtil.createImage1());
+        Rectangle all = new Rectangle(0, 0, 256, 128);
+        assertEquals(2, TileClassifier.countColors(pixels, all, 10));
+        assertEquals(1, TileClassifier.countColors(pixels, new Rectangle(0, 100, 32, 28), 10));
+        assertEquals(2, TileClassifier.countColors(pixels, all, 1));
+    }
+
+    @Test
+    public void testClassify() {
+        PixelRows pixels = new PixelRows(createMixedImage());
+        assertTrue(TileClassifier.isLossless(pixels, new Rectangle(0, 64, 32, 32)));
+        assertFalse(TileClassifier.isLossless(pixels, new Rectangle(160, 64, 32, 32)));
+    }
+
+    @Test
+    public void testLosslessImageIsExact() throws IOException {
+        BufferedImage image = ImageUtil.createImage2();
+        assertTrue(Snapshot.imagesEqual(image, roundTrip(image)));
+    }
+
+    // Text stays exact and the noise is encoded lossily, which is much
+    // smaller than encoding it losslessly.
+    @Test
+    public void testMixedImage() throws IOException {
+        BufferedImage image = createMixedImage();
+        byte[] bytes = HybridCodec.INSTANCE.encode(image);
+        BufferedImage decoded = HybridCodec.INSTANCE.decode(new ByteArrayInputStream(bytes));
+
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertTrue(regionsEqual(image, decoded, new Rectangle(0, 0, 128, 128)));
+        assertFalse(regionsEqual(image, decoded, new Rectangle(128, 0, 128, 128)));
+        assertTrue(bytes.length < DeflateCodec.INSTANCE.encode(image).length / 2);
+    }
+
+    // Edge tiles are clipped to the image.
+    @Test
+    public void testOddSize() throws IOException {
+        BufferedImage image = createMixedImage().getSubimage(3, 5, 150, 77);
+        BufferedImage decoded = roundTrip(image);
+        assertEquals(150, decoded.getWidth());
+        assertEquals(77, decoded.getHeight());
+        assertTrue(regionsEqual(image, decoded, new Rectangle(0, 0, 96, 64)));
+    }
+
+    @Test
+    public void testLosslessTextOption() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(
+                new EncodingOptions.Builder().setLosslessText(true).build());
+        byte[] bytes = encoder.encodeKeyframe(Snapshot.lossySnapshot(0, createMixedImage()));
+        assertEquals(FrameCodecs.HYBRID_ID, bytes[1]);
+
+        InputStream stream = new ByteArrayInputStream(bytes);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+        BufferedImage decoded = Snapshot.fromInputStream(stream, true).getImage();
+        assertTrue(regionsEqual(createMixedImage(), decoded, new Rectangle(0, 0, 128, 128)));
+    }
+}
@@ -0,0 +1,121 @@
+package test.unit.encoding;
+
+import main.encoding.ImageComparison;
+import main.encoding.TileGrid;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests comparing images on their rasters.
+ */
+public class ImageComparisonTests {
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D graphics = converted.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return converted;
+    }
+
+    private static void fill(BufferedImage image, Rectangle rect, Color color) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fill(rect);
+        graphics.dispose();
+    }
+
+    @Test
+    public void testEqual() {
+        assertTrue(ImageComparison.equal(ImageUtil.createImage1(), ImageUtil.createImage1()));
+        assertFalse(ImageComparison.equal(ImageUtil.createImage1(), ImageUtil.createImage2()));
+    }
+
+    @Test
+    public void testDifferentSizes() {
+        BufferedImage image = ImageUtil.createImage1();
+        assertFalse(ImageComparison.equal(
+                image, image.getSubimage(0, 0, image.getWidth() - 1, image.getHeight())));
+    }
+
+    // Same colors in a different layout are equal, whichever way the pixels
+    // are read.
+    @Test
+    public void testPixelFormats() {
+        BufferedImage image = ImageUtil.createImage2();
+        for (int type : new int[] {
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR }) {
+            BufferedImage converted = convert(image, type);
+            assertTrue(ImageComparison.equal(image, converted));
+            assertTrue(ImageComparison.equal(converted, image));
+
+            converted.setRGB(3, 4, ~converted.getRGB(3, 4) | 0xff000000);
+            assertFalse(ImageComparison.equal(image, converted));
+        }
+    }
+
+    @Test
+    public void testAlpha() {
+        BufferedImage opaque = convert(ImageUtil.createImage1(), BufferedImage.TYPE_INT_ARGB);
+        BufferedImage translucent = convert(opaque, BufferedImage.TYPE_INT_ARGB);
+        translucent.setRGB(0, 0, opaque.getRGB(0, 0) & 0x7fffffff);
+        assertFalse(ImageComparison.equal(opaque, translucent));
+    }
+
+    @Test
+    public void testChangedRegions() {
+        BufferedImage previous = ImageUtil.createImage1();
+        BufferedImage current = ImageUtil.createImage1();
+        assertEquals(Collections.emptyList(),
+                ImageComparison.findChangedRegions(previous, current));
+
+        fill(current, new Rectangle(10, 5, 20, 10), Color.MAGENTA);
+        fill(current, new Rectangle(50, 8, 5, 5), Color.CYAN);
+        fill(current, new Rectangle(40, 30, 3, 3), Color.MAGENTA);
+        assertEquals(
+                Arrays.asList(new Rectangle(10, 5, 45, 10), new Rectangle(40, 30, 3, 3)),
+                ImageComparison.findChangedRegions(previous, current));
+    }
+
+    // The tiles are the same whichever way the pixels are read.
+    @Test
+    public void testChangedTiles() {
+        BufferedImage previous = ImageUtil.createImage1();
+        BufferedImage current = ImageUtil.createImage1();
+        TileGrid grid = TileGrid.forImage(current, 32);
+        assertEquals(Collections.emptyList(),
+                ImageComparison.findChangedTiles(grid, previous, current));
+
+        fill(current, new Rectangle(10, 5, 20, 10), Color.MAGENTA);
+        fill(current, new Rectangle(50, 40, 30, 1), Color.CYAN);
+        List<Integer> expected = Arrays.asList(0, grid.columns + 1, grid.columns + 2);
+        assertEquals(expected, ImageComparison.findChangedTiles(grid, previous, current));
+        assertEquals(expected, ImageComparison.findChangedTiles(
+                grid, convert(previous, BufferedImage.TYPE_3BYTE_BGR), current));
+    }
+
+    // Large enough to be compared in parallel bands.
+    @Test
+    public void testLargeImages() {
+        BufferedImage previous = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+        BufferedImage current = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+        assertTrue(ImageComparison.equal(previous, current));
+
+        fill(current, new Rectangle(1900, 1070, 1, 1), Color.WHITE);
+        assertFalse(ImageComparison.equal(previous, current));
+        assertEquals(Collections.singletonList(new Rectangle(1900, 1070, 1, 1)),
+                ImageComparison.findChangedRegions(previous, current));
+
+        TileGrid grid = TileGrid.forImage(current, 64);
+        assertEquals(Collections.singletonList(grid.numTiles() - 1),
+                ImageComparison.findChangedTiles(grid, previous, current));
+    }
+}
@@ -0,0 +1,85 @@
+package test.unit.encoding;
+
+import main.Snapshot;
+import main.encoding.FrameBuffer;
+import main.encoding.ImageEncoder;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the cached ImageWriter pipeline and the pooled frame buffers.
+ */
+public class ImageEncoderTests {
+    private static BufferedImage decode(byte[] bytes) throws IOException {
+        return ImageEncoder.JPEG.decode(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void testPngRoundTrip() throws IOException {
+        BufferedImage image = ImageUtil.createImage1();
+        assertTrue(Snapshot.imagesEqual(image, decode(ImageEncoder.PNG.encode(image))));
+    }
+
+    // The cached writer should produce the same output every time.
+    @Test
+    public void testEncoderIsReusable() throws IOException {
+        BufferedImage image = ImageUtil.createImage2();
+        assertArrayEquals(ImageEncoder.JPEG.encode(image), ImageEncoder.JPEG.encode(image));
+        assertArrayEquals(ImageEncoder.PNG.encode(image), ImageEncoder.PNG.encode(image));
+    }
+
+    @Test
+    public void testJpegQuality() throws IOException {
+        BufferedImage image = ImageUtil.createImage2();
+        byte[] low = ImageEncoder.jpeg(0.1f, ImageEncoder.ChromaSubsampling.YUV420).encode(image);
+        byte[] high = ImageEncoder.jpeg(0.95f, ImageEncoder.ChromaSubsampling.YUV420).encode(image);
+
+        assertTrue(low.length < high.length);
+        assertEquals(image.getWidth(), decode(low).getWidth());
+    }
+
+    @Test
+    public void testChromaSubsampling() throws IOException {
+        BufferedImage image = ImageUtil.createImage1();
+        byte[] subsampled = ImageEncoder.jpeg(0.9f, ImageEncoder.ChromaSubsampling.YUV420).encode(image);
+        byte[] full = ImageEncoder.jpeg(0.9f, ImageEncoder.ChromaSubsampling.YUV444).encode(image);
+
+        assertTrue(subsampled.length < full.length);
+        assertEquals(image.getHeight(), decode(full).getHeight());
+    }
+
+    @Test
+    public void testFrameBufferPatchesLength() throws IOException {
+        try (FrameBuffer buffer = FrameBuffer.acquire()) {
+            buffer.writeLong(0);
+            buffer.write(new byte[] { 1, 2, 3 });
+            buffer.writeLongAt(0, 3);
+
+            byte[] bytes = buffer.toByteArray();
+            assertEquals(11, bytes.length);
+            assertEquals(3, bytes[7]);
+            assertEquals(3, bytes[10]);
+        }
+    }
+
+    // A buffer acquired while the thread's pooled buffer is in use must not
+    // share its contents.
+    @Test
+    public void testNestedFrameBuffers() throws IOException {
+        try (FrameBuffer outer = FrameBuffer.acquire()) {
+            outer.write(new byte[] { 1, 2 });
+            try (FrameBuffer inner = FrameBuffer.acquire()) {
+                assertNotSame(outer, inner);
+                inner.write(7);
+                assertArrayEquals(new byte[] { 7 }, inner.toByteArray());
+            }
+            assertArrayEquals(new byte[] { 1, 2 }, outer.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package test.unit.encoding;
+
+import com.google.common.primitives.Ints;
+import main.Snapshot;
+import main.encoding.ImageEncoder;
+import main.encoding.PaletteCodec;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests encoding tiles as palettes and indexes.
+ */
+public class PaletteCodecTests {
+    private static BufferedImage roundTrip(PaletteCodec codec, BufferedImage image)
+            throws IOException {
+        BufferedImage decoded = codec.decode(new ByteArrayInputStream(codec.encode(image)));
+        assertTrue(Snapshot.imagesEqual(image, decoded));
+        return decoded;
+    }
+
+    // Lines of antialiased text, like a terminal or an editor.
+    private static BufferedImage createTextImage() {
+        BufferedImage image = new BufferedImage(640, 360, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(
+                RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setColor(new Color(0x1e1e1e));
+        graphics.fillRect(0, 0, 640, 360);
+        graphics.setColor(new Color(0xd4d4d4));
+        for (int y = 16; y < 360; y += 16)
+            graphics.drawString("for (int i = 0; i < tiles.length; i++) // line " + y, 8, y);
+        graphics.dispose();
+        return image;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        roundTrip(PaletteCodec.INSTANCE, ImageUtil.createImage1());
+        roundTrip(PaletteCodec.INSTANCE, ImageUtil.createImage2());
+        roundTrip(PaletteCodec.INSTANCE, createTextImage());
+    }
+
+    // Each tile size exercises different index widths and edge tiles.
+    @Test
+    public void testTileSizes() throws IOException {
+        BufferedImage image = createTextImage().getSubimage(5, 3, 301, 117);
+        for (int tileSize : new int[] { 1, 7, 16, 64, 1024 })
+            roundTrip(new PaletteCodec(tileSize), image);
+    }
+
+    // Every pixel different: tiles fall back to the deflated atlas.
+    @Test
+    public void testManyColors() throws IOException {
+        BufferedImage image = new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, random.nextInt() & 0xffffff);
+
+        // Including one tile that has few colors.
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(0, 0, 32, 32);
+        graphics.dispose();
+
+        roundTrip(PaletteCodec.INSTANCE, image);
+    }
+
+    @Test
+    public void testSmallerThanPng() throws IOException {
+        BufferedImage image = createTextImage();
+        assertTrue(PaletteCodec.INSTANCE.encode(image).length <
+                ImageEncoder.PNG.encode(image).length);
+    }
+
+    private static void assertCorrupt(byte[] bytes) {
+        try {
+            PaletteCodec.INSTANCE.decode(new ByteArrayInputStream(bytes));
+            fail("Decoded a corrupt image");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    // Copies the bytes with the header's int at the offset replaced.
+    private static byte[] withHeaderInt(byte[] bytes, int offset, int value) {
+        byte[] result = bytes.clone();
+        System.arraycopy(Ints.toByteArray(value), 0, result, offset, Integer.BYTES);
+        return result;
+    }
+
+    // Nor should a corrupt header make us allocate more than the image needs.
+    @Test
+    public void testCorrupt() throws IOException {
+        byte[] bytes = PaletteCodec.INSTANCE.encode(createTextImage());
+        assertCorrupt(Arrays.copyOf(bytes, bytes.length - 10));
+
+        // The width and height, then the tiles' length and compressed length.
+        assertCorrupt(withHeaderInt(withHeaderInt(bytes, 0, 1 << 20), 4, 1 << 20));
+        assertCorrupt(withHeaderInt(bytes, 12, Integer.MAX_VALUE));
+        assertCorrupt(withHeaderInt(bytes, 16, Integer.MAX_VALUE));
+    }
+}
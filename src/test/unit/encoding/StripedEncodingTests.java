@@ -0,0 +1,90 @@
+package test.unit.encoding;
+
+import main.Snapshot;
+import main.encoding.DeflateCodec;
+import main.encoding.DeltaEncoder;
+import main.encoding.EncodingOptions;
+import main.encoding.FrameBuffer;
+import main.encoding.ImageEncoder;
+import main.encoding.StripedEncoding;
+import main.encoding.YuvPlanes;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests encoding full frames as stripes.
+ */
+public class StripedEncodingTests {
+    private static byte[] encode(BufferedImage image, ImageEncoder encoder, int stripes)
+            throws IOException {
+        try (FrameBuffer buffer = FrameBuffer.acquire()) {
+            StripedEncoding.write(buffer, image, encoder, stripes);
+            return buffer.toByteArray();
+        }
+    }
+
+    private void testRoundTrip(BufferedImage image, int stripes) throws IOException {
+        byte[] payload = encode(image, ImageEncoder.PNG, stripes);
+        assertTrue(Snapshot.imagesEqual(image, StripedEncoding.decode(payload, ImageEncoder.PNG)));
+    }
+
+    @Test
+    public void testOneStripe() throws IOException {
+        testRoundTrip(ImageUtil.createImage1(), 1);
+    }
+
+    @Test
+    public void testManyStripes() throws IOException {
+        testRoundTrip(ImageUtil.createImage1(), 3);
+        testRoundTrip(ImageUtil.createImage2(), 8);
+    }
+
+    // More stripes than rows of 16 pixels; some stripes are merged.
+    @Test
+    public void testMoreStripesThanRows() throws IOException {
+        testRoundTrip(ImageUtil.createImage2(), 100);
+    }
+
+    // Planes are split into the same stripes as the image they came from.
+    @Test
+    public void testPlanesStripes() throws IOException {
+        YuvPlanes planes = YuvPlanes.fromImage(ImageUtil.createImage2());
+        byte[] payload;
+        try (FrameBuffer buffer = FrameBuffer.acquire()) {
+            StripedEncoding.write(buffer, planes, DeflateCodec.INSTANCE, 3);
+            payload = buffer.toByteArray();
+        }
+        assertTrue(Snapshot.imagesEqual(
+                planes.toImage(), StripedEncoding.decode(payload, DeflateCodec.INSTANCE)));
+    }
+
+    @Test
+    public void testLossyStripes() throws IOException {
+        BufferedImage image = ImageUtil.createImage1();
+        BufferedImage decoded = StripedEncoding.decode(
+                encode(image, ImageEncoder.JPEG, 4), ImageEncoder.JPEG);
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertEquals(image.getHeight(), decoded.getHeight());
+    }
+
+    @Test
+    public void testEncoderSendsStripedKeyframes() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(
+                new EncodingOptions.Builder().setStripes(4).build());
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+
+        byte[] bytes = encoder.encode(snapshot);
+        assertEquals(Snapshot.STRIPED_KEYFRAME, bytes[11]);
+
+        InputStream stream = new ByteArrayInputStream(bytes);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, stream.read());
+        assertEquals(snapshot, Snapshot.fromInputStream(stream, false));
+    }
+}
@@ -0,0 +1,140 @@
+package test.unit.encoding;
+
+import main.encoding.DeflateCodec;
+import main.encoding.FrameBuffer;
+import main.encoding.FrameCodec;
+import main.encoding.ImageEncoder;
+import main.encoding.YuvPlanes;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the conversion to and from YCbCr 4:2:0 planes and encoding them.
+ */
+public class YuvPlanesTests {
+    // The largest difference between any channel of the images' pixels.
+    private static int maxDifference(BufferedImage lhs, BufferedImage rhs) {
+        assertEquals(lhs.getWidth(), rhs.getWidth());
+        assertEquals(lhs.getHeight(), rhs.getHeight());
+
+        int max = 0;
+        for (int y = 0; y < lhs.getHeight(); y++)
+            for (int x = 0; x < lhs.getWidth(); x++) {
+                int l = lhs.getRGB(x, y), r = rhs.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8)
+                    max = Math.max(max, Math.abs(((l >> shift) & 0xff) - ((r >> shift) & 0xff)));
+            }
+        return max;
+    }
+
+    // The mean difference between the channels of the images' pixels.
+    private static double meanDifference(BufferedImage lhs, BufferedImage rhs) {
+        long sum = 0;
+        for (int y = 0; y < lhs.getHeight(); y++)
+            for (int x = 0; x < lhs.getWidth(); x++) {
+                int l = lhs.getRGB(x, y), r = rhs.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8)
+                    sum += Math.abs(((l >> shift) & 0xff) - ((r >> shift) & 0xff));
+            }
+        return (double)sum / (3 * lhs.getWidth() * lhs.getHeight());
+    }
+
+    private static BufferedImage encodeAndDecode(FrameCodec codec, YuvPlanes planes)
+            throws IOException {
+        try (FrameBuffer buffer = FrameBuffer.acquire()) {
+            codec.encode(planes, buffer);
+            return codec.decode(new ByteArrayInputStream(buffer.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testPlaneSizes() {
+        YuvPlanes planes = YuvPlanes.fromImage(ImageUtil.createImage1().getSubimage(0, 0, 35, 17));
+        assertEquals(35 * 17, planes.y.length);
+        assertEquals(18, planes.getChromaWidth());
+        assertEquals(9, planes.getChromaHeight());
+        assertEquals(18 * 9, planes.cb.length);
+        assertEquals(18 * 9, planes.cr.length);
+    }
+
+    @Test
+    public void testGetRows() {
+        YuvPlanes planes = YuvPlanes.fromImage(ImageUtil.createImage2());
+        YuvPlanes rows = planes.getRows(32, 47);
+        assertEquals(15, rows.height);
+        assertEquals(8, rows.getChromaHeight());
+        assertEquals(0, maxDifference(
+                planes.toImage().getSubimage(0, 32, planes.width, 15), rows.toImage()));
+    }
+
+    // Grays have no chroma, so they survive the round trip exactly.
+    @Test
+    public void testGrayRoundTrip() {
+        BufferedImage image = new BufferedImage(256, 3, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 256; x++)
+            for (int y = 0; y < 3; y++)
+                image.setRGB(x, y, x << 16 | x << 8 | x);
+
+        YuvPlanes planes = YuvPlanes.fromImage(image);
+        for (int x = 0; x < 256; x++)
+            assertEquals(x, planes.y[x] & 0xff);
+        assertEquals(0, maxDifference(image, planes.toImage()));
+    }
+
+    // Blocks of one color only lose precision.
+    @Test
+    public void testRoundTrip() {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y += 2)
+            for (int x = 0; x < image.getWidth(); x += 2) {
+                int rgb = random.nextInt();
+                image.setRGB(x, y, rgb);
+                image.setRGB(x + 1, y, rgb);
+                image.setRGB(x, y + 1, rgb);
+                image.setRGB(x + 1, y + 1, rgb);
+            }
+
+        assertTrue(maxDifference(image, YuvPlanes.fromImage(image).toImage()) <= 2);
+    }
+
+    // Large images are converted in parallel bands.
+    @Test
+    public void testLargeImage() {
+        BufferedImage image = new BufferedImage(1023, 601, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, (x / 2 & 0xff) << 16 | (y / 2 & 0xff) << 8 | 0x40);
+
+        assertTrue(maxDifference(image, YuvPlanes.fromImage(image).toImage()) <= 2);
+    }
+
+    @Test
+    public void testJpegTakesPlanes() throws IOException {
+        assertTrue(ImageEncoder.JPEG.acceptsPlanes());
+        assertFalse(ImageEncoder.jpeg(0.9f, ImageEncoder.ChromaSubsampling.YUV444).acceptsPlanes());
+        assertFalse(ImageEncoder.PNG.acceptsPlanes());
+
+        BufferedImage image = ImageUtil.createImage2();
+        YuvPlanes planes = YuvPlanes.fromImage(image);
+        BufferedImage decoded = encodeAndDecode(
+                ImageEncoder.jpeg(0.95f, ImageEncoder.ChromaSubsampling.YUV420), planes);
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertTrue(meanDifference(image, decoded) < 2);
+    }
+
+    // Other codecs encode the planes converted back into an image.
+    @Test
+    public void testOtherCodecsTakePlanes() throws IOException {
+        YuvPlanes planes = YuvPlanes.fromImage(ImageUtil.createImage1());
+        assertEquals(0, maxDifference(
+                planes.toImage(), encodeAndDecode(DeflateCodec.INSTANCE, planes)));
+    }
+}
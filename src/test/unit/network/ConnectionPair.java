@@ -3,9 +3,13 @@ package test.unit.network;
 import main.network.connections.Connection;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 // Represents the result of a connection being established.
 public class ConnectionPair<T> {
@@ -41,4 +45,44 @@ public class ConnectionPair<T> {
     public void testBackwardsSending(byte[] data) throws IOException {
         testSending(destToSource, sourceToDest, data);
     }
+
+    // A read with nothing to read times out, and the connection can still
+    // be read from afterwards.
+    public void testReadTimeout() throws IOException {
+        destToSource.setReadTimeout(50);
+        long startMillis = System.currentTimeMillis();
+        try {
+            destToSource.getInputStream().read();
+            fail("Read didn't time out");
+        } catch (SocketTimeoutException e) {
+        }
+        assertTrue(System.currentTimeMillis() - startMillis >= 40);
+
+        destToSource.setReadTimeout(0);
+        testSending(new byte[]{4, 2});
+    }
+
+    // Buffered writes aren't sent until they're flushed, and then they're
+    // sent in order along with the next write.
+    public void testBufferedWriting() throws IOException {
+        sourceToDest.writeBuffered(new ByteBuffer[] { ByteBuffer.wrap(new byte[]{1, 2}) }, null);
+        sourceToDest.writeBuffered(new ByteBuffer[] { ByteBuffer.wrap(new byte[]{3}) }, null);
+
+        destToSource.setReadTimeout(50);
+        try {
+            destToSource.getInputStream().read();
+            fail("Buffered write was sent before it was flushed");
+        } catch (SocketTimeoutException e) {
+        }
+        destToSource.setReadTimeout(0);
+
+        sourceToDest.write(new byte[]{4});
+        byte[] read = new byte[4];
+        assertEquals(4, destToSource.read(read, 4));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, read);
+
+        sourceToDest.writeBuffered(new ByteBuffer[] { ByteBuffer.wrap(new byte[]{5}) }, null);
+        sourceToDest.flush();
+        assertEquals(5, destToSource.getInputStream().read());
+    }
 }
@@ -0,0 +1,190 @@
+package test.unit.network;
+
+import main.network.connections.Connection;
+import main.network.connections.socket.NioSocketConnectionFactory;
+import main.network.connections.socket.SocketInformation;
+import main.util.SharedBuffer;
+import main.util.Util;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests NioSocketConnection and NioSocketConnectionFactory.
+ */
+public class NioSocketConnectionTests {
+    private final static int PORT1 = 5557;
+    private final static int PORT2 = 6668;
+
+    private TestClient<SocketInformation> createTestClient(int port)
+            throws IOException {
+        SocketInformation info = new SocketInformation("127.0.0.1", port);
+        NioSocketConnectionFactory factory = NioSocketConnectionFactory.fromSocketInfo(info, 2);
+
+        return new TestClient<>(factory, info);
+    }
+
+    private ConnectionPair<SocketInformation> createConnectionPair(int port1, int port2)
+            throws IOException {
+        TestClient<SocketInformation> sourceClient = createTestClient(port1),
+                destClient = createTestClient(port2);
+
+        return TestClient.connect(sourceClient, destClient);
+    }
+
+    private static void close(ConnectionPair<SocketInformation> connections) {
+        connections.source.getConnectionFactory().close();
+        connections.dest.getConnectionFactory().close();
+    }
+
+    @Test(timeout=1000)
+    public void testSocketsConnect() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        assertEquals(PORT1, connections.sourceToDest.getSource().port);
+        assertEquals(PORT2, connections.destToSource.getSource().port);
+
+        close(connections);
+    }
+
+    @Test(timeout=1000)
+    public void testSocketsSendData() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        byte[] data1 = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 9, 8, 7, 6, 5};
+        byte[] data2 = new byte[]{1, 3, 3, 7, 1, 2, 3, 4, 1, 1, 2, 3, 5, 8, 13};
+        connections.testSending(data1);
+        connections.testBackwardsSending(data2);
+
+        close(connections);
+    }
+
+    // More than the socket and both connection buffers hold, so the writer
+    // has to wait for the reader.
+    @Test(timeout=5000)
+    public void testLargeWrites() throws Exception {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        int count = 12;
+
+        AtomicReference<Exception> err = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++)
+                    connections.sourceToDest.write(data);
+            } catch (IOException e) {
+                err.set(e);
+            }
+        });
+        writer.start();
+
+        byte[] read = new byte[data.length];
+        for (int i = 0; i < count; i++) {
+            assertEquals(data.length, connections.destToSource.read(read, data.length));
+            assertArrayEquals(data, read);
+        }
+        writer.join();
+        assertNull(err.get());
+
+        close(connections);
+    }
+
+    // Both connections write from views of the same buffer, which is
+    // released once they've sent it.
+    @Test(timeout=1000)
+    public void testSharedWrites() throws IOException {
+        TestClient<SocketInformation> server = createTestClient(PORT1),
+                client1 = createTestClient(PORT2),
+                client2 = createTestClient(PORT2 + 1);
+        ConnectionPair<SocketInformation> connections1 = TestClient.connect(client1, server),
+                connections2 = TestClient.connect(client2, server);
+
+        byte[] data = new byte[100000];
+        new Random(0).nextBytes(data);
+        SharedBuffer shared = SharedBuffer.copyOf(data);
+        for (ConnectionPair<SocketInformation> connections : Arrays.asList(connections1, connections2))
+            connections.destToSource.write(
+                    new ByteBuffer[] { shared.view(0, 10), shared.view(10, data.length - 10) },
+                    shared);
+        shared.release();
+
+        byte[] read = new byte[data.length];
+        for (ConnectionPair<SocketInformation> connections : Arrays.asList(connections1, connections2)) {
+            assertEquals(data.length, connections.sourceToDest.read(read, data.length));
+            assertArrayEquals(data, read);
+        }
+        while (!shared.isReleased())
+            Util.sleepMillis(1);
+
+        client1.getConnectionFactory().close();
+        client2.getConnectionFactory().close();
+        server.getConnectionFactory().close();
+    }
+
+    @Test(timeout=1000)
+    public void testReadTimeout() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        connections.testReadTimeout();
+
+        close(connections);
+    }
+
+    @Test(timeout=1000)
+    public void testBufferedWriting() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        connections.testBufferedWriting();
+
+        close(connections);
+    }
+
+    @Test(timeout=1000)
+    public void testReadAfterPeerCloses() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        connections.sourceToDest.write(new byte[]{42});
+        connections.sourceToDest.close();
+
+        assertEquals(42, connections.destToSource.getInputStream().read());
+        assertEquals(-1, connections.destToSource.getInputStream().read());
+
+        close(connections);
+    }
+
+    // The event loops are shared, so serving many connections doesn't take
+    // any more threads.
+    @Test(timeout=5000)
+    public void testManyConnections() throws Exception {
+        TestClient<SocketInformation> server = createTestClient(PORT1);
+        int threads = Thread.activeCount();
+
+        List<Socket> clients = new ArrayList<>();
+        List<Connection<SocketInformation>> accepted = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Socket client = new Socket("127.0.0.1", PORT1);
+            clients.add(client);
+            accepted.add(server.getConnectionFactory().acceptConnection());
+            client.getOutputStream().write(i);
+        }
+
+        assertTrue(Thread.activeCount() <= threads);
+        for (int i = 0; i < accepted.size(); i++)
+            assertEquals(i, accepted.get(i).getInputStream().read());
+
+        for (Socket client : clients)
+            client.close();
+        server.getConnectionFactory().close();
+    }
+}
@@ -2,9 +2,13 @@ package test.unit.network;
 
 import main.network.connections.socket.SocketConnectionFactory;
 import main.network.connections.socket.SocketInformation;
+import main.network.connections.socket.SocketOptions;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -54,4 +58,60 @@ public class SocketConnectionTests {
         connections.source.getConnectionFactory().close();
         connections.dest.getConnectionFactory().close();
     }
+
+    @Test(timeout=500)
+    public void testReadTimeout() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        connections.testReadTimeout();
+
+        connections.source.getConnectionFactory().close();
+        connections.dest.getConnectionFactory().close();
+    }
+
+    @Test(timeout=500)
+    public void testBufferedWriting() throws IOException {
+        ConnectionPair<SocketInformation> connections = createConnectionPair(PORT1, PORT2);
+
+        connections.testBufferedWriting();
+
+        connections.source.getConnectionFactory().close();
+        connections.dest.getConnectionFactory().close();
+    }
+
+    // Writes larger than the write buffer are sent whole, in order.
+    @Test(timeout=1000)
+    public void testLargeBufferedWrites() throws IOException {
+        SocketOptions options = new SocketOptions.Builder()
+                .setSendBufferBytes(256 * 1024)
+                .setReceiveBufferBytes(256 * 1024)
+                .build();
+        TestClient<SocketInformation> source = new TestClient<>(
+                SocketConnectionFactory.fromSocketInfo(
+                        new SocketInformation("127.0.0.1", PORT1), options),
+                new SocketInformation("127.0.0.1", PORT1));
+        ConnectionPair<SocketInformation> connections =
+                TestClient.connect(source, createTestClient(PORT2));
+
+        byte[] data = new byte[200 * 1024];
+        new Random(0).nextBytes(data);
+        Thread writer = new Thread(() -> {
+            try {
+                connections.sourceToDest.writeBuffered(new ByteBuffer[] {
+                        ByteBuffer.wrap(data, 0, 10),
+                        ByteBuffer.wrap(data, 10, data.length - 20)
+                }, null);
+                connections.sourceToDest.write(Arrays.copyOfRange(data, data.length - 10, data.length));
+            } catch (IOException e) {
+            }
+        });
+        writer.start();
+
+        byte[] read = new byte[data.length];
+        assertEquals(data.length, connections.destToSource.read(read, data.length));
+        assertArrayEquals(data, read);
+
+        connections.source.getConnectionFactory().close();
+        connections.dest.getConnectionFactory().close();
+    }
 }
@@ -55,6 +55,11 @@ public class TestConnectionTests {
         connections.testBackwardsSending(data2);
     }
 
+    @Test(timeout=500)
+    public void testReadTimeout() throws IOException {
+        createConnectionPair("a", "b").testReadTimeout();
+    }
+
     // Tests that connections can be reopened after closing.
     @Test(timeout=100)
     public void testReopenAfterClose() throws IOException {
@@ -0,0 +1,173 @@
+package test.unit.network.protocols;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Longs;
+import main.FrameTrace;
+import main.Snapshot;
+import main.network.protocols.Messages;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the framing of messages between nodes.
+ */
+public class MessagesTests {
+    private static InputStream concat(List<byte[]> messages) {
+        return new ByteArrayInputStream(Bytes.concat(messages.toArray(new byte[0][])));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] body = { 1, 2, 3 };
+        InputStream stream = concat(Arrays.asList(
+                Messages.toBytes((byte)0x60, body),
+                Messages.toBytes((byte)0x61)));
+
+        Messages.Message message = Messages.read(stream);
+        assertEquals(0x60, message.type);
+        assertArrayEquals(body, message.body);
+
+        message = Messages.read(stream);
+        assertEquals(0x61, message.type);
+        assertEquals(0, message.body.length);
+    }
+
+    // Larger frames are split into chunks no larger than MAX_CHUNK_BYTES,
+    // which reassemble into the original frame.
+    @Test
+    public void testFrameChunks() throws Exception {
+        BufferedImage image = ImageUtil.createImage1();
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, random.nextInt());
+        Snapshot snapshot = Snapshot.losslessSnapshot(4, image);
+        byte[] frame = snapshot.toBytes();
+
+        List<byte[]> messages = Messages.frameToMessages(frame);
+        assertTrue(messages.size() > 1);
+        for (byte[] message : messages)
+            assertTrue(message.length <= Messages.MAX_CHUNK_BYTES + 5);
+
+        InputStream stream = concat(messages);
+        Messages.Message first = Messages.read(stream);
+        assertEquals(Snapshot.SNAPSHOT_PREFIX, first.type);
+
+        Messages.PartialFrame partial = new Messages.PartialFrame(first);
+        while (!partial.isComplete()) {
+            Messages.Message chunk = Messages.read(stream);
+            assertEquals(Messages.CHUNK_PREFIX, chunk.type);
+            partial.add(chunk);
+        }
+        assertEquals(0, stream.available());
+
+        Snapshot read = Snapshot.fromPayload(
+                partial.header, partial.getPayload(), false, layer -> null);
+        assertEquals(snapshot, read);
+    }
+
+    @Test
+    public void testSenderAddsHop() throws Exception {
+        Snapshot snapshot = Snapshot.losslessSnapshot(0, ImageUtil.createImage1());
+        long receivedMicros = FrameTrace.nowMicros();
+        List<byte[]> messages = Messages.frameToMessages(snapshot.toBytes(), receivedMicros);
+
+        Messages.PartialFrame partial = new Messages.PartialFrame(
+                Messages.read(concat(messages)));
+        FrameTrace trace = partial.header.trace;
+        assertEquals(snapshot.getTrace().getCaptureMicros(), trace.getCaptureMicros());
+        assertEquals(1, trace.getNumHops());
+        assertEquals(trace.sinceCapture(receivedMicros), trace.getReceivedMicros(0));
+        assertTrue(trace.getSentMicros(0) >= trace.getReceivedMicros(0));
+    }
+
+    private static byte[] toBytes(ByteBuffer[] buffers) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            stream.write(bytes, 0, bytes.length);
+        }
+        return stream.toByteArray();
+    }
+
+    // A shared frame is sent as the same messages, apart from the hop added
+    // to its trace, with bodies that are views of one copy of the payload.
+    @Test
+    public void testSharedFrame() throws Exception {
+        BufferedImage image = ImageUtil.createImage1();
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, random.nextInt());
+        Snapshot snapshot = Snapshot.losslessSnapshot(4, image);
+        byte[] frame = snapshot.toBytes();
+
+        Messages.SharedFrame shared = new Messages.SharedFrame(frame);
+        long receivedMicros = FrameTrace.nowMicros();
+        List<byte[]> expected = Messages.frameToMessages(frame, receivedMicros);
+        List<ByteBuffer[]> buffers = shared.toMessages(receivedMicros);
+        assertEquals(expected.size(), buffers.size());
+        for (int i = 1; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i), toBytes(buffers.get(i)));
+
+        // Every receiver gets its own views.
+        List<byte[]> messages = new ArrayList<>();
+        for (ByteBuffer[] message : shared.toMessages(receivedMicros))
+            messages.add(toBytes(message));
+        shared.release();
+        assertTrue(shared.getPayload().isReleased());
+
+        InputStream stream = concat(messages);
+        Messages.PartialFrame partial = new Messages.PartialFrame(Messages.read(stream));
+        assertEquals(1, partial.header.trace.getNumHops());
+        while (!partial.isComplete())
+            partial.add(Messages.read(stream));
+        assertEquals(0, stream.available());
+        assertEquals(snapshot, Snapshot.fromPayload(
+                partial.header, partial.getPayload(), false, layer -> null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testChunkPastEndOfFrame() throws Exception {
+        byte[] frame = Snapshot.losslessSnapshot(0, ImageUtil.createImage2()).toBytes();
+        List<byte[]> messages = Messages.frameToMessages(frame);
+
+        Messages.PartialFrame partial = new Messages.PartialFrame(
+                Messages.read(new ByteArrayInputStream(messages.get(0))));
+        partial.add(new Messages.Message(Messages.CHUNK_PREFIX, new byte[frame.length]));
+    }
+
+    @Test(expected = IOException.class)
+    public void testIllegalLength() throws Exception {
+        Messages.read(new ByteArrayInputStream(new byte[] { 0x60, -1, -1, -1, -1 }));
+    }
+
+    // A corrupt header mustn't make us allocate a huge frame.
+    @Test(expected = IOException.class)
+    public void testIllegalPayloadLength() throws Exception {
+        byte[] frame = Snapshot.losslessSnapshot(0, ImageUtil.createImage1()).toBytes();
+        Messages.Message first = Messages.read(
+                new ByteArrayInputStream(Messages.frameToMessages(frame).get(0)));
+
+        // The payload length ends the header, which the body starts with.
+        int headerLength = Snapshot.Header.read(first.getBodyStream()).getLength() - 1;
+        byte[] body = first.body.clone();
+        System.arraycopy(Longs.toByteArray(Integer.MAX_VALUE), 0,
+                body, headerLength - Long.BYTES, Long.BYTES);
+        new Messages.PartialFrame(new Messages.Message(Snapshot.SNAPSHOT_PREFIX, body));
+    }
+}
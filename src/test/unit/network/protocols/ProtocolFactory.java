@@ -1,5 +1,6 @@
 package test.unit.network.protocols;
 
+import main.encoding.EncodingOptions;
 import main.network.protocols.NetworkProtocol;
 import main.network.protocols.basic.BasicNetworkProtocolBroadcaster;
 import main.network.protocols.basic.BasicNetworkProtocolClient;
@@ -35,11 +36,23 @@ public class ProtocolFactory {
         return createTreeClient(manager, broadcasterKey);
     }
 
+    public NetworkProtocol createTreeBroadcaster(TestConnectionManager manager,
+                                                 EncodingOptions options) {
+        return createTreeClient(manager, broadcasterKey, options);
+    }
+
     public NetworkProtocol createTreeClient(TestConnectionManager manager,
                                             String clientKey) {
+        return createTreeClient(manager, clientKey, EncodingOptions.DEFAULT);
+    }
+
+    public NetworkProtocol createTreeClient(TestConnectionManager manager,
+                                            String clientKey,
+                                            EncodingOptions options) {
         manager.onNewClient(clientKey);
         return TreeNetworkProtocol.losslessClient(
                 new TestConnectionFactory(manager, clientKey),
-                broadcasterKey);
+                broadcasterKey,
+                options);
     }
 }
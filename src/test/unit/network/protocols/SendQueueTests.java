@@ -0,0 +1,349 @@
+package test.unit.network.protocols;
+
+import main.Snapshot;
+import main.encoding.EncodingOptions;
+import main.network.connections.Connection;
+import main.network.protocols.ClientList;
+import main.network.protocols.Messages;
+import main.network.protocols.SendQueue;
+import main.util.Util;
+import org.junit.Test;
+import test.unit.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that each child is sent frames from its own queue, and what's
+ * dropped from the queues of children that don't keep up.
+ */
+public class SendQueueTests {
+    private final static String KEY = "parent";
+
+    // Records what's written, optionally blocking writes until unblocked.
+    private static class RecordingConnection implements Connection<String> {
+        private final String dest;
+        private final CountDownLatch unblocked;
+        private final ByteArrayOutputStream written;
+        private volatile boolean closed;
+
+        private RecordingConnection(String dest, boolean blocked) {
+            this.dest = dest;
+            this.unblocked = new CountDownLatch(blocked ? 1 : 0);
+            this.written = new ByteArrayOutputStream();
+            this.closed = false;
+        }
+
+        @Override
+        public String getSource() {
+            return KEY;
+        }
+
+        @Override
+        public String getDest() {
+            return dest;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int read(byte[] bytes, int numBytes) {
+            return 0;
+        }
+
+        @Override
+        public void setReadTimeout(long timeoutMillis) {
+        }
+
+        @Override
+        public void write(byte[] bytes) throws IOException {
+            try {
+                unblocked.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (closed)
+                throw new IOException("Connection closed");
+            synchronized (written) {
+                written.write(bytes, 0, bytes.length);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            unblocked.countDown();
+        }
+
+        private void unblock() {
+            unblocked.countDown();
+        }
+
+        // The whole frames written.
+        private List<Messages.PartialFrame> getWholeFrames() throws Exception {
+            InputStream stream;
+            synchronized (written) {
+                stream = new ByteArrayInputStream(written.toByteArray());
+            }
+
+            List<Messages.PartialFrame> frames = new ArrayList<>();
+            Messages.PartialFrame frame = null;
+            while (stream.available() > 0) {
+                Messages.Message message = Messages.read(stream);
+                if (message.type == Snapshot.SNAPSHOT_PREFIX)
+                    frame = new Messages.PartialFrame(message);
+                else if (message.type == Messages.CHUNK_PREFIX && frame != null)
+                    frame.add(message);
+
+                if (frame != null && frame.isComplete()) {
+                    frames.add(frame);
+                    frame = null;
+                }
+            }
+            return frames;
+        }
+
+        // The headers of the whole frames written.
+        private List<Snapshot.Header> getFrames() throws Exception {
+            List<Snapshot.Header> headers = new ArrayList<>();
+            for (Messages.PartialFrame frame : getWholeFrames())
+                headers.add(frame.header);
+            return headers;
+        }
+
+        // The frames written, read as the child would: null for those it
+        // can't decode.
+        private List<Snapshot> readSnapshots() throws Exception {
+            List<Snapshot> snapshots = new ArrayList<>();
+            Snapshot previous = null;
+            for (Messages.PartialFrame frame : getWholeFrames()) {
+                Snapshot last = previous;
+                Snapshot snapshot = Snapshot.fromPayload(
+                        frame.header, frame.getPayload(), false, layer -> last);
+                if (snapshot != null)
+                    previous = snapshot;
+                snapshots.add(snapshot);
+            }
+            return snapshots;
+        }
+    }
+
+    private static Snapshot createSnapshot(int index) {
+        BufferedImage image = ImageUtil.createImage1();
+        image.setRGB(index % image.getWidth(), 0, 0xff0000);
+        return Snapshot.losslessSnapshot(index, image);
+    }
+
+    private static List<Snapshot.Header> waitForFrames(RecordingConnection connection,
+                                                       int count) throws Exception {
+        List<Snapshot.Header> frames;
+        while ((frames = connection.getFrames()).size() < count)
+            Util.sleepMillis(10);
+        return frames;
+    }
+
+    // Waits until the frame with the index has been written.
+    private static List<Snapshot.Header> waitForFrame(RecordingConnection connection,
+                                                      long frameIndex) throws Exception {
+        while (true) {
+            List<Snapshot.Header> frames = connection.getFrames();
+            if (!frames.isEmpty() && frames.get(frames.size() - 1).frameIndex == frameIndex)
+                return frames;
+            Util.sleepMillis(10);
+        }
+    }
+
+    // The fast connection gets every frame while the slow one is stuck, and
+    // the slow one's queue stays bounded.
+    @Test(timeout=10000)
+    public void testSlowConnectionDoesntHoldUpOthers() throws Exception {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setSendQueue(3, EncodingOptions.QueuePolicy.DROP_OLDEST)
+                .build();
+        ClientList<String> clientList = new ClientList<>(KEY, null, options);
+        RecordingConnection slow = new RecordingConnection("slow", true),
+                fast = new RecordingConnection("fast", false);
+        clientList.addConnection(slow);
+        clientList.addConnection(fast);
+
+        // Paced by the fast connection, as frames would be by the frame rate.
+        for (int i = 0; i < 10; i++) {
+            clientList.sendSnapshot(createSnapshot(i));
+            waitForFrames(fast, i + 1);
+        }
+
+        List<Snapshot.Header> frames = fast.getFrames();
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, frames.get(i).frameIndex);
+
+        SendQueue.Stats stats = clientList.getSendQueueStats().get("slow");
+        assertEquals(3, stats.queuedFrames);
+        assertTrue(stats.droppedFrames >= 6);
+        assertEquals(0, clientList.getSendQueueStats().get("fast").droppedFrames);
+
+        // Once it catches up, it gets the newest frames.
+        slow.unblock();
+        assertTrue(waitForFrame(slow, 9).size() <= 4);
+    }
+
+    // Forwards the frame's messages as a relay would while reading them.
+    private static void forward(ClientList<String> clientList, Snapshot snapshot)
+            throws Exception {
+        List<byte[]> messages = Messages.frameToMessages(snapshot.toBytes());
+        Messages.Message first = Messages.read(new ByteArrayInputStream(messages.get(0)));
+        Messages.PartialFrame frame = new Messages.PartialFrame(first);
+        Set<String> forwardedTo;
+        try (ClientList<String>.Forward forward = clientList.startForwarding(frame, first)) {
+            for (byte[] bytes : messages.subList(1, messages.size())) {
+                Messages.Message chunk = Messages.read(new ByteArrayInputStream(bytes));
+                frame.add(chunk);
+                forward.forwardChunk(chunk);
+            }
+            forward.finish();
+            forwardedTo = forward.getDestinations();
+        }
+        clientList.sendSnapshot(snapshot, forwardedTo);
+    }
+
+    // Forwarding a frame queues it rather than writing it, so a child that
+    // isn't reading doesn't hold up the relay or its siblings.
+    @Test(timeout=10000)
+    public void testStalledChildDoesntHoldUpForwarding() throws Exception {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setSendQueue(3, EncodingOptions.QueuePolicy.DROP_OLDEST)
+                .build();
+        ClientList<String> clientList = new ClientList<>(KEY, null, options);
+        RecordingConnection slow = new RecordingConnection("slow", true),
+                fast = new RecordingConnection("fast", false);
+        clientList.addConnection(slow);
+        clientList.addConnection(fast);
+
+        for (int i = 0; i < 10; i++) {
+            forward(clientList, createSnapshot(i));
+            waitForFrames(fast, i + 1);
+        }
+
+        List<Snapshot.Header> frames = fast.getFrames();
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, frames.get(i).frameIndex);
+        assertEquals(10, clientList.getSendQueueStats().get("fast").sentFrames);
+        assertEquals(3, clientList.getSendQueueStats().get("slow").queuedFrames);
+
+        slow.unblock();
+        assertTrue(waitForFrame(slow, 9).size() <= 4);
+    }
+
+    // Alternates between two images, so that tiles sent earlier come back
+    // and are sent as references to the tile cache.
+    private static Snapshot createAlternatingSnapshot(int index) {
+        BufferedImage image = ImageUtil.createImage1();
+        image.setRGB(index % 2 == 0 ? 0 : image.getWidth() / 2, 0, 0xff0000);
+        return Snapshot.losslessSnapshot(index, image);
+    }
+
+    // A child that joins mid-stream gets a keyframe that isn't part of the
+    // stream, so its tile cache isn't the sender's until the next keyframe on
+    // the stream. It should still be able to decode every frame.
+    @Test(timeout=10000)
+    public void testLateJoinerWithTileCache() throws Exception {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setKeyframeInterval(100)
+                .setTileCacheSize(64)
+                .build();
+        ClientList<String> clientList = new ClientList<>(KEY, null, options);
+        RecordingConnection early = new RecordingConnection("early", false),
+                late = new RecordingConnection("late", false);
+        clientList.addConnection(early);
+
+        List<Snapshot> sent = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            if (i == 4)
+                clientList.addConnection(late);
+            Snapshot snapshot = createAlternatingSnapshot(i);
+            sent.add(snapshot);
+            clientList.sendSnapshot(snapshot);
+            waitForFrames(early, i + 1);
+        }
+        assertTrue(clientList.getTileCache().getHits() > 0);
+
+        waitForFrame(late, 9);
+        List<Snapshot> snapshots = late.readSnapshots();
+        assertEquals(7, snapshots.size());
+        for (int i = 0; i < snapshots.size(); i++)
+            assertEquals(sent.get(i + 3), snapshots.get(i));
+    }
+
+    @Test(timeout=10000)
+    public void testLatestFrame() throws Exception {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setSendQueue(3, EncodingOptions.QueuePolicy.LATEST_FRAME)
+                .build();
+        ClientList<String> clientList = new ClientList<>(KEY, null, options);
+        RecordingConnection slow = new RecordingConnection("slow", true);
+        clientList.addConnection(slow);
+
+        for (int i = 0; i < 10; i++)
+            clientList.sendSnapshot(createSnapshot(i));
+        assertTrue(clientList.getSendQueueStats().get("slow").queuedFrames <= 3);
+
+        slow.unblock();
+        assertTrue(waitForFrame(slow, 9).size() <= 4);
+    }
+
+    // Delta frames after a dropped frame are useless to the child, so it's
+    // sent a keyframe instead.
+    @Test(timeout=10000)
+    public void testKeyframeAfterDrop() throws Exception {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setKeyframeInterval(100)
+                .setSendQueue(2, EncodingOptions.QueuePolicy.DROP_OLDEST)
+                .build();
+        ClientList<String> clientList = new ClientList<>(KEY, null, options);
+        RecordingConnection slow = new RecordingConnection("slow", true);
+        clientList.addConnection(slow);
+
+        for (int i = 0; i < 10; i++)
+            clientList.sendSnapshot(createSnapshot(i));
+
+        slow.unblock();
+        List<Snapshot.Header> frames = waitForFrame(slow, 9);
+        assertTrue(frames.size() < 10);
+        for (int i = 1; i < frames.size(); i++)
+            if (frames.get(i).frameIndex != frames.get(i - 1).frameIndex + 1)
+                assertTrue(frames.get(i).frameType != Snapshot.DELTA_FRAME);
+    }
+
+    @Test(timeout=10000)
+    public void testDisconnectAfterDrops() throws Exception {
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setSendQueue(2, EncodingOptions.QueuePolicy.DISCONNECT)
+                .setMaxDroppedFrames(3)
+                .build();
+        ClientList<String> clientList = new ClientList<>(KEY, null, options);
+        RecordingConnection slow = new RecordingConnection("slow", true),
+                fast = new RecordingConnection("fast", false);
+        clientList.addConnection(slow);
+        clientList.addConnection(fast);
+
+        for (int i = 0; i < 10; i++) {
+            clientList.sendSnapshot(createSnapshot(i));
+            waitForFrames(fast, i + 1);
+        }
+
+        assertTrue(slow.closed);
+        assertFalse(clientList.getSendQueueStats().containsKey("slow"));
+        assertEquals(10, fast.getFrames().size());
+    }
+}
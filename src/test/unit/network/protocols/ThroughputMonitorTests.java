@@ -0,0 +1,66 @@
+package test.unit.network.protocols;
+
+import main.network.protocols.ThroughputMonitor;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests deciding whether a receiver keeps up from its read reports.
+ */
+public class ThroughputMonitorTests {
+    private final static long MILLIS = 1000000;
+
+    @Test
+    public void testReceiverThatNeverReportsIsNotBehind() {
+        ThroughputMonitor monitor = new ThroughputMonitor();
+        for (int i = 0; i < 100; i++)
+            monitor.onSend(100000, i * 100 * MILLIS);
+        assertFalse(monitor.isBehind(10000 * MILLIS));
+    }
+
+    @Test
+    public void testReceiverKeepingUp() {
+        ThroughputMonitor monitor = new ThroughputMonitor();
+        for (int i = 0; i < 20; i++) {
+            monitor.onSend(10000, i * 100 * MILLIS);
+            monitor.onReport(i + 1, i * 100 * MILLIS + 50 * MILLIS);
+            assertFalse(monitor.isBehind(i * 100 * MILLIS + 60 * MILLIS));
+        }
+    }
+
+    // Sends 10KB every 100ms to a receiver that reads one snapshot every
+    // 200ms. It should fall behind, and catch up once we stop sending.
+    @Test
+    public void testSlowReceiver() {
+        ThroughputMonitor monitor = new ThroughputMonitor();
+        long now = 0;
+        int sent = 0;
+        boolean wasBehind = false;
+        for (; now < 3000 * MILLIS; now += 100 * MILLIS) {
+            monitor.onSend(10000, now);
+            sent++;
+            monitor.onReport(now / (200 * MILLIS), now);
+            wasBehind |= monitor.isBehind(now);
+        }
+        assertTrue(wasBehind);
+        assertTrue(monitor.isBehind(now));
+        assertEquals(50000, monitor.getThroughput(), 10000);
+
+        monitor.onReport(sent, now + 5000 * MILLIS);
+        assertFalse(monitor.isBehind(now + 5000 * MILLIS));
+    }
+
+    // A report of more snapshots than we sent (e.g., from before a
+    // reconnect) shouldn't break anything.
+    @Test
+    public void testReportingTooMany() {
+        ThroughputMonitor monitor = new ThroughputMonitor();
+        monitor.onSend(10, 0);
+        monitor.onReport(5, MILLIS);
+        assertFalse(monitor.isBehind(2 * MILLIS));
+        monitor.onSend(10, 3 * MILLIS);
+        monitor.onReport(6, 4 * MILLIS);
+        assertFalse(monitor.isBehind(5 * MILLIS));
+    }
+}
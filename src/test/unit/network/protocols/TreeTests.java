@@ -1,13 +1,21 @@
 package test.unit.network.protocols;
 
+import main.LatencyStats;
+import main.Snapshot;
+import main.encoding.EncodingOptions;
 import main.network.protocols.NetworkProtocol;
 import main.network.protocols.tree.TreeNetworkProtocol;
 import main.util.Util;
 import org.junit.Test;
+import test.unit.ImageUtil;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.function.Consumer;
 
 /**
@@ -28,6 +36,12 @@ public class TreeTests {
                 test);
     }
 
+    // The setters that don't depend on the key type don't need an unchecked
+    // cast.
+    private static TreeNetworkProtocol<?> asTreeNode(NetworkProtocol node) {
+        return (TreeNetworkProtocol<?>)node;
+    }
+
     private void assertCorrectParent(String expectedParent, NetworkProtocol node) {
         TreeNetworkProtocol<String> castedNode =
                 (TreeNetworkProtocol<String>)node;
@@ -181,4 +195,196 @@ public class TreeTests {
             assertTrue(state.clientOutputQueues.get(2).isEmpty());
         });
     }
+
+    // Client 0 watches layer 1, client 1 the default layer; each should only
+    // be given its own layer.
+    @Test
+    public void testSubscribeToLayer() {
+        runTest(2, (state) -> {
+            asTreeNode(state.clients.get(0)).setLayer(1);
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+
+            Snapshot layer1 = Snapshot.losslessSnapshot(0, 1, ImageUtil.createImage2());
+            state.broadcaster.insertSnapshot(state.snapshots[0]);
+            state.broadcaster.insertSnapshot(layer1);
+            Util.sleepMillis(CLIENT_DELAY_MILLIS);
+
+            assertEquals(layer1, state.clientOutputQueues.get(0).poll());
+            assertTrue(state.clientOutputQueues.get(0).isEmpty());
+
+            assertEquals(state.snapshots[0], state.clientOutputQueues.get(1).poll());
+            assertTrue(state.clientOutputQueues.get(1).isEmpty());
+        });
+    }
+
+    // Client 1 can only connect through client 0, which watches the default
+    // layer; client 0 should still forward client 1 the layer it asked for.
+    @Test
+    public void testRelayForwardsSubscribedLayers() {
+        runTest(2, (state) -> {
+            asTreeNode(state.clients.get(1)).setLayer(1);
+
+            // First give time for topology information to propagate.
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+            state.manager.setRateLimit(TestState.BROADCASTER_KEY, TestState.CLIENT_KEYS[1], 0);
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+            assertCorrectParent(TestState.CLIENT_KEYS[0], state.clients.get(1));
+
+            Snapshot layer1 = Snapshot.losslessSnapshot(0, 1, ImageUtil.createImage2());
+            state.broadcaster.insertSnapshot(state.snapshots[0]);
+            state.broadcaster.insertSnapshot(layer1);
+            Util.sleepMillis(CLIENT_DELAY_MILLIS);
+
+            assertEquals(state.snapshots[0], state.clientOutputQueues.get(0).poll());
+            assertTrue(state.clientOutputQueues.get(0).isEmpty());
+
+            assertEquals(layer1, state.clientOutputQueues.get(1).poll());
+            assertTrue(state.clientOutputQueues.get(1).isEmpty());
+        });
+    }
+
+    // Client 1 reads from client 0, so its frames should carry both the
+    // broadcaster's and client 0's hops.
+    @Test
+    public void testTraceThroughRelay() {
+        runTest(2, (state) -> {
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+            state.manager.setRateLimit(TestState.BROADCASTER_KEY, TestState.CLIENT_KEYS[1], 0);
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+            assertCorrectParent(TestState.CLIENT_KEYS[0], state.clients.get(1));
+
+            state.broadcaster.insertSnapshot(Snapshot.losslessSnapshot(0, ImageUtil.createImage1()));
+            Util.sleepMillis(CLIENT_DELAY_MILLIS);
+
+            Snapshot snapshot = state.clientOutputQueues.get(1).poll();
+            assertEquals(2, snapshot.getTrace().getNumHops());
+
+            List<String> stages = new ArrayList<>();
+            for (LatencyStats.Stage stage : LatencyStats.getBreakdown(snapshot)) {
+                stages.add(stage.name);
+                assertTrue(stage.toString(), stage.micros >= 0);
+            }
+            assertEquals(Arrays.asList(
+                    LatencyStats.ENCODE,
+                    LatencyStats.NETWORK,
+                    LatencyStats.RELAY,
+                    LatencyStats.NETWORK,
+                    LatencyStats.TRANSFER), stages);
+
+            LatencyStats stats = state.clients.get(1).getLatencyStats();
+            assertEquals(1, stats.getHistogram(LatencyStats.RELAY).getCount());
+            assertEquals(2, stats.getHistogram(LatencyStats.NETWORK).getCount());
+        });
+    }
+
+    // Random pixels in the top left quarter, which don't compress.
+    private static BufferedImage createNoisyImage(long seed) {
+        BufferedImage image = ImageUtil.createImage1();
+        Random random = new Random(seed);
+        for (int y = 0; y < image.getHeight() / 2; y++)
+            for (int x = 0; x < image.getWidth() / 2; x++)
+                image.setRGB(x, y, random.nextInt());
+        return image;
+    }
+
+    // The frames are larger than the chunks relays forward them in, and should
+    // get through client 0 to client 1 intact.
+    @Test
+    public void testRelayForwardsLargeFrames() {
+        runTest(2, (state) -> {
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+            state.manager.setRateLimit(TestState.BROADCASTER_KEY, TestState.CLIENT_KEYS[1], 0);
+            Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+            assertCorrectParent(TestState.CLIENT_KEYS[0], state.clients.get(1));
+
+            List<Snapshot> snapshots = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                snapshots.add(Snapshot.losslessSnapshot(i, createNoisyImage(i)));
+                state.broadcaster.insertSnapshot(snapshots.get(i));
+            }
+            Util.sleepMillis(CLIENT_DELAY_MILLIS);
+
+            for (Snapshot snapshot : snapshots) {
+                assertEquals(snapshot, state.clientOutputQueues.get(0).poll());
+                assertEquals(snapshot, state.clientOutputQueues.get(1).poll());
+            }
+            assertTrue(state.clientOutputQueues.get(1).isEmpty());
+        });
+    }
+
+    // Client 1's link to the broadcaster is too slow for the frames it's
+    // sent, so it should be sent scaled frames while client 0 still gets
+    // every frame exactly.
+    @Test
+    public void testSlowChildGetsScaledFrames() {
+        ProtocolFactory factory = new ProtocolFactory(TestState.BROADCASTER_KEY);
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setDownscaleSlowReceivers(true)
+                .build();
+
+        TestState.runTest(
+                2,
+                manager -> factory.createTreeBroadcaster(manager, options),
+                factory::createTreeClient,
+                (state) -> {
+                    Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+                    state.manager.setRateLimit(TestState.BROADCASTER_KEY, TestState.CLIENT_KEYS[1], 50);
+
+                    int numFrames = 10;
+                    List<Snapshot> snapshots = new ArrayList<>();
+                    for (int i = 0; i < numFrames; i++) {
+                        snapshots.add(Snapshot.losslessSnapshot(i, createNoisyImage(i)));
+                        state.broadcaster.insertSnapshot(snapshots.get(i));
+                        Util.sleepMillis(100);
+                    }
+                    Util.sleepMillis(3 * CLIENT_DELAY_MILLIS);
+                    assertCorrectParent(TestState.BROADCASTER_KEY, state.clients.get(1));
+
+                    for (Snapshot snapshot : snapshots)
+                        assertEquals(snapshot, state.clientOutputQueues.get(0).poll());
+
+                    boolean sawScaledFrame = false;
+                    Snapshot last = null;
+                    for (Snapshot snapshot : state.clientOutputQueues.get(1)) {
+                        Snapshot original = snapshots.get((int)snapshot.getFrameIndex());
+                        assertEquals(original.getImage().getWidth(), snapshot.getImage().getWidth());
+                        sawScaledFrame |= !snapshot.equals(original);
+                        last = snapshot;
+                    }
+                    assertTrue(sawScaledFrame);
+                    assertEquals(numFrames - 1, last.getFrameIndex());
+                });
+    }
+
+    // Every frame is a keyframe, so every frame should be output as a
+    // preview first and then replaced by the frame.
+    @Test
+    public void testPreviewsBeforeFrames() {
+        ProtocolFactory factory = new ProtocolFactory(TestState.BROADCASTER_KEY);
+        EncodingOptions options = new EncodingOptions.Builder()
+                .setPreviews(true)
+                .build();
+
+        TestState.runTest(
+                1,
+                manager -> factory.createTreeBroadcaster(manager, options),
+                factory::createTreeClient,
+                (state) -> {
+                    Util.sleepMillis(CONNECTION_DELAY_MILLIS);
+
+                    state.broadcaster.insertSnapshot(state.snapshots[0]);
+                    state.broadcaster.insertSnapshot(state.snapshots[1]);
+                    Util.sleepMillis(2 * CLIENT_DELAY_MILLIS);
+
+                    for (Snapshot snapshot : state.snapshots) {
+                        Snapshot preview = state.clientOutputQueues.get(0).poll();
+                        assertTrue(preview.isPreview());
+                        assertEquals(snapshot.getFrameIndex(), preview.getFrameIndex());
+                        assertEquals(snapshot.getImage().getWidth(), preview.getImage().getWidth());
+
+                        assertEquals(snapshot, state.clientOutputQueues.get(0).poll());
+                    }
+                    assertTrue(state.clientOutputQueues.get(0).isEmpty());
+                });
+    }
 }